@@ -0,0 +1,63 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.module.GlideModule;
+
+/**
+ * Configures Glide's caches for the chat. Registered in the manifest.
+ *
+ * The budgets are resources, see integers.xml, so they can be tuned per device configuration.
+ * The memory budgets are shares of the app's heap limit rather than fixed sizes, so a low-end
+ * device with a small heap caches fewer photos instead of running out of memory, while a device
+ * with a large heap keeps more rows' photos decoded for scrolling back.
+ *
+ * Photos are decoded as ARGB_8888 by default. Previews in the list ask for RGB_565, which takes
+ * half the memory, see {@link ChatImageLoader}.
+ */
+public class ChatGlideModule implements GlideModule {
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        Resources resources = context.getResources();
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapLimit = activityManager.getMemoryClass() * 1024L * 1024L;
+
+        builder.setMemoryCache(new LruResourceCache((int) (heapLimit
+                * resources.getInteger(R.integer.image_memory_cache_percent) / 100)));
+        builder.setBitmapPool(new LruBitmapPool((int) (heapLimit
+                * resources.getInteger(R.integer.image_bitmap_pool_percent) / 100)));
+        builder.setDiskCache(new InternalCacheDiskCacheFactory(context,
+                resources.getInteger(R.integer.image_disk_cache_mb) * 1024 * 1024));
+        builder.setDecodeFormat(DecodeFormat.PREFER_ARGB_8888);
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        // The default components are all we need
+    }
+}
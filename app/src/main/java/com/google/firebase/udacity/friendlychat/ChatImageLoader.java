@@ -0,0 +1,132 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.MainThread;
+
+import com.bumptech.glide.BitmapRequestBuilder;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.DecodeFormat;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+
+/**
+ * How photos in the message list are loaded.
+ *
+ * Every photo is requested at the size its row shows it at, worked out from the photo's
+ * dimensions and the width of the rows, so Glide decodes it subsampled to about that size rather
+ * than at full resolution. Because the size is known before the row is laid out, rows that
+ * haven't been bound yet can be preloaded at exactly the size they will ask for, and the
+ * preloaded bitmaps are found in the memory cache. See {@link PhotoPreloader}.
+ *
+ * Rows show the photo's thumbnail, decoded as RGB_565. Tapping a row loads the full photo as
+ * ARGB_8888 at the same size, with the thumbnail shown until it arrives.
+ */
+public class ChatImageLoader {
+
+    /** The width photos can take up in a row, in pixels, or 0 before the list is laid out. */
+    private int mRowWidth;
+
+    /**
+     * Sets the width photos can take up in a row, in pixels.
+     */
+    @MainThread
+    void setRowWidth(int rowWidth) {
+        mRowWidth = rowWidth;
+    }
+
+    /**
+     * Shows the preview of a photo message, its thumbnail if it has one.
+     */
+    @MainThread
+    void loadPreview(PhotoImageView view, FriendlyMessage message) {
+        previewRequest(view.getContext(), message).into(view);
+    }
+
+    /**
+     * Replaces the preview in a row with the full photo, keeping the preview on screen until the
+     * photo has been downloaded.
+     */
+    @MainThread
+    void loadFullPhoto(PhotoImageView view, FriendlyMessage message) {
+        if (message.getThumbUrl() == null) {
+            // The row already shows the full photo
+            return;
+        }
+        BitmapRequestBuilder<String, Bitmap> request = Glide.with(view.getContext())
+                .load(message.getPhotoUrl())
+                .asBitmap()
+                .dontTransform()
+                .thumbnail(previewRequest(view.getContext(), message));
+        int[] size = displaySize(message);
+        if (size != null) {
+            request = request.override(size[0], size[1]);
+        }
+        request.into(view);
+    }
+
+    /**
+     * Downloads and decodes the preview of a photo message into the memory cache, so it shows
+     * without delay once its row is bound. Does nothing if the size the row will show it at
+     * isn't known yet.
+     */
+    @MainThread
+    void preloadPreview(Context context, FriendlyMessage message) {
+        int[] size = displaySize(message);
+        if (message.getPhotoUrl() == null || size == null) {
+            return;
+        }
+        previewRequest(context, message).preload(size[0], size[1]);
+    }
+
+    private BitmapRequestBuilder<String, Bitmap> previewRequest(Context context,
+                                                                FriendlyMessage message) {
+        // Older messages were sent without a thumbnail, so they show the photo itself
+        String url = message.getThumbUrl() != null ? message.getThumbUrl() : message.getPhotoUrl();
+        BitmapRequestBuilder<String, Bitmap> request = Glide.with(context)
+                .load(url)
+                .asBitmap()
+                .format(DecodeFormat.PREFER_RGB_565)
+                // The ImageView scales the bitmap when drawing it. Transforming it to the view's
+                // size would make a full-size copy of every thumbnail.
+                .dontTransform()
+                // Rows are rebound constantly while scrolling, and fading every preview in
+                // costs a frame's worth of drawing each time
+                .dontAnimate();
+        int[] size = displaySize(message);
+        if (size != null) {
+            request = request.override(size[0], size[1]);
+        }
+        return request;
+    }
+
+    /**
+     * Returns the width and height a photo is shown at, or null if they aren't known, either
+     * because the list hasn't been laid out yet or because the message doesn't say how large
+     * its photo is. Matches how {@link PhotoImageView} measures itself.
+     */
+    private int[] displaySize(FriendlyMessage message) {
+        int photoWidth = message.getWidth();
+        int photoHeight = message.getHeight();
+        if (mRowWidth <= 0 || photoWidth <= 0 || photoHeight <= 0) {
+            return null;
+        }
+        int width = Math.min(mRowWidth, photoWidth);
+        int height = Math.max(1, width * photoHeight / photoWidth);
+        return new int[]{width, height};
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.udacity.friendlychat.core.ChatRoom;
+import com.google.firebase.udacity.friendlychat.core.ChatTransport;
+import com.google.firebase.udacity.friendlychat.core.InMemoryChatTransport;
+import com.google.firebase.udacity.friendlychat.core.OpenRooms;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds the parts of the chat that live as long as the process rather than an Activity, wired to
+ * the Firebase backend. Must only be used from the main thread.
+ *
+ * Debug builds made with {@code -PinMemoryChat} keep the messages of every room in an
+ * {@link InMemoryChatTransport} instead, the backend the chat-core tests run against, so the
+ * messaging can be tried without touching the database. Only messages go there: sign-in,
+ * presence and photo uploads still use Firebase, and the messages are gone when the process is.
+ */
+public final class ChatServices {
+
+    /** The room shown until the user picks another one. */
+    public static final String DEFAULT_ROOM_ID = "general";
+
+    /**
+     * The number of rooms kept open, listening to their newest messages, while the user is in
+     * another one. See {@link OpenRooms}.
+     */
+    private static final int MAX_OPEN_ROOMS = 3;
+
+    private static OpenRooms sOpenRooms;
+
+    private static HistoryArchive sHistoryArchive;
+
+    private static LegacyMessageMigration sLegacyMigration;
+
+    private static RoomPresence sRoomPresence;
+
+    /** The in-memory transport of each room, see BuildConfig.IN_MEMORY_CHAT. */
+    private static Map<String, InMemoryChatTransport> sInMemoryTransports;
+
+    private ChatServices() {
+    }
+
+    /**
+     * Returns the transport for the messages of one room, at {@code messages/<roomId>}, with
+     * its older history archived to {@code chat_archives/<roomId>}, and starts moving the
+     * room's messages from earlier versions of the app into place. In debug builds made with
+     * {@code -PinMemoryChat}, returns the room's in-memory transport instead.
+     */
+    public static ChatTransport getTransport(String roomId) {
+        if (BuildConfig.IN_MEMORY_CHAT) {
+            return getInMemoryTransport(roomId);
+        }
+        getLegacyMigration().start(roomId);
+        return new FirebaseChatTransport(FirebaseDatabase.getInstance().getReference(), roomId,
+                getHistoryArchive());
+    }
+
+    /**
+     * Returns the in-memory transport of a room, which keeps its messages for as long as the
+     * process lives, so a room that is closed and opened again finds them. Its callbacks are
+     * delivered on the main thread, like the Firebase client's.
+     */
+    private static InMemoryChatTransport getInMemoryTransport(String roomId) {
+        if (sInMemoryTransports == null) {
+            sInMemoryTransports = new HashMap<>();
+        }
+        InMemoryChatTransport transport = sInMemoryTransports.get(roomId);
+        if (transport == null) {
+            final Handler mainHandler = new Handler(Looper.getMainLooper());
+            transport = new InMemoryChatTransport(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    mainHandler.post(command);
+                }
+            });
+            sInMemoryTransports.put(roomId, transport);
+        }
+        return transport;
+    }
+
+    private static HistoryArchive getHistoryArchive() {
+        if (sHistoryArchive == null) {
+            sHistoryArchive = new HistoryArchive(FirebaseDatabase.getInstance().getReference());
+        }
+        return sHistoryArchive;
+    }
+
+    private static LegacyMessageMigration getLegacyMigration() {
+        if (sLegacyMigration == null) {
+            sLegacyMigration = new LegacyMessageMigration(
+                    FirebaseDatabase.getInstance().getReference(), DEFAULT_ROOM_ID);
+        }
+        return sLegacyMigration;
+    }
+
+    /**
+     * Returns the presence of the signed-in user in the room they are looking at.
+     */
+    public static RoomPresence getRoomPresence() {
+        if (sRoomPresence == null) {
+            sRoomPresence = new RoomPresence(FirebaseDatabase.getInstance().getReference());
+        }
+        return sRoomPresence;
+    }
+
+    public static OpenRooms getOpenRooms(Context context) {
+        if (sOpenRooms == null) {
+            final MessageCache messageCache = MessageCache.getInstance(context);
+            sOpenRooms = new OpenRooms(MAX_OPEN_ROOMS, new OpenRooms.Factory() {
+                @Override
+                public ChatRoom create(String roomId) {
+                    // Received messages reach the list in batches, one per frame at most. Their
+                    // text is laid out in the background before they are delivered, so binding
+                    // their rows doesn't measure text.
+                    return new ChatRoom(roomId, getTransport(roomId),
+                            MainActivity.MESSAGES_PAGE_SIZE, new HandlerScheduler(),
+                            new FrameExecutor(), MessageTextLayouts.getInstance(), messageCache);
+                }
+            });
+        }
+        return sOpenRooms;
+    }
+}
@@ -0,0 +1,778 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+import com.google.firebase.udacity.friendlychat.core.ChatTransport;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessageMapper;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.HistoryBuckets;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ChatTransport} backed by the messages of one chat room in the Firebase Realtime
+ * Database. Listeners and queries on it only ever see that room's messages.
+ *
+ * The history of the room is split into daily buckets, see {@link HistoryBuckets}. A message is
+ * stored at {@code messages/<roomId>/<bucketId>/<pushKey>}, and every bucket that has messages is
+ * listed in the bucket index at {@code buckets/<roomId>/<bucketId>}. Live listeners only cover
+ * the buckets around the current time, so staying in sync costs as much as the room's recent
+ * traffic, however long its history. Older pages are read bucket by bucket, going back through
+ * the index. A sealed bucket is read whole, once, and kept in memory for the next pages; the
+ * first client to read it from the database archives it to Cloud Storage, and everyone else
+ * downloads it from there, see {@link HistoryArchive}.
+ *
+ * Callbacks are delivered on the main thread, like all Realtime Database callbacks.
+ */
+public class FirebaseChatTransport implements ChatTransport {
+
+    private static final String TAG = "FirebaseChatTransport";
+
+    /** Set in the bucket index once a bucket has messages in the database. */
+    static final String INDEX_LIVE = "live";
+
+    /** Set in the bucket index once a bucket has been archived, see {@link HistoryArchive}. */
+    static final String INDEX_ARCHIVED = "archived";
+
+    /**
+     * Set in the bucket index while a client is archiving the bucket, see {@link HistoryArchive}.
+     */
+    static final String INDEX_ARCHIVER = "archiver";
+
+    /** The number of bucket index entries read at a time while paging back. */
+    private static final int INDEX_PAGE_SIZE = 16;
+
+    /**
+     * How far before and after the current time the live listeners reach, so messages sent just
+     * before midnight, or from a device whose clock is a little off, still arrive.
+     */
+    private static final long LIVE_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** How often the buckets the live listeners cover are checked, see LiveSubscription. */
+    private static final long LIVE_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** The number of messages of whole buckets kept in memory, see readBucket(). */
+    private static final int MAX_LOADED_MESSAGES = 5000;
+
+    /** The main thread time spent handling each onChildAdded() callback. */
+    private static final Histogram CHILD_ADDED_MICROS =
+            Metrics.getInstance().histogram("child_added_us");
+
+    /** The time spent decoding a whole bucket read from the database or an archive. */
+    private static final Histogram BUCKET_DECODE_MILLIS =
+            Metrics.getInstance().histogram("bucket_decode_ms");
+
+    /** Decodes whole buckets, which can hold thousands of messages, off the main thread. */
+    private static final Executor BUCKET_DECODER = Executors.newSingleThreadExecutor();
+
+    private final DatabaseReference mRootReference;
+    private final String mRoomId;
+    private final DatabaseReference mMessagesReference;
+    private final DatabaseReference mIndexReference;
+    private final HistoryArchive mArchive;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Whole buckets read so far, oldest message first, by bucket ID. */
+    private final LruCache<String, List<FriendlyMessage>> mLoadedBuckets =
+            new LruCache<String, List<FriendlyMessage>>(MAX_LOADED_MESSAGES) {
+                @Override
+                protected int sizeOf(String bucketId, List<FriendlyMessage> messages) {
+                    return messages.size() + 1;
+                }
+            };
+
+    /**
+     * @param rootReference the root of the database, which holds both the messages and the
+     *                      bucket index
+     * @param archive       downloads archived buckets, and archives sealed ones
+     */
+    public FirebaseChatTransport(DatabaseReference rootReference, String roomId,
+                                 HistoryArchive archive) {
+        mRootReference = rootReference;
+        mRoomId = roomId;
+        mMessagesReference = rootReference.child("messages").child(roomId);
+        mIndexReference = rootReference.child("buckets").child(roomId);
+        mArchive = archive;
+    }
+
+    /**
+     * Returns the path of a bucket's messages, relative to the root of the database.
+     */
+    static String bucketPath(String roomId, String bucketId) {
+        return "messages/" + roomId + "/" + bucketId;
+    }
+
+    /**
+     * Returns the path of a bucket's entry in the bucket index, relative to the root of the
+     * database.
+     */
+    static String bucketIndexPath(String roomId, String bucketId) {
+        return "buckets/" + roomId + "/" + bucketId;
+    }
+
+    /**
+     * Returns a multi-path update of the root of the database that writes messages to their
+     * buckets, and lists those buckets in the bucket index.
+     */
+    static Map<String, Object> messageUpdates(String roomId, List<FriendlyMessage> messages) {
+        Map<String, Object> updates = new HashMap<>();
+        for (FriendlyMessage message : messages) {
+            String bucketId = HistoryBuckets.bucketOf(message.getKey());
+            updates.put(bucketPath(roomId, bucketId) + "/" + message.getKey(),
+                    FriendlyMessageMapper.toValue(message));
+            updates.put(bucketIndexPath(roomId, bucketId) + "/" + INDEX_LIVE, true);
+        }
+        return updates;
+    }
+
+    @Override
+    public String newKey() {
+        // Creates an auto-generated child location of messages locally, without writing to it
+        return mMessagesReference.push().getKey();
+    }
+
+    @Override
+    public Subscription listen(String startKey, int limit, MessageListener listener) {
+        LiveSubscription subscription = new LiveSubscription(startKey, listener);
+        subscription.start(limit);
+        return subscription;
+    }
+
+    @Override
+    public void loadPage(String endKey, int limit, PageCallback callback) {
+        new PageWalk(endKey, false, limit, callback).next();
+    }
+
+    @Override
+    public void loadPageAfter(String startKey, int limit, PageCallback callback) {
+        new PageWalk(startKey, true, limit, callback).next();
+    }
+
+    @Override
+    public void write(List<FriendlyMessage> messages, final WriteCallback callback) {
+        // A multi-path update: each message is written to its own child of its bucket, in a
+        // single round trip, without touching any other message
+        Task<Void> task = mRootReference.updateChildren(messageUpdates(mRoomId, messages));
+        if (callback != null) {
+            task.addOnCompleteListener(new OnCompleteListener<Void>() {
+                @Override
+                public void onComplete(@NonNull Task<Void> task) {
+                    callback.onWriteComplete(task.isSuccessful() ? null : task.getException());
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads the newest {@code limit} messages of a bucket whose keys are at most {@code key}, or
+     * the newest of all if {@code key} is null. If {@code after} is true, reads the oldest
+     * {@code limit} messages whose keys are at least {@code key} instead.
+     *
+     * A bucket that is still being written to is queried for just those messages. A sealed
+     * bucket is read whole instead, from its archive or from the database, and kept in memory,
+     * so the pages after this one don't have to be read again.
+     */
+    private void readBucket(final String bucketId, boolean archived, final String key,
+                            final boolean after, final int limit, final PageCallback callback) {
+        List<FriendlyMessage> loaded = mLoadedBuckets.get(bucketId);
+        if (loaded != null) {
+            callback.onPageLoaded(slice(loaded, key, after, limit));
+            return;
+        }
+
+        if (archived) {
+            ArchivedBucketRead read =
+                    new ArchivedBucketRead(bucketId, key, after, limit, callback);
+            mArchive.load(mRoomId, bucketId, read);
+            mMessagesReference.child(bucketId).addListenerForSingleValueEvent(read);
+            return;
+        }
+
+        if (HistoryBuckets.isSealed(bucketId, System.currentTimeMillis())) {
+            mMessagesReference.child(bucketId).addListenerForSingleValueEvent(
+                    new ValueEventListener() {
+                        @Override
+                        public void onDataChange(DataSnapshot dataSnapshot) {
+                            decodeBucket(Collections.<FriendlyMessage>emptyList(), dataSnapshot,
+                                    new DecodeCallback() {
+                                        @Override
+                                        public void onBucketDecoded(
+                                                List<FriendlyMessage> messages) {
+                                            mLoadedBuckets.put(bucketId, messages);
+                                            mArchive.archive(mRoomId, bucketId, messages);
+                                            callback.onPageLoaded(
+                                                    slice(messages, key, after, limit));
+                                        }
+                                    });
+                        }
+
+                        @Override
+                        public void onCancelled(DatabaseError databaseError) {
+                            callback.onPageFailed(databaseError.toException());
+                        }
+                    });
+            return;
+        }
+
+        Query query = mMessagesReference.child(bucketId).orderByKey();
+        if (after) {
+            query = query.startAt(key).limitToFirst(limit);
+        } else if (key != null) {
+            query = query.endAt(key).limitToLast(limit);
+        } else {
+            query = query.limitToLast(limit);
+        }
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                List<RawMessage> messages = new ArrayList<>();
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    messages.add(new SnapshotMessage(child));
+                }
+                callback.onPageLoaded(messages);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                callback.onPageFailed(databaseError.toException());
+            }
+        });
+    }
+
+    /**
+     * Receives a whole bucket decoded by decodeBucket(), on the main thread.
+     */
+    private interface DecodeCallback {
+        /**
+         * @param messages the messages of the bucket, oldest first
+         */
+        void onBucketDecoded(List<FriendlyMessage> messages);
+    }
+
+    /**
+     * Decodes the messages of a bucket in the database in the background, and merges them with
+     * the messages of its archive. A message in both is taken from the database.
+     */
+    private void decodeBucket(final List<FriendlyMessage> archived, final DataSnapshot bucket,
+                              final DecodeCallback callback) {
+        BUCKET_DECODER.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                Map<String, FriendlyMessage> byKey = new TreeMap<>();
+                for (FriendlyMessage message : archived) {
+                    byKey.put(message.getKey(), message);
+                }
+                for (DataSnapshot child : bucket.getChildren()) {
+                    FriendlyMessage message =
+                            FriendlyMessageMapper.fromValue(child.getKey(), child.getValue());
+                    if (message != null) {
+                        byKey.put(message.getKey(), message);
+                    }
+                }
+                final List<FriendlyMessage> messages = new ArrayList<>(byKey.values());
+                BUCKET_DECODE_MILLIS.recordMillisSince(start);
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBucketDecoded(messages);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the newest {@code limit} messages whose keys are at most {@code key}, or the newest
+     * of all if {@code key} is null. If {@code after} is true, returns the oldest {@code limit}
+     * messages whose keys are at least {@code key} instead.
+     *
+     * @param messages the messages of a whole bucket, oldest first
+     */
+    private static List<RawMessage> slice(List<FriendlyMessage> messages, String key,
+                                          boolean after, int limit) {
+        int start;
+        int end;
+        if (after) {
+            // The first message at or after key
+            start = firstIndexAfter(messages, key, false);
+            end = Math.min(messages.size(), start + limit);
+        } else {
+            // The first message after key
+            end = key == null ? messages.size() : firstIndexAfter(messages, key, true);
+            start = Math.max(0, end - limit);
+        }
+        List<RawMessage> page = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            page.add(new LoadedMessage(messages.get(i)));
+        }
+        return page;
+    }
+
+    /**
+     * Returns the position of the first message whose key is after {@code key}, or at it if
+     * {@code inclusive} is false, with a binary search.
+     */
+    private static int firstIndexAfter(List<FriendlyMessage> messages, String key,
+                                       boolean inclusive) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = messages.get(middle).getKey().compareTo(key);
+            if (comparison < 0 || (inclusive && comparison == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Waits for both the archive of a bucket and the messages that reached the bucket in the
+     * database after it was archived, which are requested at the same time.
+     */
+    private final class ArchivedBucketRead implements HistoryArchive.LoadCallback,
+            ValueEventListener {
+        private final String mBucketId;
+        private final String mKey;
+        private final boolean mAfter;
+        private final int mLimit;
+        private final PageCallback mCallback;
+
+        private List<FriendlyMessage> mArchived;
+        private DataSnapshot mLateMessages;
+        private boolean mFailed;
+
+        ArchivedBucketRead(String bucketId, String key, boolean after, int limit,
+                           PageCallback callback) {
+            mBucketId = bucketId;
+            mKey = key;
+            mAfter = after;
+            mLimit = limit;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onBucketLoaded(List<FriendlyMessage> messages) {
+            mArchived = messages;
+            maybeFinish();
+        }
+
+        @Override
+        public void onBucketFailed(Exception error) {
+            fail(error);
+        }
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            mLateMessages = dataSnapshot;
+            maybeFinish();
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            fail(databaseError.toException());
+        }
+
+        private void fail(Exception error) {
+            if (!mFailed) {
+                mFailed = true;
+                mCallback.onPageFailed(error);
+            }
+        }
+
+        private void maybeFinish() {
+            if (mFailed || mArchived == null || mLateMessages == null) {
+                return;
+            }
+            decodeBucket(mArchived, mLateMessages, new DecodeCallback() {
+                @Override
+                public void onBucketDecoded(List<FriendlyMessage> messages) {
+                    mLoadedBuckets.put(mBucketId, messages);
+                    mCallback.onPageLoaded(slice(messages, mKey, mAfter, mLimit));
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects the newest messages up to a key across buckets: reads the bucket of the key, then
+     * the buckets before it in the index, newest first, until it has enough messages or there are
+     * no older buckets. Going forward, it collects the oldest messages from a key instead, reading
+     * the buckets after it, oldest first.
+     */
+    private final class PageWalk {
+        private final String mKey;
+        private final boolean mForward;
+        private final int mLimit;
+        private final PageCallback mCallback;
+
+        /** The messages read so far, a list per bucket, in the order the buckets were read. */
+        private final List<List<RawMessage>> mBucketPages = new ArrayList<>();
+        private int mFound;
+
+        /** Bucket index entries that haven't been read yet, in the order they are read. */
+        private final ArrayDeque<DataSnapshot> mPendingBuckets = new ArrayDeque<>();
+
+        /** The last bucket listed by the index so far, or null before it has been read. */
+        private String mIndexCursor;
+        private boolean mIndexExhausted;
+
+        /**
+         * @param key     the newest key to include, or null to start from the newest message.
+         *                Going forward, the oldest key to include.
+         * @param forward whether to collect the messages from the key on rather than up to it
+         */
+        PageWalk(String key, boolean forward, int limit, PageCallback callback) {
+            mKey = key;
+            mForward = forward;
+            mLimit = limit;
+            mCallback = callback;
+        }
+
+        void next() {
+            if (mFound >= mLimit || (mPendingBuckets.isEmpty() && mIndexExhausted)) {
+                finish();
+                return;
+            }
+            if (mPendingBuckets.isEmpty()) {
+                readIndex();
+                return;
+            }
+
+            DataSnapshot entry = mPendingBuckets.poll();
+            readBucket(entry.getKey(), entry.hasChild(INDEX_ARCHIVED), mKey, mForward,
+                    mLimit - mFound, new PageCallback() {
+                        @Override
+                        public void onPageLoaded(List<RawMessage> messages) {
+                            if (!messages.isEmpty()) {
+                                mBucketPages.add(messages);
+                                mFound += messages.size();
+                            }
+                            next();
+                        }
+
+                        @Override
+                        public void onPageFailed(Exception error) {
+                            mCallback.onPageFailed(error);
+                        }
+                    });
+        }
+
+        private void readIndex() {
+            String cursorBucketId = mIndexCursor;
+            if (cursorBucketId == null && mKey != null) {
+                cursorBucketId = HistoryBuckets.bucketOf(mKey);
+            }
+            // endAt() and startAt() include the cursor, which was already listed by the previous
+            // read
+            final int batchSize = mIndexCursor != null ? INDEX_PAGE_SIZE + 1 : INDEX_PAGE_SIZE;
+            Query query = mIndexReference.orderByKey();
+            if (mForward) {
+                query = query.startAt(cursorBucketId).limitToFirst(batchSize);
+            } else if (cursorBucketId != null) {
+                query = query.endAt(cursorBucketId).limitToLast(batchSize);
+            } else {
+                query = query.limitToLast(batchSize);
+            }
+            query.addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot dataSnapshot) {
+                    List<DataSnapshot> entries = new ArrayList<>();
+                    for (DataSnapshot child : dataSnapshot.getChildren()) {
+                        if (!child.getKey().equals(mIndexCursor)) {
+                            entries.add(child);
+                        }
+                    }
+                    mIndexExhausted = entries.isEmpty()
+                            || dataSnapshot.getChildrenCount() < batchSize;
+                    if (!mForward) {
+                        Collections.reverse(entries);
+                    }
+                    mPendingBuckets.addAll(entries);
+                    if (!entries.isEmpty()) {
+                        mIndexCursor = entries.get(entries.size() - 1).getKey();
+                    }
+                    next();
+                }
+
+                @Override
+                public void onCancelled(DatabaseError databaseError) {
+                    mCallback.onPageFailed(databaseError.toException());
+                }
+            });
+        }
+
+        private void finish() {
+            // Oldest bucket first
+            List<RawMessage> page = new ArrayList<>(mFound);
+            for (int i = 0; i < mBucketPages.size(); i++) {
+                page.addAll(mBucketPages.get(mForward ? i : mBucketPages.size() - 1 - i));
+            }
+            mCallback.onPageLoaded(page);
+        }
+    }
+
+    /**
+     * Delivers the newest messages, read like a page, then listens to the buckets around the
+     * current time for new messages and for changes to the delivered ones. The buckets are
+     * checked every few minutes, so the subscription moves on to the next bucket around midnight.
+     */
+    private final class LiveSubscription implements Subscription {
+        private final String mStartKey;
+        private final MessageListener mListener;
+
+        /** The listeners of the live buckets, by bucket ID. */
+        private final Map<String, LiveBucket> mLiveBuckets = new HashMap<>();
+
+        /**
+         * The oldest message delivered from each bucket. A live bucket's listener starts there,
+         * so it also sees the changes to the delivered messages.
+         */
+        private final Map<String, String> mOldestDeliveredKeys = new HashMap<>();
+
+        /** The messages delivered with the newest page that the live listeners will repeat. */
+        private final Set<String> mPageKeys = new HashSet<>();
+
+        private String mNewestDeliveredKey;
+
+        private boolean mCancelled;
+
+        private final Runnable mRefresh = new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        };
+
+        /**
+         * @param startKey if not null, only messages with this key or a later one are delivered
+         */
+        LiveSubscription(String startKey, MessageListener listener) {
+            mStartKey = startKey;
+            mListener = listener;
+        }
+
+        void start(int limit) {
+            new PageWalk(null, false, limit, new PageCallback() {
+                @Override
+                public void onPageLoaded(List<RawMessage> messages) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    for (RawMessage message : messages) {
+                        if (mStartKey == null || message.getKey().compareTo(mStartKey) >= 0) {
+                            mPageKeys.add(message.getKey());
+                            deliver(message);
+                        }
+                    }
+                    refresh();
+                }
+
+                @Override
+                public void onPageFailed(Exception error) {
+                    Log.w(TAG, "Reading the newest messages failed", error);
+                    if (!mCancelled) {
+                        refresh();
+                    }
+                }
+            }).next();
+        }
+
+        private void deliver(RawMessage message) {
+            long start = System.nanoTime();
+            String key = message.getKey();
+            String bucketId = HistoryBuckets.bucketOf(key);
+            if (!mOldestDeliveredKeys.containsKey(bucketId)) {
+                mOldestDeliveredKeys.put(bucketId, key);
+            }
+            if (mNewestDeliveredKey == null || key.compareTo(mNewestDeliveredKey) > 0) {
+                mNewestDeliveredKey = key;
+            }
+            mListener.onMessageAdded(message);
+            CHILD_ADDED_MICROS.recordMicrosSince(start);
+        }
+
+        /**
+         * Listens to the buckets around the current time, and stops listening to the ones that
+         * are now in the past.
+         */
+        private void refresh() {
+            long now = System.currentTimeMillis();
+            Set<String> liveBucketIds = new HashSet<>();
+            liveBucketIds.add(HistoryBuckets.bucketAt(now - LIVE_MARGIN_MILLIS));
+            liveBucketIds.add(HistoryBuckets.bucketAt(now));
+            liveBucketIds.add(HistoryBuckets.bucketAt(now + LIVE_MARGIN_MILLIS));
+
+            Iterator<Map.Entry<String, LiveBucket>> iterator = mLiveBuckets.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, LiveBucket> entry = iterator.next();
+                if (!liveBucketIds.contains(entry.getKey())) {
+                    entry.getValue().cancel();
+                    iterator.remove();
+                }
+            }
+            for (String bucketId : liveBucketIds) {
+                if (!mLiveBuckets.containsKey(bucketId)) {
+                    mLiveBuckets.put(bucketId, new LiveBucket(bucketId));
+                }
+            }
+            mMainHandler.postDelayed(mRefresh, LIVE_REFRESH_MILLIS);
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mMainHandler.removeCallbacks(mRefresh);
+            for (LiveBucket liveBucket : mLiveBuckets.values()) {
+                liveBucket.cancel();
+            }
+            mLiveBuckets.clear();
+        }
+
+        /**
+         * A listener to the messages of one bucket, from the oldest message delivered from it.
+         * A bucket nothing was delivered from is listened to from the newest message delivered,
+         * which for a bucket in the future means all of it.
+         */
+        private final class LiveBucket implements ChildEventListener {
+            private final Query mQuery;
+
+            LiveBucket(String bucketId) {
+                String startKey = mOldestDeliveredKeys.get(bucketId);
+                if (startKey == null) {
+                    startKey = mNewestDeliveredKey != null ? mNewestDeliveredKey : mStartKey;
+                }
+                Query query = mMessagesReference.child(bucketId).orderByKey();
+                if (startKey != null) {
+                    query = query.startAt(startKey);
+                }
+                mQuery = query;
+                mQuery.addChildEventListener(this);
+            }
+
+            void cancel() {
+                mQuery.removeEventListener(this);
+            }
+
+            @Override
+            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+                // Messages of the newest page come again when their bucket is listened to
+                if (mPageKeys.remove(dataSnapshot.getKey())) {
+                    return;
+                }
+                deliver(new SnapshotMessage(dataSnapshot));
+            }
+
+            @Override
+            public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+                mListener.onMessageChanged(new SnapshotMessage(dataSnapshot));
+            }
+
+            @Override
+            public void onChildRemoved(DataSnapshot dataSnapshot) {
+                mListener.onMessageRemoved(dataSnapshot.getKey());
+            }
+
+            // The query is ordered by key, which never changes, so a message only moves if it
+            // changed too
+            @Override
+            public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+                mListener.onMessageChanged(new SnapshotMessage(dataSnapshot));
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.w(TAG, "Listening to messages failed", databaseError.toException());
+            }
+        }
+    }
+
+    /**
+     * A message received from the database. Its value is only read from the snapshot when
+     * getValue() is called, which the ingestor does on its background thread.
+     */
+    private static final class SnapshotMessage implements RawMessage {
+        private final DataSnapshot mSnapshot;
+
+        SnapshotMessage(DataSnapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public String getKey() {
+            return mSnapshot.getKey();
+        }
+
+        @Override
+        public Object getValue() {
+            return mSnapshot.getValue();
+        }
+    }
+
+    /**
+     * A message of a whole bucket that was already decoded, see readBucket().
+     */
+    private static final class LoadedMessage implements RawMessage {
+        private final FriendlyMessage mMessage;
+
+        LoadedMessage(FriendlyMessage message) {
+            mMessage = message;
+        }
+
+        @Override
+        public String getKey() {
+            return mMessage.getKey();
+        }
+
+        @Override
+        public Object getValue() {
+            return FriendlyMessageMapper.toValue(mMessage);
+        }
+    }
+}
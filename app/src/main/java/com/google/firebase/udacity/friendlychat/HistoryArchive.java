@@ -0,0 +1,464 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import com.google.firebase.database.ValueEventListener;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.HistoryBuckets;
+import com.google.firebase.udacity.friendlychat.core.MessageArchive;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the sealed history buckets of the chat rooms, see {@link HistoryBuckets}, as blobs in
+ * Cloud Storage at {@code chat_archives/<roomId>/<bucketId>}, next to the photos in
+ * {@code chat_photos}. Reading an archived bucket is a single download, however many messages
+ * it holds, and the database only holds the recent buckets that are still being written to.
+ *
+ * There is no server to do the archiving, so the first client to read a sealed bucket from the
+ * database archives it, since it has just downloaded the whole bucket anyway:
+ *
+ * 1. It claims the bucket with a transaction on its entry in the bucket index, so only one client
+ *    archives a bucket at a time. A client that fails to archive the bucket releases its claim.
+ *    A claim that is older than CLAIM_TIMEOUT_MILLIS, e.g. because its client was killed, can
+ *    be taken over.
+ * 2. It uploads the blob, unless one already exists, e.g. from a client whose claim was taken
+ *    over. An existing blob is never replaced: the security rules only let a blob be created,
+ *    and a client that finds one uses it as it is.
+ * 3. It marks the bucket archived and deletes the messages that the stored blob holds from the
+ *    database, in a single update. Only those keys are deleted, so a message that reached the
+ *    bucket after the blob was encoded stays in the database, where readers of the archive still
+ *    find it.
+ *
+ * Blobs are encoded and decoded on a background thread. Must only be used from the main thread,
+ * and callbacks are delivered on the main thread.
+ */
+public class HistoryArchive {
+
+    private static final String TAG = "HistoryArchive";
+
+    /** Far more than a day of messages in any room, but not enough to exhaust memory. */
+    private static final long MAX_ARCHIVE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * How long a client's claim on a bucket lasts. Archiving a bucket takes seconds, so a claim
+     * this old belongs to a client that gave up or was killed, and another client may take over.
+     */
+    private static final long CLAIM_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** The children of a claim in the bucket index. */
+    private static final String CLAIM_ID = "id";
+    private static final String CLAIM_TIME = "time";
+
+    /** Archives never change once uploaded, so they can be cached for as long as anyone likes. */
+    private static final StorageMetadata ARCHIVE_METADATA = new StorageMetadata.Builder()
+            .setContentType("application/octet-stream")
+            .setCacheControl("public, max-age=31536000")
+            .build();
+
+    /** The time from requesting an archive to having its messages decoded. */
+    private static final Histogram LOAD_MILLIS = Metrics.getInstance().histogram("archive_load_ms");
+
+    private static final Histogram ARCHIVE_KILOBYTES =
+            Metrics.getInstance().histogram("archive_size_kb");
+
+    /**
+     * Receives the messages of an archived bucket, see {@link #load}.
+     */
+    interface LoadCallback {
+        /**
+         * @param messages the messages of the bucket, oldest first
+         */
+        void onBucketLoaded(List<FriendlyMessage> messages);
+
+        void onBucketFailed(Exception error);
+    }
+
+    private final DatabaseReference mRootReference;
+
+    /** Created on first use, so Storage is only set up once history is actually archived. */
+    private StorageReference mArchivesReference;
+
+    private final ExecutorService mCodec = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** The buckets this client is archiving, as roomId/bucketId, so each is uploaded once. */
+    private final Set<String> mArchiving = new HashSet<>();
+
+    /** Identifies this client's claims on buckets, see claim(). */
+    private final String mClaimId = UUID.randomUUID().toString();
+
+    /**
+     * The difference between the server's clock and this device's, as the database sees it, so
+     * claims made from devices whose clocks are off time out when they should. Written on the
+     * main thread and read by transactions, which run on the database's own thread.
+     */
+    private volatile long mServerTimeOffsetMillis;
+
+    private final ValueEventListener mServerTimeOffsetListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            Object offset = dataSnapshot.getValue();
+            if (offset instanceof Number) {
+                mServerTimeOffsetMillis = ((Number) offset).longValue();
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+        }
+    };
+
+    public HistoryArchive(DatabaseReference rootReference) {
+        mRootReference = rootReference;
+        // Lives as long as the process, like this archive
+        mRootReference.child(".info/serverTimeOffset")
+                .addValueEventListener(mServerTimeOffsetListener);
+    }
+
+    private StorageReference getArchivesReference() {
+        if (mArchivesReference == null) {
+            mArchivesReference = FirebaseStorage.getInstance().getReference()
+                    .child("chat_archives");
+        }
+        return mArchivesReference;
+    }
+
+    /**
+     * Downloads and decodes the archive of a bucket. Messages that reached the bucket after it
+     * was archived are still in the database, and aren't included.
+     */
+    void load(String roomId, String bucketId, final LoadCallback callback) {
+        final long start = System.nanoTime();
+        getArchivesReference().child(roomId).child(bucketId).getBytes(MAX_ARCHIVE_BYTES)
+                .addOnSuccessListener(mCodec, new OnSuccessListener<byte[]>() {
+                    @Override
+                    public void onSuccess(byte[] blob) {
+                        ARCHIVE_KILOBYTES.record(blob.length / 1024);
+                        try {
+                            final List<FriendlyMessage> messages = MessageArchive.decode(blob);
+                            LOAD_MILLIS.recordMillisSince(start);
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onBucketLoaded(messages);
+                                }
+                            });
+                        } catch (final IOException e) {
+                            mMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onBucketFailed(e);
+                                }
+                            });
+                        }
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        callback.onBucketFailed(e);
+                    }
+                });
+    }
+
+    /**
+     * Archives a sealed bucket that was read from the database, unless this client or another one
+     * is already doing so. Failures are only logged: the messages stay in the database, and the
+     * next client to read the bucket tries again.
+     *
+     * @param messages every message of the bucket in the database
+     */
+    void archive(final String roomId, final String bucketId, final List<FriendlyMessage> messages) {
+        if (messages.isEmpty() || !mArchiving.add(roomId + "/" + bucketId)) {
+            return;
+        }
+        mRootReference.child(FirebaseChatTransport.bucketIndexPath(roomId, bucketId))
+                .runTransaction(new Transaction.Handler() {
+                    @Override
+                    public Transaction.Result doTransaction(MutableData entry) {
+                        return claim(entry);
+                    }
+
+                    @Override
+                    public void onComplete(DatabaseError databaseError, boolean committed,
+                                           DataSnapshot entry) {
+                        if (committed) {
+                            archiveClaimed(roomId, bucketId, messages);
+                            return;
+                        }
+                        if (databaseError != null) {
+                            Log.w(TAG, "Claiming " + roomId + "/" + bucketId + " failed",
+                                    databaseError.toException());
+                        }
+                        // Archived already, or another client is on it
+                        mArchiving.remove(roomId + "/" + bucketId);
+                    }
+                }, false);
+    }
+
+    /**
+     * Claims a bucket for this client in its entry in the bucket index, unless it has been
+     * archived already, or another client claimed it less than CLAIM_TIMEOUT_MILLIS ago. Claims
+     * are timed by the server's clock, so every client agrees on when one times out.
+     */
+    private Transaction.Result claim(MutableData entry) {
+        if (entry.hasChild(FirebaseChatTransport.INDEX_ARCHIVED)) {
+            return Transaction.abort();
+        }
+        long now = System.currentTimeMillis() + mServerTimeOffsetMillis;
+        MutableData claim = entry.child(FirebaseChatTransport.INDEX_ARCHIVER);
+        if (claim.getValue() != null) {
+            Object id = claim.child(CLAIM_ID).getValue();
+            Object time = claim.child(CLAIM_TIME).getValue();
+            boolean stale = !(time instanceof Long) || now - (Long) time > CLAIM_TIMEOUT_MILLIS;
+            if (!mClaimId.equals(id) && !stale) {
+                return Transaction.abort();
+            }
+        }
+        Map<String, Object> value = new HashMap<>();
+        value.put(CLAIM_ID, mClaimId);
+        value.put(CLAIM_TIME, now);
+        claim.setValue(value);
+        return Transaction.success(entry);
+    }
+
+    /**
+     * Uploads the blob of a bucket this client has claimed, unless one exists already, in which
+     * case the stored blob is used instead.
+     */
+    private void archiveClaimed(final String roomId, final String bucketId,
+                                final List<FriendlyMessage> messages) {
+        getArchivesReference().child(roomId).child(bucketId).getMetadata()
+                .addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+                    @Override
+                    public void onSuccess(StorageMetadata storageMetadata) {
+                        compactStored(roomId, bucketId);
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        if (isObjectNotFound(e)) {
+                            encodeAndUpload(roomId, bucketId, messages);
+                        } else {
+                            Log.w(TAG, "Checking archive " + roomId + "/" + bucketId
+                                    + " failed", e);
+                            release(roomId, bucketId);
+                        }
+                    }
+                });
+    }
+
+    private void encodeAndUpload(final String roomId, final String bucketId,
+                                 final List<FriendlyMessage> messages) {
+        mCodec.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] blob = MessageArchive.encode(messages);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        upload(roomId, bucketId, messages, blob);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Uploads the blob of a bucket. The security rules refuse to replace an existing blob, so if
+     * the upload is refused because another client's blob was created meanwhile, that one is
+     * used instead.
+     */
+    private void upload(final String roomId, final String bucketId,
+                        final List<FriendlyMessage> messages, byte[] blob) {
+        getArchivesReference().child(roomId).child(bucketId).putBytes(blob, ARCHIVE_METADATA)
+                .addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+                    @Override
+                    public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+                        compact(roomId, bucketId, messages);
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        if (e instanceof StorageException && ((StorageException) e).getErrorCode()
+                                == StorageException.ERROR_NOT_AUTHORIZED) {
+                            checkLostRace(roomId, bucketId, e);
+                            return;
+                        }
+                        Log.w(TAG, "Uploading archive " + roomId + "/" + bucketId + " failed", e);
+                        release(roomId, bucketId);
+                    }
+                });
+    }
+
+    /**
+     * Handles an upload the security rules refused. That happens when another client's blob was
+     * created after archiveClaimed() looked, but also when the rules refuse this client for any
+     * other reason, so the stored blob is only used if there actually is one.
+     *
+     * @param uploadError why the upload was refused
+     */
+    private void checkLostRace(final String roomId, final String bucketId,
+                               final Exception uploadError) {
+        getArchivesReference().child(roomId).child(bucketId).getMetadata()
+                .addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+                    @Override
+                    public void onSuccess(StorageMetadata storageMetadata) {
+                        compactStored(roomId, bucketId);
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        Log.w(TAG, "Uploading archive " + roomId + "/" + bucketId + " failed",
+                                uploadError);
+                        if (!isObjectNotFound(e)) {
+                            Log.w(TAG, "Checking archive " + roomId + "/" + bucketId
+                                    + " failed", e);
+                        }
+                        release(roomId, bucketId);
+                    }
+                });
+    }
+
+    /**
+     * Compacts a bucket whose blob was uploaded by another client, deleting only the messages
+     * that blob holds. The blob is downloaded, since it may have been encoded before messages
+     * this client has seen reached the bucket.
+     */
+    private void compactStored(final String roomId, final String bucketId) {
+        load(roomId, bucketId, new LoadCallback() {
+            @Override
+            public void onBucketLoaded(List<FriendlyMessage> messages) {
+                if (messages.isEmpty()) {
+                    release(roomId, bucketId);
+                    return;
+                }
+                compact(roomId, bucketId, messages);
+            }
+
+            @Override
+            public void onBucketFailed(Exception error) {
+                Log.w(TAG, "Reading archive " + roomId + "/" + bucketId + " failed", error);
+                release(roomId, bucketId);
+            }
+        });
+    }
+
+    /**
+     * Gives up archiving a bucket this client has claimed, releasing the claim so the next client
+     * to read the bucket can try again straight away, rather than after CLAIM_TIMEOUT_MILLIS. The
+     * claim is only removed if it is still this client's, since it may have been taken over.
+     */
+    private void release(final String roomId, final String bucketId) {
+        mRootReference.child(FirebaseChatTransport.bucketIndexPath(roomId, bucketId))
+                .child(FirebaseChatTransport.INDEX_ARCHIVER)
+                .runTransaction(new Transaction.Handler() {
+                    @Override
+                    public Transaction.Result doTransaction(MutableData claim) {
+                        if (claim.getValue() == null) {
+                            // Nothing to release, unless the server knows better, in which case
+                            // the transaction is retried with its value
+                            return Transaction.success(claim);
+                        }
+                        if (!mClaimId.equals(claim.child(CLAIM_ID).getValue())) {
+                            return Transaction.abort();
+                        }
+                        claim.setValue(null);
+                        return Transaction.success(claim);
+                    }
+
+                    @Override
+                    public void onComplete(DatabaseError databaseError, boolean committed,
+                                           DataSnapshot claim) {
+                        if (databaseError != null) {
+                            // The claim times out instead
+                            Log.w(TAG, "Releasing " + roomId + "/" + bucketId + " failed",
+                                    databaseError.toException());
+                        }
+                        mArchiving.remove(roomId + "/" + bucketId);
+                    }
+                }, false);
+    }
+
+    private static boolean isObjectNotFound(Exception e) {
+        return e instanceof StorageException && ((StorageException) e).getErrorCode()
+                == StorageException.ERROR_OBJECT_NOT_FOUND;
+    }
+
+    /**
+     * Marks the bucket archived, releases the claim and deletes the archived messages from the
+     * database, atomically, so readers never see a bucket that is neither archived nor complete
+     * in the database.
+     *
+     * @param messages the messages of the stored blob, and only those
+     */
+    private void compact(final String roomId, final String bucketId,
+                         List<FriendlyMessage> messages) {
+        Map<String, Object> updates = new HashMap<>();
+        String indexPath = FirebaseChatTransport.bucketIndexPath(roomId, bucketId);
+        updates.put(indexPath + "/" + FirebaseChatTransport.INDEX_ARCHIVED, true);
+        updates.put(indexPath + "/" + FirebaseChatTransport.INDEX_ARCHIVER, null);
+        String bucketPath = FirebaseChatTransport.bucketPath(roomId, bucketId);
+        for (FriendlyMessage message : messages) {
+            updates.put(bucketPath + "/" + message.getKey(), null);
+        }
+        mRootReference.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError,
+                                   DatabaseReference databaseReference) {
+                if (databaseError != null) {
+                    // The blob is already uploaded; the next client to claim the bucket finds it
+                    // and compacts against it
+                    Log.w(TAG, "Compacting " + roomId + "/" + bucketId + " failed",
+                            databaseError.toException());
+                    release(roomId, bucketId);
+                }
+            }
+        });
+    }
+}
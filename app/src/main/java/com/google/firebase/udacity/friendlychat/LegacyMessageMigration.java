@@ -0,0 +1,173 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+import com.google.firebase.udacity.friendlychat.core.HistoryBuckets;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves messages written by earlier versions of the app into the day buckets of their room, see
+ * {@link HistoryBuckets}, so they show up in its history.
+ *
+ * Earlier versions wrote messages straight under {@code messages}, for the one room there was,
+ * and then under {@code messages/<roomId>}. Both kinds are keyed by push keys, which start with
+ * '-' until the year 2109, while the rooms and day buckets that now live under {@code messages}
+ * start with a letter or a digit, so a query for keys starting with '-' finds exactly the
+ * legacy messages. Messages directly under {@code messages} are moved to the default room.
+ *
+ * Each room is drained in batches: a listener on the first BATCH_SIZE legacy messages moves
+ * them, with a single multi-path update that writes them to their buckets, lists the buckets in
+ * the bucket index and deletes them from their old place. Deleting them makes the query fire
+ * again with the next batch, until none are left. The listener stays on for as long as the
+ * process lives, so messages that clients of earlier versions keep sending are moved as they
+ * arrive. Any number of clients may do this at once: they all write the same values.
+ *
+ * Must only be used from the main thread.
+ */
+public class LegacyMessageMigration {
+
+    private static final String TAG = "LegacyMessageMigration";
+
+    /** Enough to move a backlog quickly, without downloading all of it at once. */
+    private static final int BATCH_SIZE = 200;
+
+    /** The first and last possible push keys, for the years up to 2109. */
+    private static final String FIRST_PUSH_KEY = "-";
+    private static final String LAST_PUSH_KEY = "-";
+
+    private final DatabaseReference mRootReference;
+    private final String mDefaultRoomId;
+
+    /** The rooms being drained, so each is only drained once. */
+    private final Set<String> mStarted = new HashSet<>();
+
+    /**
+     * @param defaultRoomId the room that the messages directly under {@code messages} belong to
+     */
+    public LegacyMessageMigration(DatabaseReference rootReference, String defaultRoomId) {
+        mRootReference = rootReference;
+        mDefaultRoomId = defaultRoomId;
+    }
+
+    /**
+     * Starts moving the legacy messages of a room into its buckets, unless that has already
+     * started.
+     */
+    public void start(String roomId) {
+        if (!mStarted.add(roomId)) {
+            return;
+        }
+        new Drain(roomId, "messages/" + roomId).start();
+        if (roomId.equals(mDefaultRoomId)) {
+            new Drain(roomId, "messages").start();
+        }
+    }
+
+    /**
+     * Moves the legacy messages at one path into the buckets of a room.
+     */
+    private class Drain implements ValueEventListener {
+
+        private final String mRoomId;
+        private final String mLegacyPath;
+        private final Query mQuery;
+
+        /** Set once moving failed, so a rolled back batch isn't moved again. */
+        private boolean mStopped;
+
+        Drain(String roomId, String legacyPath) {
+            mRoomId = roomId;
+            mLegacyPath = legacyPath;
+            mQuery = mRootReference.child(legacyPath).orderByKey()
+                    .startAt(FIRST_PUSH_KEY).endAt(LAST_PUSH_KEY).limitToFirst(BATCH_SIZE);
+        }
+
+        void start() {
+            mQuery.addValueEventListener(this);
+        }
+
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            if (mStopped) {
+                return;
+            }
+
+            Map<String, Object> updates = new HashMap<>();
+            for (DataSnapshot child : dataSnapshot.getChildren()) {
+                String key = child.getKey();
+                String bucketId;
+                try {
+                    bucketId = HistoryBuckets.bucketOf(key);
+                } catch (IllegalArgumentException e) {
+                    // Nothing the app wrote; it would hold up every batch after it
+                    Log.w(TAG, "Not moving " + mLegacyPath + "/" + key
+                            + ", which isn't a push key. Stopped moving " + mLegacyPath, e);
+                    stop();
+                    break;
+                }
+                updates.put(FirebaseChatTransport.bucketPath(mRoomId, bucketId) + "/" + key,
+                        child.getValue());
+                updates.put(FirebaseChatTransport.bucketIndexPath(mRoomId, bucketId) + "/"
+                        + FirebaseChatTransport.INDEX_LIVE, true);
+                updates.put(mLegacyPath + "/" + key, null);
+            }
+            if (updates.isEmpty()) {
+                return;
+            }
+
+            // The update is applied locally before the server confirms it, so the moved
+            // messages are already gone from the next snapshot, which holds the next batch
+            mRootReference.updateChildren(updates).addOnCompleteListener(
+                    new OnCompleteListener<Void>() {
+                        @Override
+                        public void onComplete(@NonNull Task<Void> task) {
+                            if (!task.isSuccessful()) {
+                                // The failed update is rolled back, which would fire the
+                                // listener with the same batch again; the next process retries
+                                Log.w(TAG, "Failed to move messages from " + mLegacyPath,
+                                        task.getException());
+                                stop();
+                            }
+                        }
+                    });
+        }
+
+        private void stop() {
+            mStopped = true;
+            mQuery.removeEventListener(this);
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            Log.w(TAG, "Can't read legacy messages at " + mLegacyPath,
+                    databaseError.toException());
+        }
+    }
+}
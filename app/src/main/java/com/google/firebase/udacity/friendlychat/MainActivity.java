@@ -15,11 +15,25 @@
  */
 package com.google.firebase.udacity.friendlychat;
 
+import android.app.ActivityManager;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.v4.os.TraceCompat;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.TextWatcher;
@@ -28,31 +42,38 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import com.bumptech.glide.Glide;
 import com.firebase.ui.auth.AuthUI;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
 import com.google.firebase.remoteconfig.FirebaseRemoteConfig;
 import com.google.firebase.remoteconfig.FirebaseRemoteConfigSettings;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
-import com.google.firebase.storage.UploadTask;
+import com.google.firebase.udacity.friendlychat.core.ChatRoom;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.MessageHistoryPager;
+import com.google.firebase.udacity.friendlychat.core.MessageSender;
+import com.google.firebase.udacity.friendlychat.core.MessageStore;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
+import com.google.firebase.udacity.friendlychat.core.OpenRooms;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -76,6 +97,24 @@ public class MainActivity extends AppCompatActivity {
      */
     public static final String FRIENDLY_MSG_LENGTH_KEY = "friendly_msg_length";
 
+    /**
+     * The default maximum width and height, in pixels, of photos sent to the chat. Larger photos
+     * are scaled down before they are uploaded. This can be modified by Remote Config.
+     */
+    public static final int DEFAULT_PHOTO_MAX_DIMENSION = 1280;
+
+    /** The Remote Config key for the maximum width and height of photos sent to the chat. */
+    public static final String FRIENDLY_PHOTO_MAX_DIMENSION_KEY = "friendly_photo_max_dimension";
+
+    /**
+     * The default JPEG quality, from 0 to 100, that photos are re-encoded with before they are
+     * uploaded. This can be modified by Remote Config.
+     */
+    public static final int DEFAULT_PHOTO_QUALITY = 80;
+
+    /** The Remote Config key for the JPEG quality of photos sent to the chat. */
+    public static final String FRIENDLY_PHOTO_QUALITY_KEY = "friendly_photo_quality";
+
     /**
      * An arbitrary request code to identify the request when the result is returned to the app
      * in onActivityResult(). This is used when we want FirebaseUI's sign-in screens to handle
@@ -90,7 +129,51 @@ public class MainActivity extends AppCompatActivity {
      */
     private static final int RC_PHOTO_PICKER = 2;
 
-    private ListView mMessageListView;
+    /**
+     * The number of messages downloaded when a room is opened, and in every older page fetched
+     * when the user scrolls to the top of the list.
+     */
+    static final int MESSAGES_PAGE_SIZE = 50;
+
+    /** The fewest messages the list keeps around the screen, in pages, see mWindowCapacity. */
+    private static final int MIN_WINDOW_PAGES = 4;
+
+    /** The maximum number of messages shown for a search, the newest matches. */
+    private static final int MAX_SEARCH_RESULTS = 50;
+
+    /** The key the ID of the room being shown is saved under, e.g. across rotations. */
+    private static final String STATE_ROOM_ID = "room_id";
+
+    /** The time from the user being signed in to the first message being shown. */
+    private static final Histogram SIGN_IN_TO_FIRST_MESSAGE_MILLIS =
+            Metrics.getInstance().histogram("sign_in_to_first_message_ms");
+
+    /** The time Remote Config took to fetch, whether it succeeded or not. */
+    private static final Histogram CONFIG_FETCH_MILLIS =
+            Metrics.getInstance().histogram("config_fetch_ms");
+
+    /** The time from the start of onCreate() to the end of it. */
+    private static final Histogram STARTUP_ON_CREATE_MILLIS =
+            Metrics.getInstance().histogram("startup_on_create_ms");
+
+    /** The time from the start of onCreate() to the first frame being drawn. */
+    private static final Histogram STARTUP_FIRST_DRAW_MILLIS =
+            Metrics.getInstance().histogram("startup_first_draw_ms");
+
+    /**
+     * The time from the process being started to the first frame being drawn, for cold starts.
+     * Only recorded on Android 7.0 and later, which report when the process started.
+     */
+    private static final Histogram STARTUP_PROCESS_TO_FIRST_DRAW_MILLIS =
+            Metrics.getInstance().histogram("startup_process_to_first_draw_ms");
+
+    /** The tag the metrics are logged with, see dumpMetrics(). */
+    private static final String METRICS_TAG = "FriendlyChatMetrics";
+
+    private RecyclerView mMessageRecyclerView;
+    private LinearLayoutManager mMessageLayoutManager;
+    private ChatImageLoader mImageLoader;
+    private PhotoPreloader mPhotoPreloader;
     private MessageAdapter mMessageAdapter;
     private ProgressBar mProgressBar;
     private ImageButton mPhotoPickerButton;
@@ -100,14 +183,20 @@ public class MainActivity extends AppCompatActivity {
     private String mUsername;
 
     /**
-     * The access point to the Firebase Realtime Database.
+     * The number of messages of the room the list keeps around the ones on screen. The others are
+     * dropped, and read again when the user scrolls back to them, see ChatRoom#trimWindow(). It
+     * is mMaxWindowCapacity, unless the system is short of memory, see onTrimMemory().
      */
-    private FirebaseDatabase mFirebaseDatabase;
+    private int mWindowCapacity;
+
+    /** The number of messages the heap limit of the device allows the list to keep. */
+    private int mMaxWindowCapacity;
 
     /**
-     * A reference to the "messages" portion of the database.
+     * When the user was signed in with no messages on screen, as a System.nanoTime() value, or 0
+     * once a message has been shown since.
      */
-    private DatabaseReference mMessagesDatabaseReference;
+    private long mSignInNanos;
 
     /**
      * The entry point for all Firebase Authentication actions.
@@ -115,64 +204,248 @@ public class MainActivity extends AppCompatActivity {
     private FirebaseAuth mFirebaseAuth;
     private FirebaseAuth.AuthStateListener mAuthStateListener;
 
+    private final Handler mMainHandler = new Handler();
+
+    /**
+     * The rooms the user has open. They live as long as the process, so a recreated Activity
+     * doesn't need to download their messages again.
+     */
+    private OpenRooms mOpenRooms;
+
+    /**
+     * The room being shown. It holds the loaded messages, the pager fetching older pages when the
+     * user scrolls to the top of the list, and the sender writing new messages to the database.
+     */
+    private ChatRoom mRoom;
+
+    /**
+     * Adds the messages received in mRoom to the list, and removes the deleted ones. Set on the
+     * room while the database read listener is attached, see attachDatabaseReadListener().
+     */
+    private ChatRoom.Observer mRoomObserver;
+
+    /** Updates the rows of sent messages once the database has acknowledged them. */
+    private MessageSender.Listener mSendStateListener;
+
+    /**
+     * Tells the other members of mRoom that the user is there and whether they are typing, while
+     * the database read listener is attached.
+     */
+    private RoomPresence mRoomPresence;
+
+    /** Shows who else is in mRoom, and who is typing, below the room's name. */
+    private RoomPresence.Listener mPresenceListener;
+
+    /**
+     * Whether the device is connected to the database, at {@code .info/connected}, watched while
+     * the database read listener is attached.
+     */
+    private DatabaseReference mConnectedReference;
+
+    /**
+     * Lets mRoom request the pages of messages that failed to load again once the device is back
+     * online. Until then, scrolling doesn't ask for them, see MessageHistoryPager#retry().
+     */
+    private ValueEventListener mConnectedListener;
+
     /**
-     * The entry point for all Firebase Storage actions.
+     * The newest messages of each room from the previous run of the app, kept on disk so they can
+     * be shown before the user is signed in and before anything is downloaded.
      */
-    private FirebaseStorage mFirebaseStorage;
+    private MessageCache mMessageCache;
 
     /**
-     * A reference to the "chat_photos" portion of the storage.
+     * The callback waiting for messages to be read from mMessageCache, or null if none are being
+     * read. The room isn't connected until they have been added to its store, so it knows which
+     * messages it doesn't need to download.
      */
-    private StorageReference mChatPhotosStorageReference;
+    private MessageCache.Callback mPendingCacheLoad;
+
+    /** Whether attachDatabaseReadListener() was called while mPendingCacheLoad was pending. */
+    private boolean mAttachAfterCacheLoad;
 
     /**
-     * A listener that will handle the callback behaviour when the children of any DatabaseReference
-     * are altered. This listener will be attached to mMessagesDatabaseReference. Thus, this listens
-     * to all changes of messages in the database.
+     * The entry point for all Firebase Remote Config actions. Null until it has been set up in
+     * the background after the first frame, see initRemoteConfig(). Until then, the default
+     * values are used.
      */
-    private ChildEventListener mChildEventListener;
+    private volatile FirebaseRemoteConfig mFirebaseRemoteConfig;
 
-    /** The entry point for all Firebase Remote Config actions. */
-    private FirebaseRemoteConfig mFirebaseRemoteConfig;
+    /** Whether this Activity was created as part of starting the process. */
+    private static boolean sColdStart = true;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        final long onCreateStart = System.nanoTime();
+        final boolean coldStart = sColdStart;
+        sColdStart = false;
+        TraceCompat.beginSection("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
         mUsername = ANONYMOUS;
 
-        // Initialize the Firebase components
-
-        // Get an access point to the Firebase Realtime Database
-        mFirebaseDatabase = FirebaseDatabase.getInstance();
+        // Initialize the Firebase components the first screen needs. Remote Config is set up
+        // once the first frame has been drawn, and Storage only once a photo is sent.
 
         // Get an entry point to all Firebase Authentication actions
         mFirebaseAuth = FirebaseAuth.getInstance();
 
-        // Get an entry point to all Firebase Storage actions
-        mFirebaseStorage = FirebaseStorage.getInstance();
-
-        // Get reference to a portion of the database called "messages"
-        mMessagesDatabaseReference = mFirebaseDatabase.getReference().child("messages");
-
-        // Get reference to a portion of the storage called "chat_photos"
-        mChatPhotosStorageReference = mFirebaseStorage.getReference().child("chat_photos");
-
-        // Get an entry point to Firebase Remote Config actions
-        mFirebaseRemoteConfig = FirebaseRemoteConfig.getInstance();
+        // Each room's messages are in their own portion of the database, under "messages". Only
+        // the newest page of them is downloaded up front; older ones are paged in. Picking the
+        // room shown before this Activity was created, e.g. before a rotation, picks up the
+        // messages it had loaded.
+        mOpenRooms = ChatServices.getOpenRooms(this);
+        String roomId = savedInstanceState == null
+                ? ChatServices.DEFAULT_ROOM_ID
+                : savedInstanceState.getString(STATE_ROOM_ID, ChatServices.DEFAULT_ROOM_ID);
+        mRoom = mOpenRooms.open(roomId);
+        setTitle(getRoomName(roomId));
 
         // Initialize references to views
         mProgressBar = (ProgressBar) findViewById(R.id.progressBar);
-        mMessageListView = (ListView) findViewById(R.id.messageListView);
+        mMessageRecyclerView = (RecyclerView) findViewById(R.id.messageRecyclerView);
         mPhotoPickerButton = (ImageButton) findViewById(R.id.photoPickerButton);
         mMessageEditText = (EditText) findViewById(R.id.messageEditText);
         mSendButton = (Button) findViewById(R.id.sendButton);
 
-        // Initialize message ListView and its adapter
-        List<FriendlyMessage> friendlyMessages = new ArrayList<>();
-        mMessageAdapter = new MessageAdapter(this, R.layout.item_message, friendlyMessages);
-        mMessageListView.setAdapter(mMessageAdapter);
+        // Initialize message RecyclerView and its adapter. Like a chat transcript, the list is
+        // laid out from the bottom, so the newest messages are shown first.
+        mImageLoader = new ChatImageLoader();
+        mMessageAdapter = new MessageAdapter(mRoom.getStore(), mImageLoader);
+        mMessageLayoutManager = new LinearLayoutManager(this);
+        mMessageLayoutManager.setStackFromEnd(true);
+        mMessageRecyclerView.setLayoutManager(mMessageLayoutManager);
+        mMessageRecyclerView.setAdapter(mMessageAdapter);
+
+        // Photos are decoded at the width of the rows, which is only known once the list has
+        // been laid out. Rows are indented by the margin in item_message.
+        final int rowMargin = getResources().getDimensionPixelSize(
+                R.dimen.activity_horizontal_margin);
+        mMessageRecyclerView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                mImageLoader.setRowWidth(right - left - v.getPaddingLeft() - v.getPaddingRight()
+                        - rowMargin);
+            }
+        });
+
+        // Download and decode the photos of the rows about to scroll into view
+        mPhotoPreloader = new PhotoPreloader(this, mMessageLayoutManager, mMessageAdapter,
+                mImageLoader, getResources().getInteger(R.integer.image_preload_rows));
+        mMessageRecyclerView.addOnScrollListener(mPhotoPreloader);
+
+        // Long sessions in busy rooms would otherwise keep every message received, so the list
+        // only keeps a window of them around the screen, sized to the heap limit like Glide's
+        // caches, see ChatGlideModule
+        ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        mMaxWindowCapacity = Math.max(MIN_WINDOW_PAGES * MESSAGES_PAGE_SIZE,
+                activityManager.getMemoryClass()
+                        * getResources().getInteger(R.integer.message_window_per_heap_mb));
+        mWindowCapacity = mMaxWindowCapacity;
+
+        // New messages reach the adapter in batches, one per frame at most. The room has
+        // already written them to the disk cache for the next cold start.
+        mMessageCache = MessageCache.getInstance(this);
+        mRoomObserver = new ChatRoom.Observer() {
+            @Override
+            public void onMessagesReceived(List<FriendlyMessage> messages) {
+                addNewMessages(messages);
+            }
+
+            // Each message is found by its key and removed with a single item notification
+            @Override
+            public void onMessagesRemoved(List<String> keys) {
+                for (String key : keys) {
+                    mMessageAdapter.remove(key);
+                }
+            }
+
+            @Override
+            public void onHistoryReset() {
+                mMessageAdapter.clear();
+                mPhotoPreloader.reset();
+            }
+
+            // Messages far from the screen are dropped along with their text layouts. Their
+            // photos left Glide's active resources when their rows were recycled.
+            @Override
+            public void onMessagesEvicted(int start, int end) {
+                List<String> keys = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    keys.add(mRoom.getStore().getKey(i));
+                }
+                MessageTextLayouts.getInstance().remove(keys);
+                mMessageAdapter.removeRange(start, end);
+                mPhotoPreloader.reset();
+            }
+        };
+
+        // Update the rows of sent messages once the database has acknowledged them
+        mSendStateListener = new MessageSender.Listener() {
+            @Override
+            public void onSendStateChanged(List<String> keys) {
+                mMessageAdapter.notifyMessagesChanged(keys);
+            }
+        };
+        mRoom.getMessageSender().setListener(mSendStateListener);
+
+        // Messages that failed to be sent stay in the list until the user sends them again or
+        // deletes them
+        mMessageAdapter.setOnFailedMessageClickListener(
+                new MessageAdapter.OnFailedMessageClickListener() {
+                    @Override
+                    public void onFailedMessageClick(String key) {
+                        showFailedMessageOptions(key);
+                    }
+                });
+
+        mConnectedReference = FirebaseDatabase.getInstance().getReference(".info/connected");
+        mConnectedListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                if (Boolean.TRUE.equals(dataSnapshot.getValue(Boolean.class))) {
+                    mRoom.getHistoryPager().retry();
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+            }
+        };
+
+        mRoomPresence = ChatServices.getRoomPresence();
+        mPresenceListener = new RoomPresence.Listener() {
+            @Override
+            public void onPresenceChanged(List<String> typingNames, int presentCount) {
+                showPresence(typingNames, presentCount);
+            }
+        };
+
+        // On a cold start, show the messages cached by the previous run right away. Sign-in is
+        // persisted on the device, so we already know whether the user may see them.
+        if (mRoom.getStore().isEmpty() && mFirebaseAuth.getCurrentUser() != null) {
+            loadCachedMessages();
+        }
+
+        // Load the previous page of messages when the user scrolls to the top of the list, and
+        // the next one when they scroll to the bottom after newer messages were dropped
+        mMessageRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int itemCount = mMessageAdapter.getItemCount();
+                if (itemCount > 0
+                        && mMessageLayoutManager.findFirstVisibleItemPosition() == 0
+                        && mRoom.getHistoryPager().canLoadOlder()) {
+                    loadOlderMessages();
+                } else if (itemCount > 0
+                        && mMessageLayoutManager.findLastVisibleItemPosition() == itemCount - 1
+                        && mRoom.canLoadNewer()) {
+                    loadNewerMessages();
+                }
+            }
+        });
 
         // Initialize progress bar
         mProgressBar.setVisibility(ProgressBar.INVISIBLE);
@@ -202,6 +475,8 @@ public class MainActivity extends AppCompatActivity {
                 } else {
                     mSendButton.setEnabled(false);
                 }
+                // Throttled, so this doesn't write to the database on every keystroke
+                mRoomPresence.onTextChanged(charSequence.toString().trim().length() > 0);
             }
 
             @Override
@@ -218,9 +493,15 @@ public class MainActivity extends AppCompatActivity {
                 // username and the photo URL
                 FriendlyMessage friendlyMessage =
                         new FriendlyMessage(mMessageEditText.getText().toString(), mUsername, null);
-                // Creates an auto-generated child location of messages, along with a key. Then we
-                // attempt to add the FriendlyMessage as the value for this key in the database.
-                mMessagesDatabaseReference.push().setValue(friendlyMessage);
+                // The message goes after the newest one, so if the list no longer reaches it,
+                // start over from the newest page
+                mRoom.jumpToNewest();
+                // Gives the message an auto-generated key and queues it to be written to the
+                // database along with any other messages sent in the next few milliseconds. The
+                // message is shown right away rather than when the database sends it back.
+                mMessageAdapter.add(mRoom.getMessageSender().send(friendlyMessage));
+                mMessageRecyclerView.scrollToPosition(mMessageAdapter.getItemCount() - 1);
+                mRoomPresence.onMessageSent();
 
                 // Clear input box
                 mMessageEditText.setText("");
@@ -263,39 +544,132 @@ public class MainActivity extends AppCompatActivity {
             }
         };
 
-        // Create Remote Config Setting to enable developer mode.
-        // Fetching configs from the server is normally limited to 5 requests per
-        // hour. Enabling developer mode allows many more requests to be made per
-        // hour, so developers can test different config values during development.
-        FirebaseRemoteConfigSettings configSettings = new FirebaseRemoteConfigSettings.Builder()
-                .setDeveloperModeEnabled(BuildConfig.DEBUG)
-                .build();
-        mFirebaseRemoteConfig.setConfigSettings(configSettings);
+        // Work the first frame doesn't need waits until it has been drawn
+        runAfterFirstDraw(new Runnable() {
+            @Override
+            public void run() {
+                STARTUP_FIRST_DRAW_MILLIS.recordMillisSince(onCreateStart);
+                if (coldStart && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    STARTUP_PROCESS_TO_FIRST_DRAW_MILLIS.record(
+                            SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime());
+                }
+                initRemoteConfig();
+
+                // Continue any photo uploads that were interrupted when the app was last killed
+                PhotoUploadService.resume(MainActivity.this);
+            }
+        });
+
+        TraceCompat.endSection();
+        STARTUP_ON_CREATE_MILLIS.recordMillisSince(onCreateStart);
+    }
+
+    /**
+     * Runs the task on the main thread once the first frame of this Activity has been drawn.
+     */
+    private void runAfterFirstDraw(final Runnable task) {
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        // Posted while the frame is being drawn, so it runs once it is done
+                        mMainHandler.post(task);
+                        return true;
+                    }
+                });
+    }
 
-        // Create a map of parameter keys for default values. These default config values are
-        // what will be used by the app, unless they are changed via the Remote Config service
-        // in the Firebase Console
-        Map<String, Object> defaultConfigMap = new HashMap<>();
-        defaultConfigMap.put(FRIENDLY_MSG_LENGTH_KEY, DEFAULT_MSG_LENGTH_LIMIT);
-        mFirebaseRemoteConfig.setDefaults(defaultConfigMap);
+    /**
+     * Sets up Remote Config on a background thread, since its first use reads the values cached
+     * by the previous run from disk, and then fetches the current values.
+     */
+    private void initRemoteConfig() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                TraceCompat.beginSection("MainActivity.initRemoteConfig");
+                FirebaseRemoteConfig remoteConfig = FirebaseRemoteConfig.getInstance();
+
+                // Create Remote Config Setting to enable developer mode.
+                // Fetching configs from the server is normally limited to 5 requests per
+                // hour. Enabling developer mode allows many more requests to be made per
+                // hour, so developers can test different config values during development.
+                FirebaseRemoteConfigSettings configSettings =
+                        new FirebaseRemoteConfigSettings.Builder()
+                                .setDeveloperModeEnabled(BuildConfig.DEBUG)
+                                .build();
+                remoteConfig.setConfigSettings(configSettings);
+
+                // Create a map of parameter keys for default values. These default config values
+                // are what will be used by the app, unless they are changed via the Remote Config
+                // service in the Firebase Console
+                Map<String, Object> defaultConfigMap = new HashMap<>();
+                defaultConfigMap.put(FRIENDLY_MSG_LENGTH_KEY, DEFAULT_MSG_LENGTH_LIMIT);
+                defaultConfigMap.put(FRIENDLY_PHOTO_MAX_DIMENSION_KEY, DEFAULT_PHOTO_MAX_DIMENSION);
+                defaultConfigMap.put(FRIENDLY_PHOTO_QUALITY_KEY, DEFAULT_PHOTO_QUALITY);
+                remoteConfig.setDefaults(defaultConfigMap);
+
+                mFirebaseRemoteConfig = remoteConfig;
+                TraceCompat.endSection();
+
+                // The fetch itself is asynchronous, and its listeners run on the main thread
+                fetchConfig();
+            }
+        });
+    }
 
-        fetchConfig();
+    /**
+     * Returns the Remote Config value for the key, or {@code defaultValue} if Remote Config
+     * hasn't been set up yet.
+     */
+    private long getConfigLong(String key, long defaultValue) {
+        FirebaseRemoteConfig remoteConfig = mFirebaseRemoteConfig;
+        return remoteConfig == null ? defaultValue : remoteConfig.getLong(key);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.main_menu, menu);
+
+        final MenuItem searchItem = menu.findItem(R.id.search_menu);
+        final SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                searchMessages(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
+        // Only debug builds can dump the metrics
+        menu.findItem(R.id.dump_metrics_menu).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
+            case R.id.rooms_menu:
+                showRoomPicker();
+                return true;
             case R.id.sign_out_menu:
-                // User pressed sign out option in menu
+                // User pressed sign out option in menu. Write the messages still waiting to be
+                // sent while the user is allowed to.
+                mOpenRooms.flushAll();
                 AuthUI.getInstance().signOut(this);
                 return true;
+            case R.id.dump_metrics_menu:
+                dumpMetrics();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -327,36 +701,16 @@ public class MainActivity extends AppCompatActivity {
                     // Get the URI of the selected image on the device
                     Uri selectedImageUri = data.getData();
 
-                    // Get a reference to the "chat_photos" section of the Firebase Storage, then
-                    // make a child which will be named after the last path segment of the URI.
-                    // For example, if we have a URI like content://local_images/foo/4, the last
-                    // path segment will be 4. This will be the filename we'll be saving our image
-                    // as at this reference in the storage.
-                    StorageReference photoRef =
-                            mChatPhotosStorageReference.child(selectedImageUri.getLastPathSegment());
-
-                    // Asynchronously attempt to upload the file at the URI on the device to the
-                    // StorageReference we just defined
-                    UploadTask uploadTask = photoRef.putFile(selectedImageUri);
-
-                    // Register observers to listen for when the download is done
-                    uploadTask.addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
-                        @Override
-                        public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
-                            // When the image has successfully uploaded, get its download URL in the
-                            // Firebase Storage
-                            @SuppressWarnings("VisibleForTests") Uri downloadUrl =
-                                    taskSnapshot.getDownloadUrl();
-
-                            // Add the download URL in the Firebase Storage to the FriendlyMessage
-                            // that we'll store in the database
-                            if (downloadUrl != null) {
-                                FriendlyMessage friendlyMessage =
-                                        new FriendlyMessage(null, mUsername, downloadUrl.toString());
-                                mMessagesDatabaseReference.push().setValue(friendlyMessage);
-                            }
-                        }
-                    });
+                    // The photo is shrunk, uploaded and posted by a background service, which
+                    // keeps going if this Activity is destroyed. The message's push key is chosen
+                    // now, so the message is posted exactly once however often the upload is
+                    // retried.
+                    PhotoUploadService.enqueue(this, selectedImageUri, mUsername,
+                            mRoom.getRoomId(), mRoom.getTransport().newKey(),
+                            (int) getConfigLong(FRIENDLY_PHOTO_MAX_DIMENSION_KEY,
+                                    DEFAULT_PHOTO_MAX_DIMENSION),
+                            (int) getConfigLong(FRIENDLY_PHOTO_QUALITY_KEY,
+                                    DEFAULT_PHOTO_QUALITY));
             }
         }
     }
@@ -364,6 +718,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        // Memory was short when the window was last shrunk, see onTrimMemory(), which is called
+        // again if it still is
+        mWindowCapacity = mMaxWindowCapacity;
         // We need to be listening for changes in the sign-in state when the Activity is resumed
         mFirebaseAuth.addAuthStateListener(mAuthStateListener);
     }
@@ -378,9 +735,71 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // Needs to be added here, so that when an Activity is destroyed in a way that has nothing
-        // to do with signing-out, such as an app-rotation, the listener and adapter are cleaned up.
-        mMessageAdapter.clear();
+        // to do with signing-out, such as an app-rotation, the listener is cleaned up. The loaded
+        // messages stay in the room, and its listener resumes after the newest of them.
+        mRoom.getHistoryPager().cancel();
         detachDatabaseReadListener();
+
+        if (BuildConfig.DEBUG) {
+            MessageStore store = mRoom.getStore();
+            Log.d(TAG, store.size() + " messages in memory, about "
+                    + store.estimateFootprintBytes() / 1024 + " KiB, in " + mOpenRooms.size()
+                    + " open rooms");
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Give back decoded photos when the system is short of memory, most of them once the
+        // chat is in the background
+        Glide.get(this).trimMemory(level);
+
+        // Keep fewer messages around the screen while memory is short, and only the newest page
+        // of each room once the chat is in the background. Dropped messages are read again when
+        // the user scrolls back to them.
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            MessageTextLayouts.getInstance().clear();
+            mOpenRooms.trimAll(MESSAGES_PAGE_SIZE);
+            // The room on screen isn't observed while the chat is in the background
+            mMessageAdapter.notifyDataSetChanged();
+            mPhotoPreloader.reset();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            MessageTextLayouts.getInstance().clear();
+            shrinkMessageWindow(mMaxWindowCapacity / 4);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            shrinkMessageWindow(mMaxWindowCapacity / 2);
+        }
+    }
+
+    /**
+     * Lowers the number of messages the list keeps around the screen, and drops the ones beyond
+     * it now.
+     */
+    private void shrinkMessageWindow(int capacity) {
+        mWindowCapacity = Math.min(mWindowCapacity,
+                Math.max(MIN_WINDOW_PAGES * MESSAGES_PAGE_SIZE, capacity));
+        mRoom.trimWindow(mMessageLayoutManager.findFirstVisibleItemPosition(),
+                mMessageLayoutManager.findLastVisibleItemPosition(), mWindowCapacity);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        Glide.get(this).clearMemory();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_ROOM_ID, mRoom.getRoomId());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPendingCacheLoad = null;
+        mRoom.getMessageSender().setListener(null);
     }
 
     /**
@@ -390,6 +809,10 @@ public class MainActivity extends AppCompatActivity {
     private void onSignedInInitialize(String displayName) {
         // Ensures that all new messages sent attach the signed-in user's display name
         mUsername = displayName;
+        // Measure how long the user waits for the chat to fill, unless it already has
+        if (mRoom.getStore().isEmpty() && mSignInNanos == 0) {
+            mSignInNanos = System.nanoTime();
+        }
         // We should only start reading messages when signed-in
         attachDatabaseReadListener();
     }
@@ -403,76 +826,390 @@ public class MainActivity extends AppCompatActivity {
         // The user is no longer signed-in, so the name should be removed from the field storing
         // the
         mUsername = ANONYMOUS;
+        mSignInNanos = 0;
 
         // User who isn't signed in shouldn't see messages. No need to be reading messages when
-        // signed in either.
-        mMessageAdapter.clear();
+        // signed in either. Every room is closed, and the one being shown is opened again, empty.
+        mPendingCacheLoad = null;
         detachDatabaseReadListener();
+        mMessageAdapter.clear();
+        mOpenRooms.closeAll();
+        mMessageCache.clear();
+        showRoom(mRoom.getRoomId());
     }
 
     /**
-     * Creates and attaches a listener to the "messages" portion of the Firebase Realtime Database,
-     * if one doesn't already exist.
+     * Shows the messages of the current room as they are received, and connects the room to the
+     * Firebase Realtime Database if it isn't already. A room that hasn't loaded anything listens
+     * to its newest page of messages. Older messages are only downloaded when the user scrolls up
+     * to them, see loadOlderMessages().
+     *
+     * If messages have already been loaded, the room listens from the newest of them instead, so
+     * only messages sent since then are downloaded.
      */
     private void attachDatabaseReadListener() {
-        // If there's already a listener reading the database at child "messages", we don't need to
-        // continue. We only need one listener at a time. Finish early.
-        if (mChildEventListener != null) {
+        // Wait for the cached messages, so we know where the download should start from. This
+        // method is called again once they have been added.
+        if (mPendingCacheLoad != null) {
+            mAttachAfterCacheLoad = true;
             return;
         }
 
-        // Define the behaviour for the listener which will be attached to the "messages"
-        // DatabaseReference
-        mChildEventListener = new ChildEventListener() {
-            @Override
-            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-                // The value we get from DataSnapshot is an object holding the message from the
-                // database.
-                //
-                // We can deserialize it to a FriendlyMessage object because the class
-                // has the exact same fields found in the object returned from the database.
-                FriendlyMessage friendlyMessage = dataSnapshot.getValue(FriendlyMessage.class);
-
-                // Add the FriendlyMessage to the adapter to be displayed.
-                mMessageAdapter.add(friendlyMessage);
+        mRoom.setObserver(mRoomObserver);
+        mRoom.connect();
+        // Added again for every attach, so it has to be removed first
+        mConnectedReference.removeEventListener(mConnectedListener);
+        mConnectedReference.addValueEventListener(mConnectedListener);
+
+        FirebaseUser user = mFirebaseAuth.getCurrentUser();
+        if (user != null) {
+            mRoomPresence.join(mRoom.getRoomId(), user.getUid(), mUsername, mPresenceListener);
+        }
+    }
+
+    /**
+     * Stops showing the messages received in the current room, and disconnects every open room
+     * from the Firebase Realtime Database. The rooms keep the messages loaded so far.
+     */
+    private void detachDatabaseReadListener() {
+        mAttachAfterCacheLoad = false;
+        mRoom.setObserver(null);
+        mOpenRooms.disconnectAll();
+        mConnectedReference.removeEventListener(mConnectedListener);
+        mRoomPresence.leave();
+        showPresence(Collections.<String>emptyList(), 0);
+    }
+
+    /**
+     * Lets the user pick the room to show from the rooms of the app.
+     */
+    private void showRoomPicker() {
+        final String[] roomIds = getResources().getStringArray(R.array.room_ids);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.rooms)
+                .setItems(R.array.room_names, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        switchToRoom(roomIds[which]);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Shows another room. The room being left stays open, listening to its newest messages in
+     * the background, until it is one of the least recently used rooms, see {@link OpenRooms}.
+     */
+    private void switchToRoom(String roomId) {
+        if (roomId.equals(mRoom.getRoomId())) {
+            return;
+        }
+        // The room being left stays connected, but no longer shows its messages
+        mPendingCacheLoad = null;
+        mAttachAfterCacheLoad = false;
+        mRoom.setObserver(null);
+        mRoomPresence.leave();
+        showPresence(Collections.<String>emptyList(), 0);
+        showRoom(roomId);
+        if (mFirebaseAuth.getCurrentUser() != null) {
+            attachDatabaseReadListener();
+        }
+    }
+
+    /**
+     * Lets the user send a message that failed to be sent again, with the next batch, or delete
+     * it from the list.
+     */
+    private void showFailedMessageOptions(final String key) {
+        final ChatRoom room = mRoom;
+        new AlertDialog.Builder(this)
+                .setItems(new CharSequence[]{
+                        getString(R.string.message_resend),
+                        getString(R.string.message_delete)
+                }, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // The user may have switched rooms while the dialog was shown
+                        if (room != mRoom) {
+                            return;
+                        }
+                        if (which == 0) {
+                            if (room.getMessageSender().resend(key)) {
+                                mMessageAdapter.notifyMessagesChanged(
+                                        Collections.singletonList(key));
+                            }
+                        } else if (room.getMessageSender().discard(key)) {
+                            MessageTextLayouts.getInstance().remove(
+                                    Collections.singletonList(key));
+                            mMessageAdapter.remove(key);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Opens a room and shows the messages it has loaded so far, or those cached on disk if it
+     * hasn't loaded any. Doesn't connect the room.
+     */
+    private void showRoom(String roomId) {
+        mRoom.getHistoryPager().cancel();
+        mRoom.getMessageSender().setListener(null);
+
+        mRoom = mOpenRooms.open(roomId);
+        mRoom.getMessageSender().setListener(mSendStateListener);
+        mMessageAdapter.setMessageStore(mRoom.getStore());
+        mPhotoPreloader.reset();
+        setTitle(getRoomName(roomId));
+        mMessageRecyclerView.scrollToPosition(Math.max(0, mMessageAdapter.getItemCount() - 1));
+
+        if (mRoom.getStore().isEmpty() && !mRoom.isConnected()
+                && mFirebaseAuth.getCurrentUser() != null) {
+            loadCachedMessages();
+        }
+    }
+
+    /**
+     * Shows who else is in the room below its name: who is typing, or else how many others are
+     * there.
+     */
+    private void showPresence(List<String> typingNames, int presentCount) {
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar == null) {
+            return;
+        }
+        CharSequence subtitle = null;
+        if (typingNames.size() == 1) {
+            subtitle = getString(R.string.presence_typing_one, typingNames.get(0));
+        } else if (typingNames.size() == 2) {
+            subtitle = getString(R.string.presence_typing_two, typingNames.get(0),
+                    typingNames.get(1));
+        } else if (typingNames.size() > 2) {
+            subtitle = getString(R.string.presence_typing_many, typingNames.size());
+        } else if (presentCount > 0) {
+            subtitle = getResources().getQuantityString(R.plurals.presence_others_here,
+                    presentCount, presentCount);
+        }
+        actionBar.setSubtitle(subtitle);
+    }
+
+    /**
+     * Returns the name of a room to show to the user.
+     */
+    private String getRoomName(String roomId) {
+        String[] roomIds = getResources().getStringArray(R.array.room_ids);
+        String[] roomNames = getResources().getStringArray(R.array.room_names);
+        for (int i = 0; i < roomIds.length; i++) {
+            if (roomIds[i].equals(roomId)) {
+                return roomNames[i];
             }
+        }
+        return roomId;
+    }
 
+    /**
+     * Reads the newest page of messages cached on disk and shows them, then attaches the database
+     * listener if it was waiting for them. The listener then only downloads messages newer than
+     * the cached ones.
+     */
+    private void loadCachedMessages() {
+        final ChatRoom room = mRoom;
+        mPendingCacheLoad = new MessageCache.Callback() {
             @Override
-            public void onChildChanged(DataSnapshot dataSnapshot, String s) {}
+            public void onMessagesLoaded(List<FriendlyMessage> messages) {
+                // Ignore the result if the Activity was destroyed, the user signed out or switched
+                // rooms meanwhile
+                if (mPendingCacheLoad != this) {
+                    return;
+                }
+                mPendingCacheLoad = null;
 
-            @Override
-            public void onChildRemoved(DataSnapshot dataSnapshot) {}
+                if (room.getStore().isEmpty() && !messages.isEmpty()) {
+                    addNewMessages(messages);
+                    room.getHistoryPager().restore(room.getStore().getOldestKey(), true);
+                }
+
+                if (mAttachAfterCacheLoad) {
+                    mAttachAfterCacheLoad = false;
+                    attachDatabaseReadListener();
+                }
+            }
+        };
+        mMessageCache.loadNewest(room.getRoomId(), MESSAGES_PAGE_SIZE, mPendingCacheLoad);
+    }
 
+    /**
+     * Fetches the page of messages older than the oldest one on screen and adds it to the top of
+     * the list, keeping the messages the user is looking at in place.
+     */
+    private void loadOlderMessages() {
+        mRoom.getHistoryPager().loadOlder(new MessageHistoryPager.Callback() {
             @Override
-            public void onChildMoved(DataSnapshot dataSnapshot, String s) {}
+            public void onPageLoaded(List<FriendlyMessage> olderMessages, boolean hasMore) {
+                mRoom.getStore().setHasMoreHistory(hasMore);
+                if (olderMessages.isEmpty()) {
+                    return;
+                }
+
+                // The new rows are above the screen, so their text can be laid out in the
+                // background before the user scrolls up to them
+                MessageTextLayouts.getInstance().prepareAll(olderMessages);
+                // Older pages aren't cached, but they can be searched
+                mMessageCache.index(mRoom.getRoomId(), olderMessages);
+
+                // Remember which message is at the top of the screen, and how far it is scrolled
+                int firstVisible = mMessageLayoutManager.findFirstVisibleItemPosition();
+                int lastVisible = mMessageLayoutManager.findLastVisibleItemPosition();
+                View firstView = mMessageLayoutManager.findViewByPosition(firstVisible);
+                int top = firstView == null ? 0 : firstView.getTop();
 
+                // Being older than every loaded message, they are inserted at the top
+                int added = mMessageAdapter.addAll(olderMessages);
+                // which moves every row the preloader has seen
+                mPhotoPreloader.reset();
+
+                // Scroll back to the message that was at the top before the page was inserted
+                mMessageLayoutManager.scrollToPositionWithOffset(firstVisible + added, top);
+
+                // Drop the newest messages if the list has grown beyond its window
+                mRoom.trimWindow(firstVisible + added, lastVisible + added, mWindowCapacity);
+            }
+        });
+    }
+
+    /**
+     * Fetches the page of messages newer than the newest one in the list, after newer messages
+     * were dropped from it, and adds it to the bottom of the list. The messages on screen stay in
+     * place.
+     */
+    private void loadNewerMessages() {
+        mRoom.loadNewer(new MessageHistoryPager.Callback() {
             @Override
-            public void onCancelled(DatabaseError databaseError) {}
-        };
+            public void onPageLoaded(List<FriendlyMessage> newerMessages, boolean hasMore) {
+                if (newerMessages.isEmpty()) {
+                    return;
+                }
+                MessageTextLayouts.getInstance().prepareAll(newerMessages);
+                mMessageAdapter.addAll(newerMessages);
 
-        mMessagesDatabaseReference.addChildEventListener(mChildEventListener);
+                // Drop the oldest messages if the list has grown beyond its window
+                mRoom.trimWindow(mMessageLayoutManager.findFirstVisibleItemPosition(),
+                        mMessageLayoutManager.findLastVisibleItemPosition(), mWindowCapacity);
+            }
+        });
     }
 
     /**
-     * Detaches the listener attached to the "messages" node of the Firebase Realtime Database, if
-     * one exists.
+     * Adds newly received messages to the list, usually at the end. If the user was looking at the
+     * newest message, the list follows the conversation and scrolls down to the new ones.
      */
-    private void detachDatabaseReadListener() {
-        // If there's no listener reading the database at child "messages", we don't need to
-        // continue. Finish early.
-        if (mChildEventListener == null) {
+    private void addNewMessages(List<FriendlyMessage> newMessages) {
+        int lastPosition = mMessageAdapter.getItemCount() - 1;
+        boolean atBottom = lastPosition < 0
+                || mMessageLayoutManager.findLastVisibleItemPosition() >= lastPosition;
+
+        mMessageAdapter.addAll(newMessages);
+
+        // Drop the messages that no longer fit in the window, the oldest ones if the list follows
+        // the conversation
+        if (atBottom) {
+            mMessageRecyclerView.scrollToPosition(mMessageAdapter.getItemCount() - 1);
+            mRoom.trimToNewest(mWindowCapacity);
+        } else {
+            mRoom.trimWindow(mMessageLayoutManager.findFirstVisibleItemPosition(),
+                    mMessageLayoutManager.findLastVisibleItemPosition(), mWindowCapacity);
+        }
+
+        if (mSignInNanos != 0 && !mRoom.getStore().isEmpty()) {
+            SIGN_IN_TO_FIRST_MESSAGE_MILLIS.recordMillisSince(mSignInNanos);
+            mSignInNanos = 0;
+        }
+    }
+
+    /**
+     * Searches the messages of the room being shown that this device has received, and shows the
+     * newest matches.
+     */
+    private void searchMessages(String query) {
+        final ChatRoom room = mRoom;
+        mMessageCache.search(room.getRoomId(), query, MAX_SEARCH_RESULTS,
+                new MessageCache.SearchCallback() {
+                    @Override
+                    public void onSearchResults(List<FriendlyMessage> results) {
+                        // The user may have switched rooms or left while searching
+                        if (room == mRoom && !isFinishing()) {
+                            showSearchResults(results);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Lists the results of a search. Picking one scrolls to it, if it is loaded.
+     *
+     * @param results the matching messages, newest first
+     */
+    private void showSearchResults(final List<FriendlyMessage> results) {
+        if (results.isEmpty()) {
+            Toast.makeText(this, R.string.search_no_results, Toast.LENGTH_SHORT).show();
             return;
         }
+        CharSequence[] items = new CharSequence[results.size()];
+        for (int i = 0; i < items.length; i++) {
+            FriendlyMessage message = results.get(i);
+            String text = message.getText() != null
+                    ? message.getText() : getString(R.string.search_result_photo);
+            items[i] = message.getName() + ": " + text;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.search)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        int position = mRoom.getStore().indexOf(results.get(which).getKey());
+                        if (position >= 0) {
+                            mMessageLayoutManager.scrollToPositionWithOffset(position, 0);
+                        } else {
+                            Toast.makeText(MainActivity.this, R.string.search_result_not_loaded,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                })
+                .show();
+    }
 
-        // Remove the listener reading the database at child "messages"
-        mMessagesDatabaseReference.removeEventListener(mChildEventListener);
-        mChildEventListener = null;
+    /**
+     * Logs every performance metric recorded so far as a single JSON object, tagged with the
+     * device and app version so dumps from different devices and releases can be compared. Read
+     * it with {@code adb logcat -s FriendlyChatMetrics}.
+     */
+    private void dumpMetrics() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("app_version", BuildConfig.VERSION_NAME);
+        tags.put("manufacturer", Build.MANUFACTURER);
+        tags.put("model", Build.MODEL);
+        tags.put("sdk", String.valueOf(Build.VERSION.SDK_INT));
+        tags.put("cores", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        tags.put("max_heap_mb", String.valueOf(Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+        String json = Metrics.getInstance().toJson(tags);
+
+        // Logcat truncates long lines, so long dumps are split into numbered chunks
+        int chunkLength = 3000;
+        int chunkCount = (json.length() + chunkLength - 1) / chunkLength;
+        for (int i = 0; i < chunkCount; i++) {
+            String chunk = json.substring(i * chunkLength,
+                    Math.min(json.length(), (i + 1) * chunkLength));
+            Log.i(METRICS_TAG, chunkCount == 1 ? chunk : (i + 1) + "/" + chunkCount + " " + chunk);
+        }
+        Toast.makeText(this, R.string.metrics_dumped, Toast.LENGTH_SHORT).show();
     }
 
     /**
      * Fetches the parameter values for the app from the Firebase project, as they were entered
      * into the Firebase Console. Handles both successful and failed fetch cases. Applies the
      * fetched parameter values (if any) to the app.
+     *
+     * Called on a background thread. The fetch's listeners run on the main thread.
      */
     private void fetchConfig() {
         // If developer mode is enabled, we should reduce cacheExpiration to 0 so that each fetch
@@ -481,6 +1218,7 @@ public class MainActivity extends AppCompatActivity {
         // normally limited to 5 requests per hour, thus we need to be careful about how many
         // configs we do in release builds. Developer mode allows many more configs, thus we can
         // fetch immediately.
+        final long fetchStart = System.nanoTime();
         long cacheExpiration = 3600; // 1 hour in seconds
         boolean developerMode = mFirebaseRemoteConfig
                 .getInfo()
@@ -499,6 +1237,8 @@ public class MainActivity extends AppCompatActivity {
                 .addOnSuccessListener(new OnSuccessListener<Void>() {
                     @Override
                     public void onSuccess(Void aVoid) {
+                        CONFIG_FETCH_MILLIS.recordMillisSince(fetchStart);
+
                         // Copy the fetched config values (if any) to the FirebaseRemoteConfig, thus
                         // making these fetched config values available via FirebaseRemoteConfig
                         // get<type> methods, e.g., getLong(), getString().
@@ -514,6 +1254,8 @@ public class MainActivity extends AppCompatActivity {
                 .addOnFailureListener(new OnFailureListener() {
                     @Override
                     public void onFailure(@NonNull Exception e) {
+                        CONFIG_FETCH_MILLIS.recordMillisSince(fetchStart);
+
                         // An error occurred when fetching the config.
                         Log.w(TAG, "Error fetching config", e);
 
@@ -1,48 +1,304 @@
 package com.google.firebase.udacity.friendlychat;
 
-import android.app.Activity;
-import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.MessageSender;
+import com.google.firebase.udacity.friendlychat.core.MessageStore;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
 
+import java.util.Collections;
 import java.util.List;
 
-public class MessageAdapter extends ArrayAdapter<FriendlyMessage> {
-    public MessageAdapter(Context context, int resource, List<FriendlyMessage> objects) {
-        super(context, resource, objects);
+/**
+ * Binds the messages in a {@link MessageStore} to the rows of the message RecyclerView.
+ *
+ * Every change to the store is reported to the RecyclerView as a range of inserted, removed or
+ * changed items, so adding a batch of messages only binds the new rows instead of every visible
+ * one. Item IDs are derived from the message push keys, so they stay stable while the list grows.
+ *
+ * Messages sent from this device are shown as soon as they are sent. Until the database has
+ * acknowledged them, their rows say so, see {@link MessageStore#getSendState(String)}. Tapping the
+ * row of a message that failed to be sent lets the user send it again or delete it, see
+ * {@link OnFailedMessageClickListener}.
+ */
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
+
+    private static final Histogram BIND_MICROS = Metrics.getInstance().histogram("message_bind_us");
+
+    /**
+     * Notified when the user taps the row of a message that failed to be sent.
+     */
+    public interface OnFailedMessageClickListener {
+        /**
+         * @param key the push key of the message, see {@link MessageSender#resend} and
+         *            {@link MessageSender#discard}
+         */
+        void onFailedMessageClick(String key);
     }
 
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        if (convertView == null) {
-            convertView = ((Activity) getContext()).getLayoutInflater().inflate(R.layout.item_message, parent, false);
+    private MessageStore mMessageStore;
+    private final ChatImageLoader mImageLoader;
+    private OnFailedMessageClickListener mOnFailedMessageClickListener;
+
+    public MessageAdapter(MessageStore messageStore, ChatImageLoader imageLoader) {
+        mMessageStore = messageStore;
+        mImageLoader = imageLoader;
+        setHasStableIds(true);
+    }
+
+    public void setOnFailedMessageClickListener(OnFailedMessageClickListener listener) {
+        mOnFailedMessageClickListener = listener;
+    }
+
+    /**
+     * Holds the views of a single message row, so they are only looked up once per row instead of
+     * every time the row is bound.
+     */
+    static class MessageViewHolder extends RecyclerView.ViewHolder {
+        final PhotoImageView photoImageView;
+        final MessageTextView messageTextView;
+        final TextView authorTextView;
+        final TextView statusTextView;
+
+        MessageViewHolder(View itemView) {
+            super(itemView);
+            photoImageView = (PhotoImageView) itemView.findViewById(R.id.photoImageView);
+            messageTextView = (MessageTextView) itemView.findViewById(R.id.messageTextView);
+            authorTextView = (TextView) itemView.findViewById(R.id.nameTextView);
+            statusTextView = (TextView) itemView.findViewById(R.id.statusTextView);
         }
+    }
 
-        ImageView photoImageView = (ImageView) convertView.findViewById(R.id.photoImageView);
-        TextView messageTextView = (TextView) convertView.findViewById(R.id.messageTextView);
-        TextView authorTextView = (TextView) convertView.findViewById(R.id.nameTextView);
+    @Override
+    public MessageViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_message, parent, false);
+        final MessageViewHolder holder = new MessageViewHolder(view);
+
+        // Rows only show the thumbnail of a photo. Tapping it downloads the full photo.
+        holder.photoImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    mImageLoader.loadFullPhoto(holder.photoImageView,
+                            mMessageStore.get(position));
+                }
+            }
+        });
+
+        // Only messages that failed to be sent react to taps on the rest of the row
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION || mOnFailedMessageClickListener == null) {
+                    return;
+                }
+                String key = mMessageStore.getKey(position);
+                if (mMessageStore.getSendState(key) == MessageStore.SEND_STATE_FAILED) {
+                    mOnFailedMessageClickListener.onFailedMessageClick(key);
+                }
+            }
+        });
+        return holder;
+    }
 
-        FriendlyMessage message = getItem(position);
+    @Override
+    public void onBindViewHolder(MessageViewHolder holder, int position) {
+        long start = System.nanoTime();
+        FriendlyMessage message = mMessageStore.get(position);
 
         boolean isPhoto = message.getPhotoUrl() != null;
         if (isPhoto) {
-            messageTextView.setVisibility(View.GONE);
-            photoImageView.setVisibility(View.VISIBLE);
-            Glide.with(photoImageView.getContext())
-                    .load(message.getPhotoUrl())
-                    .into(photoImageView);
+            holder.messageTextView.setVisibility(View.GONE);
+            holder.photoImageView.setVisibility(View.VISIBLE);
+            // Size the row for the photo before it is downloaded, so it doesn't jump later
+            holder.photoImageView.setPhotoSize(message.getWidth(), message.getHeight());
+            mImageLoader.loadPreview(holder.photoImageView, message);
         } else {
-            messageTextView.setVisibility(View.VISIBLE);
-            photoImageView.setVisibility(View.GONE);
-            messageTextView.setText(message.getText());
+            holder.messageTextView.setVisibility(View.VISIBLE);
+            holder.photoImageView.setVisibility(View.GONE);
+            // The row may have shown a photo before, which is still being downloaded
+            Glide.clear(holder.photoImageView);
+            // Laid out in the background when the message was received, see MessageTextLayouts
+            holder.messageTextView.setMessage(message.getKey(), message.getText());
+        }
+        holder.authorTextView.setText(message.getName());
+
+        switch (mMessageStore.getSendState(message.getKey())) {
+            case MessageStore.SEND_STATE_PENDING:
+                holder.statusTextView.setVisibility(View.VISIBLE);
+                holder.statusTextView.setText(R.string.message_sending);
+                break;
+            case MessageStore.SEND_STATE_FAILED:
+                holder.statusTextView.setVisibility(View.VISIBLE);
+                holder.statusTextView.setText(R.string.message_not_sent);
+                break;
+            default:
+                holder.statusTextView.setVisibility(View.GONE);
+                break;
         }
-        authorTextView.setText(message.getName());
+        BIND_MICROS.recordMicrosSince(start);
+    }
+
+    @Override
+    public void onViewRecycled(MessageViewHolder holder) {
+        // Cancel the download of a photo that scrolled out of view, and return its bitmap to
+        // Glide's pool so the next row can reuse it
+        Glide.clear(holder.photoImageView);
+    }
 
-        return convertView;
+    @Override
+    public int getItemCount() {
+        return mMessageStore.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return stableIdOf(mMessageStore.getKey(position));
+    }
+
+    /**
+     * Shows the messages of another store, e.g. when the user switches rooms.
+     */
+    public void setMessageStore(MessageStore messageStore) {
+        mMessageStore = messageStore;
+        notifyDataSetChanged();
+    }
+
+    public FriendlyMessage getItem(int position) {
+        return mMessageStore.get(position);
+    }
+
+    /**
+     * Adds a message at its position in push key order, see addAll().
+     */
+    public void add(FriendlyMessage message) {
+        addAll(Collections.singletonList(message));
+    }
+
+    /**
+     * Adds messages at their positions in push key order. A message whose key is already in the
+     * list replaces the one there, and its row is only rebound if it differs. New messages that
+     * end up next to each other, such as a batch appended to the end or a page of older messages
+     * inserted at the top, are reported with a single range notification.
+     *
+     * @return the number of messages that were added rather than replaced
+     */
+    public int addAll(List<FriendlyMessage> messages) {
+        int added = 0;
+        int runStart = 0;
+        int runLength = 0;
+        for (FriendlyMessage message : messages) {
+            int position = mMessageStore.indexOf(message.getKey());
+            boolean extendsRun = position < 0
+                    && -position - 1 >= runStart && -position - 1 <= runStart + runLength;
+            if (runLength > 0 && !extendsRun) {
+                // Report the previous run before positions are shifted by this message
+                notifyItemRangeInserted(runStart, runLength);
+                runLength = 0;
+            }
+
+            if (position >= 0) {
+                FriendlyMessage oldMessage = mMessageStore.get(position);
+                mMessageStore.put(message);
+                if (!contentsEqual(oldMessage, message)) {
+                    notifyItemChanged(position);
+                }
+                continue;
+            }
+
+            if (runLength == 0) {
+                runStart = -position - 1;
+            }
+            mMessageStore.put(message);
+            runLength++;
+            added++;
+        }
+        if (runLength > 0) {
+            notifyItemRangeInserted(runStart, runLength);
+        }
+        return added;
+    }
+
+    /**
+     * Removes the message with the given key, if it is in the list. The position is found with a
+     * binary search, and only the removed row is reported.
+     */
+    public void remove(String key) {
+        int position = mMessageStore.indexOf(key);
+        if (position >= 0) {
+            mMessageStore.remove(position);
+            notifyItemRemoved(position);
+        }
+    }
+
+    /**
+     * Removes the messages from position {@code start} up to, but not including, {@code end}, and
+     * reports them as a single range.
+     */
+    public void removeRange(int start, int end) {
+        if (start < end) {
+            mMessageStore.removeRange(start, end);
+            notifyItemRangeRemoved(start, end - start);
+        }
+    }
+
+    /**
+     * Rebinds the rows of the messages with the given keys, e.g. after their send state changed.
+     */
+    public void notifyMessagesChanged(List<String> keys) {
+        for (String key : keys) {
+            int position = mMessageStore.indexOf(key);
+            if (position >= 0) {
+                notifyItemChanged(position);
+            }
+        }
+    }
+
+    /**
+     * Removes every message from the list.
+     */
+    public void clear() {
+        int count = mMessageStore.size();
+        if (count == 0) {
+            return;
+        }
+        mMessageStore.removeAll();
+        notifyItemRangeRemoved(0, count);
+    }
+
+    private static boolean contentsEqual(FriendlyMessage a, FriendlyMessage b) {
+        return TextUtils.equals(a.getText(), b.getText())
+                && TextUtils.equals(a.getName(), b.getName())
+                && TextUtils.equals(a.getPhotoUrl(), b.getPhotoUrl())
+                && TextUtils.equals(a.getThumbUrl(), b.getThumbUrl())
+                && a.getWidth() == b.getWidth()
+                && a.getHeight() == b.getHeight();
+    }
+
+    /**
+     * Turns a push key into a RecyclerView item ID with a 64-bit FNV-1a hash. Push keys carry
+     * far more than 64 bits of entropy, so two keys sharing an ID is not a practical concern.
+     */
+    private static long stableIdOf(String key) {
+        if (key == null) {
+            return RecyclerView.NO_ID;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 }
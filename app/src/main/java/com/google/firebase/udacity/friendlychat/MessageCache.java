@@ -0,0 +1,576 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.firebase.udacity.friendlychat.core.ChatRoom;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
+import com.google.firebase.udacity.friendlychat.core.PushKeyGenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A bounded on-disk copy of the newest messages of each room, so a room can be shown as soon as
+ * the app starts, before the user is signed in and before anything has been downloaded.
+ *
+ * Messages are stored in an SQLite table keyed by room ID and push key. Since push keys sort
+ * chronologically, the newest messages of a room are simply the ones with the greatest keys, and
+ * each room is trimmed to its newest {@link #MAX_CACHED_MESSAGES} after every write to it. All
+ * database access happens on a single background thread; results are delivered on the main thread.
+ *
+ * The same database holds a full-text index of the text and author of every message the device
+ * has received, up to {@link #MAX_SEARCHABLE_MESSAGES} per room, including older pages that
+ * aren't cached. It is an SQLite FTS4 table: an inverted index from words to messages kept on
+ * disk, so searching it doesn't download any history, and only the matches are read into memory.
+ * Messages are indexed as they are written to the cache, and only indexed again if they changed.
+ * Their document IDs follow the time they were sent, see docIdOf(), so the newest matches are
+ * read straight from the index in document ID order, without sorting every match.
+ */
+public class MessageCache extends SQLiteOpenHelper implements ChatRoom.Cache {
+
+    private static final String TAG = "MessageCache";
+
+    private static final String DATABASE_NAME = "messages.db";
+    private static final int DATABASE_VERSION = 4;
+
+    /** The maximum number of messages kept on disk per room. Older ones are deleted first. */
+    public static final int MAX_CACHED_MESSAGES = 500;
+
+    private static final String TABLE_MESSAGES = "messages";
+    private static final String COLUMN_ROOM_ID = "room_id";
+    private static final String COLUMN_KEY = "push_key";
+    private static final String COLUMN_TEXT = "text";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_PHOTO_URL = "photo_url";
+    private static final String COLUMN_THUMB_URL = "thumb_url";
+    private static final String COLUMN_WIDTH = "width";
+    private static final String COLUMN_HEIGHT = "height";
+
+    /**
+     * The maximum number of messages of a room in the search index. Older ones are removed
+     * first, see trimIndex().
+     */
+    public static final int MAX_SEARCHABLE_MESSAGES = 100000;
+
+    /** The number of messages indexed between checks of the size of the index. */
+    private static final int INDEX_TRIM_INTERVAL = 1000;
+
+    /**
+     * The number of document IDs per millisecond, for messages sent in the same millisecond.
+     * See docIdOf().
+     */
+    private static final long DOC_IDS_PER_MILLI = 1024;
+
+    /** Maps the room ID and push key of each indexed message to its document in TABLE_INDEX. */
+    private static final String TABLE_INDEXED = "search_messages";
+
+    /** The FTS4 table of the text and author of each indexed message, by document ID. */
+    private static final String TABLE_INDEX = "search_index";
+
+    private static final String COLUMN_DOC_ID = "docid";
+
+    /** The time from starting a search to having its results, on the background thread. */
+    private static final Histogram SEARCH_MILLIS = Metrics.getInstance().histogram("search_ms");
+
+    private static final String[] MESSAGE_COLUMNS = {COLUMN_KEY, COLUMN_TEXT, COLUMN_NAME,
+            COLUMN_PHOTO_URL, COLUMN_THUMB_URL, COLUMN_WIDTH, COLUMN_HEIGHT};
+
+    /**
+     * Receives messages read from the cache, on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param messages the cached messages, oldest first
+         */
+        void onMessagesLoaded(List<FriendlyMessage> messages);
+    }
+
+    /**
+     * Receives the results of a search, on the main thread.
+     */
+    public interface SearchCallback {
+        /**
+         * @param results the matching messages, newest first
+         */
+        void onSearchResults(List<FriendlyMessage> results);
+    }
+
+    private static MessageCache sInstance;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** The messages indexed since the index was last trimmed. Only used on mExecutor. */
+    private int mIndexedSinceTrim;
+
+    public static synchronized MessageCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MessageCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MessageCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " ("
+                + COLUMN_ROOM_ID + " TEXT NOT NULL, "
+                + COLUMN_KEY + " TEXT NOT NULL, "
+                + COLUMN_TEXT + " TEXT, "
+                + COLUMN_NAME + " TEXT, "
+                + COLUMN_PHOTO_URL + " TEXT, "
+                + COLUMN_THUMB_URL + " TEXT, "
+                + COLUMN_WIDTH + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_HEIGHT + " INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (" + COLUMN_ROOM_ID + ", " + COLUMN_KEY + "))");
+
+        db.execSQL("CREATE TABLE " + TABLE_INDEXED + " ("
+                + "rowid INTEGER PRIMARY KEY, "
+                + COLUMN_ROOM_ID + " TEXT NOT NULL, "
+                + COLUMN_KEY + " TEXT NOT NULL, "
+                + "UNIQUE (" + COLUMN_ROOM_ID + ", " + COLUMN_KEY + "))");
+        // The unicode61 tokenizer folds the case of all letters, not just ASCII ones, but is only
+        // available from the SQLite version of Lollipop on
+        String tokenizer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? ", tokenize=unicode61" : "";
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_INDEX + " USING fts4("
+                + COLUMN_TEXT + ", " + COLUMN_NAME + tokenizer + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The cache and the index can always be rebuilt from the server
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_INDEXED);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_INDEX);
+        onCreate(db);
+    }
+
+    /**
+     * Reads the newest cached messages of a room in the background.
+     *
+     * @param limit    the maximum number of messages to read
+     * @param callback receives the messages, oldest first, on the main thread
+     */
+    public void loadNewest(final String roomId, final int limit, final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<FriendlyMessage> messages = new ArrayList<>();
+                try {
+                    Cursor cursor = getReadableDatabase().query(TABLE_MESSAGES, MESSAGE_COLUMNS,
+                            COLUMN_ROOM_ID + " = ?", new String[]{roomId}, null, null,
+                            COLUMN_KEY + " DESC", String.valueOf(limit));
+                    try {
+                        while (cursor.moveToNext()) {
+                            messages.add(new FriendlyMessage(cursor.getString(0),
+                                    cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                                    cursor.getString(4), cursor.getInt(5), cursor.getInt(6)));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Reading cached messages failed", e);
+                }
+                // The query returned the newest message first
+                Collections.reverse(messages);
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onMessagesLoaded(messages);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes messages of a room to the cache in the background, replacing cached messages with the
+     * same key, then deletes the room's oldest messages beyond {@link #MAX_CACHED_MESSAGES}.
+     */
+    @Override
+    public void putAll(final String roomId, List<FriendlyMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        // Copy the list, since the caller may keep modifying it on the main thread
+        final List<FriendlyMessage> toWrite = new ArrayList<>(messages);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                                + TABLE_MESSAGES + " (" + COLUMN_ROOM_ID + ", " + COLUMN_KEY + ", "
+                                + COLUMN_TEXT + ", " + COLUMN_NAME + ", " + COLUMN_PHOTO_URL + ", "
+                                + COLUMN_THUMB_URL + ", " + COLUMN_WIDTH + ", " + COLUMN_HEIGHT
+                                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+                        for (FriendlyMessage message : toWrite) {
+                            insert.clearBindings();
+                            insert.bindString(1, roomId);
+                            insert.bindString(2, message.getKey());
+                            bindNullable(insert, 3, message.getText());
+                            bindNullable(insert, 4, message.getName());
+                            bindNullable(insert, 5, message.getPhotoUrl());
+                            bindNullable(insert, 6, message.getThumbUrl());
+                            insert.bindLong(7, message.getWidth());
+                            insert.bindLong(8, message.getHeight());
+                            insert.executeInsert();
+                        }
+                        insert.close();
+
+                        db.execSQL("DELETE FROM " + TABLE_MESSAGES + " WHERE " + COLUMN_ROOM_ID
+                                + " = ? AND " + COLUMN_KEY + " NOT IN (SELECT " + COLUMN_KEY
+                                + " FROM " + TABLE_MESSAGES + " WHERE " + COLUMN_ROOM_ID
+                                + " = ? ORDER BY " + COLUMN_KEY + " DESC LIMIT "
+                                + MAX_CACHED_MESSAGES + ")", new Object[]{roomId, roomId});
+
+                        addToIndex(db, roomId, toWrite);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Writing cached messages failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds messages of a room to the search index in the background, without caching them, e.g.
+     * a page of older messages. Messages written with putAll() are indexed already.
+     */
+    public void index(final String roomId, List<FriendlyMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        final List<FriendlyMessage> toIndex = new ArrayList<>(messages);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        addToIndex(db, roomId, toIndex);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Indexing messages failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Searches the indexed messages of a room in the background for messages whose text or
+     * author contains every word of the query. Words match the beginnings of words, so "phot"
+     * finds "photos".
+     *
+     * @param limit    the maximum number of messages to return, the newest ones
+     * @param callback receives the matching messages, on the main thread
+     */
+    public void search(final String roomId, final String query, final int limit,
+                       final SearchCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                final List<FriendlyMessage> results = new ArrayList<>();
+                String match = toMatchExpression(query);
+                if (match != null) {
+                    try {
+                        Cursor cursor = getReadableDatabase().rawQuery("SELECT s." + COLUMN_KEY
+                                + ", " + TABLE_INDEX + "." + COLUMN_TEXT + ", " + TABLE_INDEX + "."
+                                + COLUMN_NAME + " FROM " + TABLE_INDEX + " JOIN " + TABLE_INDEXED
+                                + " s ON s.rowid = " + TABLE_INDEX + "." + COLUMN_DOC_ID
+                                + " WHERE " + TABLE_INDEX + " MATCH ? AND s." + COLUMN_ROOM_ID
+                                + " = ? ORDER BY " + TABLE_INDEX + "." + COLUMN_DOC_ID
+                                + " DESC LIMIT " + limit,
+                                new String[]{match, roomId});
+                        try {
+                            while (cursor.moveToNext()) {
+                                results.add(new FriendlyMessage(cursor.getString(0),
+                                        cursor.getString(1), cursor.getString(2), null, null,
+                                        0, 0));
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Searching messages failed", e);
+                    }
+                }
+                SEARCH_MILLIS.recordMillisSince(start);
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSearchResults(results);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Deletes the messages of a room with the given keys in the background, e.g. when they were
+     * deleted from the database. They are removed from the search index too.
+     */
+    @Override
+    public void removeAll(final String roomId, List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<String> toDelete = new ArrayList<>(keys);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        for (String key : toDelete) {
+                            String[] args = {roomId, key};
+                            db.delete(TABLE_MESSAGES, COLUMN_ROOM_ID + " = ? AND "
+                                    + COLUMN_KEY + " = ?", args);
+                            db.execSQL("DELETE FROM " + TABLE_INDEX + " WHERE " + COLUMN_DOC_ID
+                                    + " IN (SELECT rowid FROM " + TABLE_INDEXED + " WHERE "
+                                    + COLUMN_ROOM_ID + " = ? AND " + COLUMN_KEY + " = ?)", args);
+                            db.delete(TABLE_INDEXED, COLUMN_ROOM_ID + " = ? AND "
+                                    + COLUMN_KEY + " = ?", args);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Deleting cached messages failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the cached messages of a room in the background, e.g. when they no longer connect
+     * to the newest messages. They stay in the search index, since they still exist.
+     */
+    @Override
+    public void clear(final String roomId) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getWritableDatabase().delete(TABLE_MESSAGES, COLUMN_ROOM_ID + " = ?",
+                            new String[]{roomId});
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Clearing cached messages failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes every cached message of every room in the background, and empties the search
+     * index, e.g. when the user signs out.
+     */
+    public void clear() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = getWritableDatabase();
+                    db.delete(TABLE_MESSAGES, null, null);
+                    db.delete(TABLE_INDEXED, null, null);
+                    db.delete(TABLE_INDEX, null, null);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Clearing cached messages failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds messages to the search index, or updates them if their text or author changed. Must be
+     * called on mExecutor, inside a transaction.
+     */
+    private void addToIndex(SQLiteDatabase db, String roomId, List<FriendlyMessage> messages) {
+        SQLiteStatement insertIndexed = db.compileStatement("INSERT OR IGNORE INTO "
+                + TABLE_INDEXED + " (rowid, " + COLUMN_ROOM_ID + ", " + COLUMN_KEY
+                + ") VALUES (?, ?, ?)");
+        SQLiteStatement insertDocument = db.compileStatement("INSERT INTO " + TABLE_INDEX + " ("
+                + COLUMN_DOC_ID + ", " + COLUMN_TEXT + ", " + COLUMN_NAME + ") VALUES (?, ?, ?)");
+        for (FriendlyMessage message : messages) {
+            long docId = -1;
+            Cursor cursor = db.rawQuery("SELECT s.rowid, " + TABLE_INDEX + "." + COLUMN_TEXT
+                    + ", " + TABLE_INDEX + "." + COLUMN_NAME + " FROM " + TABLE_INDEXED
+                    + " s LEFT JOIN " + TABLE_INDEX + " ON " + TABLE_INDEX + "." + COLUMN_DOC_ID
+                    + " = s.rowid WHERE s." + COLUMN_ROOM_ID + " = ? AND s." + COLUMN_KEY
+                    + " = ?", new String[]{roomId, message.getKey()});
+            boolean unchanged = false;
+            try {
+                if (cursor.moveToFirst()) {
+                    docId = cursor.getLong(0);
+                    unchanged = TextUtils.equals(cursor.getString(1), message.getText())
+                            && TextUtils.equals(cursor.getString(2), message.getName());
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (unchanged) {
+                // Messages are received again every time a room connects, so only one that
+                // was edited is indexed again
+                continue;
+            } else if (docId != -1) {
+                db.delete(TABLE_INDEX, COLUMN_DOC_ID + " = ?",
+                        new String[]{String.valueOf(docId)});
+            } else {
+                docId = docIdOf(message.getKey());
+                if (docId == -1) {
+                    continue;
+                }
+                // Another message was sent in the same millisecond: take the next free ID
+                while (true) {
+                    insertIndexed.clearBindings();
+                    insertIndexed.bindLong(1, docId);
+                    insertIndexed.bindString(2, roomId);
+                    insertIndexed.bindString(3, message.getKey());
+                    if (insertIndexed.executeInsert() != -1) {
+                        break;
+                    }
+                    docId++;
+                }
+            }
+
+            insertDocument.clearBindings();
+            insertDocument.bindLong(1, docId);
+            bindNullable(insertDocument, 2, message.getText());
+            bindNullable(insertDocument, 3, message.getName());
+            insertDocument.executeInsert();
+            mIndexedSinceTrim++;
+        }
+        insertIndexed.close();
+        insertDocument.close();
+
+        if (mIndexedSinceTrim >= INDEX_TRIM_INTERVAL) {
+            mIndexedSinceTrim = 0;
+            trimIndex(db, roomId);
+        }
+    }
+
+    /**
+     * Returns the first document ID to try for a message: the time it was sent, from its push
+     * key, times {@link #DOC_IDS_PER_MILLI}. Returns -1 if the key isn't a push key.
+     */
+    private static long docIdOf(String pushKey) {
+        try {
+            return PushKeyGenerator.timestampOf(pushKey) * DOC_IDS_PER_MILLI;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Not indexing " + pushKey, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Removes the oldest messages of a room from the search index beyond
+     * {@link #MAX_SEARCHABLE_MESSAGES}. Counting them takes a scan of the room's entries, so
+     * this is only done every {@link #INDEX_TRIM_INTERVAL} indexed messages.
+     */
+    private static void trimIndex(SQLiteDatabase db, String roomId) {
+        String oldestKept;
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_KEY + " FROM " + TABLE_INDEXED + " WHERE "
+                + COLUMN_ROOM_ID + " = ? ORDER BY " + COLUMN_KEY + " DESC LIMIT 1 OFFSET "
+                + (MAX_SEARCHABLE_MESSAGES - 1), new String[]{roomId});
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            oldestKept = cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+        Object[] args = {roomId, oldestKept};
+        db.execSQL("DELETE FROM " + TABLE_INDEX + " WHERE " + COLUMN_DOC_ID + " IN (SELECT rowid"
+                + " FROM " + TABLE_INDEXED + " WHERE " + COLUMN_ROOM_ID + " = ? AND " + COLUMN_KEY
+                + " < ?)", args);
+        db.execSQL("DELETE FROM " + TABLE_INDEXED + " WHERE " + COLUMN_ROOM_ID + " = ? AND "
+                + COLUMN_KEY + " < ?", args);
+    }
+
+    /**
+     * Turns what the user typed into an FTS query that matches messages containing every word,
+     * each as a prefix, or returns null if there are no words. Only letters and digits are kept,
+     * so nothing the user types is taken as FTS syntax.
+     */
+    static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        int i = 0;
+        int length = query.length();
+        while (i < length) {
+            int codePoint = query.codePointAt(i);
+            if (!Character.isLetterOrDigit(codePoint)) {
+                i += Character.charCount(codePoint);
+                continue;
+            }
+            int wordStart = i;
+            while (i < length && Character.isLetterOrDigit(query.codePointAt(i))) {
+                i += Character.charCount(query.codePointAt(i));
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            // Lowercase, so words like "or" and "near" aren't taken as operators
+            match.append(query.substring(wordStart, i).toLowerCase(Locale.ROOT)).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
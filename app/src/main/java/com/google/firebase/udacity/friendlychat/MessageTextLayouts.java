@@ -0,0 +1,236 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.WorkerThread;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.MessageIngestor;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lays out the text of messages in the background, so binding a row doesn't have to measure
+ * text on the main thread.
+ *
+ * A message can be over a thousand characters long, and measuring and breaking that into lines
+ * takes long enough to drop frames while scrolling. Instead, each message's text is laid out when
+ * it is ingested, on the ingestor's background thread, and the layouts are kept per message and
+ * width in a cache. {@link MessageTextView} draws them as they are. A row whose layout isn't
+ * ready yet, e.g. the first rows shown before the text width is known, lays it out on the spot.
+ *
+ * The text style and width come from the message rows: the first row that is measured reports
+ * them, see {@link #setStyle(TextPaint, int)}. Until then, nothing is laid out in the background.
+ */
+public class MessageTextLayouts implements MessageIngestor.Preparer {
+
+    /** The number of characters of text the cached layouts may hold altogether. */
+    private static final int MAX_CACHED_CHARS = 256 * 1024;
+
+    /** The main thread time spent laying out text that wasn't laid out in the background. */
+    private static final Histogram MAIN_THREAD_LAYOUT_MICROS =
+            Metrics.getInstance().histogram("text_layout_main_thread_us");
+
+    private static final MessageTextLayouts sInstance = new MessageTextLayouts();
+
+    /**
+     * The text laid out for a message, and the width it needs.
+     */
+    static final class Entry {
+        final String text;
+        final Layout layout;
+        /** The width of the widest line, so short messages get narrow rows. */
+        final int desiredWidth;
+
+        Entry(String text, Layout layout, int desiredWidth) {
+            this.text = text;
+            this.layout = layout;
+            this.desiredWidth = desiredWidth;
+        }
+    }
+
+    /** Keyed by push key and width, see cacheKey(). Thread-safe. */
+    private final LruCache<String, Entry> mCache = new LruCache<String, Entry>(MAX_CACHED_CHARS) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            return entry.text.length() + 1;
+        }
+    };
+
+    /** Lays out pages of older messages, which don't go through the ingestor. */
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The paint text is laid out with, and the width it is laid out to, or null and 0 before a
+     * row has been measured. Replaced together rather than modified, so background threads see a
+     * consistent pair.
+     */
+    private volatile Style mStyle;
+
+    private static final class Style {
+        final TextPaint paint;
+        final int width;
+
+        Style(TextPaint paint, int width) {
+            this.paint = paint;
+            this.width = width;
+        }
+    }
+
+    public static MessageTextLayouts getInstance() {
+        return sInstance;
+    }
+
+    private MessageTextLayouts() {
+    }
+
+    /**
+     * Sets the paint message text is drawn with and the width available to it. Layouts for a
+     * different paint are dropped.
+     */
+    @MainThread
+    void setStyle(TextPaint paint, int width) {
+        Style style = mStyle;
+        if (style != null && style.width == width && sameText(style.paint, paint)) {
+            return;
+        }
+        if (style != null && !sameText(style.paint, paint)) {
+            mCache.evictAll();
+        }
+        mStyle = new Style(new TextPaint(paint), width);
+    }
+
+    /**
+     * Lays out the message's text for the current width, unless that has already been done.
+     * Called by the ingestor on its background thread.
+     */
+    @WorkerThread
+    @Override
+    public void prepare(FriendlyMessage message) {
+        Style style = mStyle;
+        if (style == null || message.getText() == null || message.getKey() == null) {
+            return;
+        }
+        if (find(message.getKey(), message.getText(), style.width) == null) {
+            layOut(message.getKey(), message.getText(), style.paint, style.width);
+        }
+    }
+
+    /**
+     * Lays out the text of messages in the background, e.g. a page of older messages that is
+     * about to be shown.
+     */
+    @MainThread
+    void prepareAll(final List<FriendlyMessage> messages) {
+        if (mStyle == null) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (FriendlyMessage message : messages) {
+                    prepare(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the layout of the message's text at the given width, laying it out now if it
+     * hasn't been laid out in the background.
+     *
+     * @param key the push key of the message, or null if it has none
+     */
+    @MainThread
+    Entry getOrCreate(String key, String text, TextPaint paint, int width) {
+        Entry entry = key == null ? null : find(key, text, width);
+        if (entry == null) {
+            long start = System.nanoTime();
+            entry = layOut(key, text, paint, width);
+            MAIN_THREAD_LAYOUT_MICROS.recordMicrosSince(start);
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the cached layouts of the messages with the given keys, e.g. once they are no longer
+     * in the list.
+     */
+    @MainThread
+    void remove(List<String> keys) {
+        Style style = mStyle;
+        if (style == null) {
+            return;
+        }
+        for (String key : keys) {
+            mCache.remove(cacheKey(key, style.width));
+        }
+    }
+
+    /**
+     * Drops every cached layout, e.g. when memory is low.
+     */
+    void clear() {
+        mCache.evictAll();
+    }
+
+    private Entry find(String key, String text, int width) {
+        Entry entry = mCache.get(cacheKey(key, width));
+        // An edited message keeps its key, so the text is checked too
+        return entry != null && entry.text.equals(text) ? entry : null;
+    }
+
+    private Entry layOut(String key, String text, TextPaint paint, int width) {
+        // Each layout gets its own paint, since a Paint must not be measured with on one thread
+        // while it is drawn with on another
+        Layout layout = new StaticLayout(text, new TextPaint(paint), Math.max(0, width),
+                Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+        float desiredWidth = 0;
+        for (int i = 0; i < layout.getLineCount(); i++) {
+            if (layout.getParagraphDirection(i) == Layout.DIR_RIGHT_TO_LEFT) {
+                // Right-to-left lines are aligned to the right edge of the whole width
+                desiredWidth = width;
+                break;
+            }
+            desiredWidth = Math.max(desiredWidth, layout.getLineWidth(i));
+        }
+        Entry entry = new Entry(text, layout, (int) Math.ceil(desiredWidth));
+        if (key != null) {
+            mCache.put(cacheKey(key, width), entry);
+        }
+        return entry;
+    }
+
+    private static String cacheKey(String key, int width) {
+        return key + '@' + width;
+    }
+
+    private static boolean sameText(TextPaint a, TextPaint b) {
+        return a.getTextSize() == b.getTextSize()
+                && a.getColor() == b.getColor()
+                && a.getTypeface() == b.getTypeface()
+                && a.getFlags() == b.getFlags();
+    }
+}
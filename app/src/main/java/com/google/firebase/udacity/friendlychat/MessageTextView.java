@@ -0,0 +1,140 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+/**
+ * Shows the text of a message, drawing a layout prepared in the background by
+ * {@link MessageTextLayouts} instead of measuring the text itself like a TextView would.
+ *
+ * Supports the text size and color of {@code android:textAppearance}, and padding. Like a
+ * wrap_content TextView, it is as wide as its longest line, up to the width available.
+ */
+public class MessageTextView extends View {
+
+    /** Attributes read from the text appearance. Must be sorted, for obtainStyledAttributes(). */
+    private static final int[] TEXT_APPEARANCE_ATTRS = {
+            android.R.attr.textSize,
+            android.R.attr.textColor
+    };
+
+    private static final int[] VIEW_ATTRS = {android.R.attr.textAppearance};
+
+    private static final float DEFAULT_TEXT_SIZE_SP = 22;
+
+    private final TextPaint mPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final MessageTextLayouts mLayouts = MessageTextLayouts.getInstance();
+
+    private String mKey;
+    private String mText;
+    private MessageTextLayouts.Entry mEntry;
+
+    public MessageTextView(Context context) {
+        this(context, null);
+    }
+
+    public MessageTextView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public MessageTextView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        float textSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP,
+                DEFAULT_TEXT_SIZE_SP, getResources().getDisplayMetrics());
+        int textColor = Color.BLACK;
+
+        TypedArray viewAttrs = context.obtainStyledAttributes(attrs, VIEW_ATTRS, defStyleAttr, 0);
+        int appearance = viewAttrs.getResourceId(0, 0);
+        viewAttrs.recycle();
+        if (appearance != 0) {
+            TypedArray appearanceAttrs =
+                    context.obtainStyledAttributes(appearance, TEXT_APPEARANCE_ATTRS);
+            textSize = appearanceAttrs.getDimension(0, textSize);
+            textColor = appearanceAttrs.getColor(1, textColor);
+            appearanceAttrs.recycle();
+        }
+
+        mPaint.setTextSize(textSize);
+        mPaint.setColor(textColor);
+        mPaint.density = getResources().getDisplayMetrics().density;
+    }
+
+    /**
+     * Sets the message to show.
+     *
+     * @param key  the push key of the message, which its layout is cached by
+     * @param text the text of the message
+     */
+    public void setMessage(String key, String text) {
+        if (text == null) {
+            text = "";
+        }
+        if (text.equals(mText) && (key == null ? mKey == null : key.equals(mKey))) {
+            return;
+        }
+        mKey = key;
+        mText = text;
+        mEntry = null;
+        setContentDescription(text);
+        requestLayout();
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+        int horizontalPadding = getPaddingLeft() + getPaddingRight();
+
+        if (widthMode == MeasureSpec.UNSPECIFIED || mText == null) {
+            // Rows always constrain the width, so this is only a fallback
+            mEntry = null;
+            setMeasuredDimension(getSuggestedMinimumWidth(), getSuggestedMinimumHeight());
+            return;
+        }
+
+        int textWidth = Math.max(0, widthSize - horizontalPadding);
+        mLayouts.setStyle(mPaint, textWidth);
+        mEntry = mLayouts.getOrCreate(mKey, mText, mPaint, textWidth);
+
+        int width = widthMode == MeasureSpec.EXACTLY
+                ? widthSize
+                : Math.min(widthSize, mEntry.desiredWidth + horizontalPadding);
+        int height = mEntry.layout.getHeight() + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mEntry == null) {
+            return;
+        }
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mEntry.layout.draw(canvas);
+        canvas.restoreToCount(saveCount);
+    }
+}
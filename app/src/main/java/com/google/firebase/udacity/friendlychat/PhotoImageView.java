@@ -0,0 +1,72 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.support.v7.widget.AppCompatImageView;
+import android.util.AttributeSet;
+
+/**
+ * An ImageView that can be given the dimensions of the photo it will show before the photo has
+ * been downloaded. It then measures itself to the photo's aspect ratio straight away, so the row
+ * doesn't change height, and the list doesn't jump, when the photo arrives.
+ */
+public class PhotoImageView extends AppCompatImageView {
+
+    private int mPhotoWidth;
+    private int mPhotoHeight;
+
+    public PhotoImageView(Context context) {
+        super(context);
+    }
+
+    public PhotoImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public PhotoImageView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Sets the dimensions of the photo this view will show, or 0 if they are unknown, in which
+     * case the view is measured like a regular ImageView.
+     */
+    public void setPhotoSize(int width, int height) {
+        if (width != mPhotoWidth || height != mPhotoHeight) {
+            mPhotoWidth = width;
+            mPhotoHeight = height;
+            requestLayout();
+        }
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mPhotoWidth <= 0 || mPhotoHeight <= 0
+                || MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED) {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
+        // Fill the available width, but don't stretch the photo beyond its own size
+        int width = Math.min(MeasureSpec.getSize(widthMeasureSpec),
+                mPhotoWidth + getPaddingLeft() + getPaddingRight());
+        int contentWidth = width - getPaddingLeft() - getPaddingRight();
+        int height = contentWidth * mPhotoHeight / mPhotoWidth
+                + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+}
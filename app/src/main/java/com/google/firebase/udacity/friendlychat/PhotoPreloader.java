@@ -0,0 +1,106 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.Context;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+
+/**
+ * Preloads the photos of the rows just past the edge of the screen in the direction the list is
+ * scrolling, so they are already decoded when they scroll into view.
+ *
+ * Like Glide's ListPreloader, it remembers the range it last preloaded, so scrolling a few pixels
+ * doesn't request the same photos again, and it only looks a fixed number of rows ahead, so a
+ * fling through a room full of photos doesn't queue more downloads than the memory cache can
+ * hold.
+ */
+public class PhotoPreloader extends RecyclerView.OnScrollListener {
+
+    private final Context mContext;
+    private final LinearLayoutManager mLayoutManager;
+    private final MessageAdapter mAdapter;
+    private final ChatImageLoader mImageLoader;
+    private final int mMaxPreload;
+
+    /** The range of positions preloaded last, end exclusive. */
+    private int mLastStart;
+    private int mLastEnd;
+
+    /**
+     * @param maxPreload the number of rows to preload ahead of the visible ones
+     */
+    public PhotoPreloader(Context context, LinearLayoutManager layoutManager,
+                          MessageAdapter adapter, ChatImageLoader imageLoader, int maxPreload) {
+        mContext = context;
+        mLayoutManager = layoutManager;
+        mAdapter = adapter;
+        mImageLoader = imageLoader;
+        mMaxPreload = maxPreload;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+        int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+        int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+        if (firstVisible == RecyclerView.NO_POSITION) {
+            return;
+        }
+
+        int start;
+        int end;
+        if (dy > 0) {
+            // Scrolling down, towards newer messages
+            start = lastVisible + 1;
+            end = Math.min(mAdapter.getItemCount(), start + mMaxPreload);
+        } else {
+            // Scrolling up, towards older messages
+            end = firstVisible;
+            start = Math.max(0, end - mMaxPreload);
+        }
+        preload(start, end);
+    }
+
+    /**
+     * Preloads the photos of the rows from start to end, skipping those preloaded last time.
+     */
+    private void preload(int start, int end) {
+        for (int position = start; position < end; position++) {
+            if (position >= mLastStart && position < mLastEnd) {
+                continue;
+            }
+            FriendlyMessage message = mAdapter.getItem(position);
+            if (message.getPhotoUrl() != null) {
+                mImageLoader.preloadPreview(mContext, message);
+            }
+        }
+        mLastStart = start;
+        mLastEnd = end;
+    }
+
+    /**
+     * Forgets what was preloaded, e.g. after the messages in the list changed position.
+     */
+    public void reset() {
+        mLastStart = 0;
+        mLastEnd = 0;
+    }
+}
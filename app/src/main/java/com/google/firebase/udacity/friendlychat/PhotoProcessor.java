@@ -0,0 +1,288 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.support.annotation.WorkerThread;
+import android.support.media.ExifInterface;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Shrinks a picked photo before it is uploaded.
+ *
+ * Camera photos are often 12 megapixels or more, far larger than a chat row can show. Uploading
+ * them as they are costs the sender upload time and every reader download time and memory. The
+ * photo is instead decoded with subsampling, scaled down so its longest side is at most a maximum
+ * dimension, rotated upright and re-encoded as a JPEG. Re-encoding drops all of the original EXIF
+ * metadata, such as the camera model and GPS location.
+ *
+ * A small thumbnail is encoded along with the photo, so chat rows can show a preview without
+ * downloading the full photo, and the photo's dimensions are recorded so rows can be sized before
+ * anything is downloaded.
+ *
+ * While the photo is decoded, a SHA-256 hash of its original bytes is computed, so the upload can
+ * be named after its content: the same photo processed with the same settings always gets the
+ * same name, and only needs to be uploaded once.
+ *
+ * Decoding a photo takes hundreds of milliseconds, so this must not be called on the main thread.
+ */
+public final class PhotoProcessor {
+
+    /** The maximum width and height of thumbnails, in pixels. */
+    public static final int THUMBNAIL_MAX_DIMENSION = 240;
+
+    /** The JPEG quality of thumbnails. They are only previews, so they can be compressed more. */
+    public static final int THUMBNAIL_QUALITY = 70;
+
+    /**
+     * A processed photo, ready to be uploaded.
+     */
+    public static final class Result {
+        /** The downscaled photo, JPEG-encoded. */
+        public final byte[] photo;
+        /** A thumbnail of the photo, JPEG-encoded. */
+        public final byte[] thumbnail;
+        /** The width of the downscaled photo, in pixels. */
+        public final int width;
+        /** The height of the downscaled photo, in pixels. */
+        public final int height;
+        /**
+         * A hex-encoded SHA-256 hash of the original photo and the settings it was processed
+         * with. Equal hashes mean equal results.
+         */
+        public final String contentHash;
+
+        Result(byte[] photo, byte[] thumbnail, int width, int height, String contentHash) {
+            this.photo = photo;
+            this.thumbnail = thumbnail;
+            this.width = width;
+            this.height = height;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private PhotoProcessor() {
+    }
+
+    /**
+     * Decodes, downscales and re-encodes the photo at {@code photoUri}, and creates its thumbnail.
+     *
+     * @param maxDimension the maximum width and height of the result, in pixels
+     * @param quality      the JPEG quality of the result, from 0 to 100
+     * @return the JPEG-encoded photo and thumbnail
+     * @throws IOException if the photo can't be read or decoded
+     */
+    @WorkerThread
+    public static Result process(ContentResolver resolver, Uri photoUri, int maxDimension,
+                                 int quality) throws IOException {
+        int orientation = readOrientation(resolver, photoUri);
+
+        // Read only the dimensions first, to pick how much to subsample while decoding
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(resolver, photoUri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + photoUri);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                maxDimension);
+
+        // Hash the original bytes as they stream through the decoder
+        MessageDigest digest = newSha256();
+        Bitmap bitmap = decodeAndDigest(resolver, photoUri, options, digest);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + photoUri);
+        }
+        // The same photo gives a different result with different settings
+        digest.update(("/" + maxDimension + "/" + quality + "/" + THUMBNAIL_MAX_DIMENSION + "/"
+                + THUMBNAIL_QUALITY).getBytes("UTF-8"));
+        String contentHash = toHex(digest.digest());
+
+        bitmap = scaleAndRotate(bitmap, maxDimension, orientation);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        byte[] photo = encode(bitmap, quality);
+
+        // Scale the already downscaled photo again for the thumbnail, rather than decoding again
+        float thumbnailScale = Math.min(1f,
+                (float) THUMBNAIL_MAX_DIMENSION / Math.max(width, height));
+        Bitmap thumbnailBitmap = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(width * thumbnailScale)),
+                Math.max(1, Math.round(height * thumbnailScale)), true);
+        byte[] thumbnail = encode(thumbnailBitmap, THUMBNAIL_QUALITY);
+
+        if (thumbnailBitmap != bitmap) {
+            thumbnailBitmap.recycle();
+        }
+        bitmap.recycle();
+        return new Result(photo, thumbnail, width, height, contentHash);
+    }
+
+    private static byte[] encode(Bitmap bitmap, int quality) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the largest power of two that the photo can be subsampled by while its longest side
+     * stays at least {@code maxDimension} pixels. Decoding with it uses a fraction of the memory
+     * of a full decode, and the final scaling step does the rest.
+     */
+    static int calculateInSampleSize(int width, int height, int maxDimension) {
+        int longestSide = Math.max(width, height);
+        int inSampleSize = 1;
+        while (longestSide / (inSampleSize * 2) >= maxDimension) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static Bitmap decode(ContentResolver resolver, Uri photoUri,
+                                 BitmapFactory.Options options) throws IOException {
+        InputStream in = openStream(resolver, photoUri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes the photo while feeding every byte read from it to {@code digest}. The decoder may
+     * stop before the end of the stream, so the rest is read into the digest afterwards.
+     */
+    private static Bitmap decodeAndDigest(ContentResolver resolver, Uri photoUri,
+                                          BitmapFactory.Options options, MessageDigest digest)
+            throws IOException {
+        DigestInputStream in = new DigestInputStream(openStream(resolver, photoUri), digest);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Only read for the digest
+            }
+            return bitmap;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads the EXIF orientation of the photo, since it is lost when the photo is re-encoded.
+     */
+    private static int readOrientation(ContentResolver resolver, Uri photoUri) throws IOException {
+        InputStream in = openStream(resolver, photoUri);
+        try {
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            // No readable EXIF data, e.g. because the photo isn't a JPEG
+            return ExifInterface.ORIENTATION_NORMAL;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Scales the bitmap down so its longest side is at most {@code maxDimension}, and rotates it
+     * according to its EXIF orientation. Recycles the original bitmap if a new one was created.
+     */
+    private static Bitmap scaleAndRotate(Bitmap bitmap, int maxDimension, int orientation) {
+        Matrix matrix = new Matrix();
+
+        int longestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longestSide > maxDimension) {
+            float scale = (float) maxDimension / longestSide;
+            matrix.postScale(scale, scale);
+        }
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            default:
+                break;
+        }
+
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    private static InputStream openStream(ContentResolver resolver, Uri photoUri)
+            throws FileNotFoundException {
+        InputStream in = resolver.openInputStream(photoUri);
+        if (in == null) {
+            throw new FileNotFoundException("Could not open " + photoUri);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,574 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.database.sqlite.SQLiteConstraintException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.OnProgressListener;
+import com.google.firebase.storage.StorageException;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.StorageReference;
+import com.google.firebase.storage.UploadTask;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.Histogram;
+import com.google.firebase.udacity.friendlychat.core.Metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads picked photos and posts them as messages, independently of MainActivity.
+ *
+ * Photos are first processed into a photo and a thumbnail in the app's private storage, and a job
+ * for them is added to the persistent {@link UploadQueue}. Jobs are then uploaded by a bounded
+ * number of worker threads. An upload that fails is retried with exponential backoff, and a job
+ * that is interrupted because the app is killed is picked up again the next time the service
+ * starts.
+ *
+ * Each upload's resumable session is saved with its job as soon as Storage has created it, and
+ * kept across failures, so a retry only sends the bytes the server hasn't received yet rather
+ * than the whole photo again. A session is only dropped once Storage rejects it, e.g. because it
+ * expired, and the next attempt then starts the upload over in a new one.
+ *
+ * Every job writes its message to a push key chosen when the job was created, so however often a
+ * job is retried, its message is posted exactly once.
+ */
+public class PhotoUploadService extends Service {
+
+    private static final String TAG = "PhotoUploadService";
+
+    private static final String ACTION_ENQUEUE =
+            "com.google.firebase.udacity.friendlychat.action.ENQUEUE_PHOTO";
+    private static final String ACTION_RESUME =
+            "com.google.firebase.udacity.friendlychat.action.RESUME_UPLOADS";
+
+    private static final String EXTRA_USERNAME = "username";
+    private static final String EXTRA_ROOM_ID = "room_id";
+    private static final String EXTRA_MESSAGE_KEY = "message_key";
+    private static final String EXTRA_MAX_DIMENSION = "max_dimension";
+    private static final String EXTRA_QUALITY = "quality";
+
+    /** The maximum number of photos uploaded at the same time. */
+    private static final int MAX_PARALLEL_UPLOADS = 2;
+
+    /** The number of attempts after which a job is given up on. */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** How long each upload to Storage took, photos and thumbnails alike. */
+    private static final Histogram UPLOAD_MILLIS = Metrics.getInstance().histogram("upload_ms");
+
+    /** The throughput of each upload that started from the beginning, in kilobytes per second. */
+    private static final Histogram UPLOAD_THROUGHPUT =
+            Metrics.getInstance().histogram("upload_throughput_kbps");
+
+    private static final StorageMetadata JPEG_METADATA = new StorageMetadata.Builder()
+            .setContentType("image/jpeg")
+            .build();
+
+    /**
+     * Queues a picked photo to be processed, uploaded and posted as a message.
+     *
+     * @param roomId       the room to post the message to
+     * @param messageKey   the push key to post the message at
+     * @param maxDimension the maximum width and height of the uploaded photo
+     * @param quality      the JPEG quality of the uploaded photo
+     */
+    public static void enqueue(Context context, Uri photoUri, String username, String roomId,
+                               String messageKey, int maxDimension, int quality) {
+        Intent intent = new Intent(context, PhotoUploadService.class)
+                .setAction(ACTION_ENQUEUE)
+                .setData(photoUri)
+                // Lets the service read the photo, even though it was picked by the Activity
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
+                .putExtra(EXTRA_USERNAME, username)
+                .putExtra(EXTRA_ROOM_ID, roomId)
+                .putExtra(EXTRA_MESSAGE_KEY, messageKey)
+                .putExtra(EXTRA_MAX_DIMENSION, maxDimension)
+                .putExtra(EXTRA_QUALITY, quality);
+        context.startService(intent);
+    }
+
+    /**
+     * Continues uploading the jobs left in the queue, e.g. after the app was killed.
+     */
+    public static void resume(Context context) {
+        context.startService(new Intent(context, PhotoUploadService.class)
+                .setAction(ACTION_RESUME));
+    }
+
+    private UploadQueue mQueue;
+
+    /** Processes and uploads photos. */
+    private ExecutorService mWorkers;
+
+    /**
+     * Decides which jobs to run and when, and owns mRunningJobs. Running this on a single thread
+     * means the scheduling state needs no locking.
+     */
+    private ScheduledExecutorService mScheduler;
+
+    /** The IDs of the jobs being uploaded. Only accessed on mScheduler. */
+    private final Set<Long> mRunningJobs = new HashSet<>();
+
+    /** The wake-up scheduled for the next retry, if any. Only accessed on mScheduler. */
+    private ScheduledFuture<?> mNextWakeUp;
+
+    /** The number of picked photos still being processed into jobs. */
+    private final AtomicInteger mPreparingCount = new AtomicInteger();
+
+    /** The ID of the latest start request, so the service doesn't stop while one is pending. */
+    private volatile int mLastStartId;
+
+    /**
+     * Set in onDestroy(), before the executors are shut down, so work finishing after that
+     * doesn't hand them more, see execute().
+     */
+    private volatile boolean mDestroyed;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Created on the first upload rather than when the service starts, since the service is also
+     * started on every launch of the app to check for interrupted uploads, and there usually
+     * aren't any. Guarded by this.
+     */
+    private StorageReference mChatPhotosStorageReference;
+    private DatabaseReference mRootDatabaseReference;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mQueue = UploadQueue.getInstance(this);
+        mWorkers = Executors.newFixedThreadPool(MAX_PARALLEL_UPLOADS);
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    private synchronized StorageReference getChatPhotosStorageReference() {
+        if (mChatPhotosStorageReference == null) {
+            mChatPhotosStorageReference = FirebaseStorage.getInstance().getReference()
+                    .child("chat_photos");
+        }
+        return mChatPhotosStorageReference;
+    }
+
+    private synchronized DatabaseReference getRootDatabaseReference() {
+        if (mRootDatabaseReference == null) {
+            mRootDatabaseReference = FirebaseDatabase.getInstance().getReference();
+        }
+        return mRootDatabaseReference;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if (intent != null && ACTION_ENQUEUE.equals(intent.getAction())) {
+            prepare(intent.getData(),
+                    intent.getStringExtra(EXTRA_USERNAME),
+                    intent.getStringExtra(EXTRA_ROOM_ID),
+                    intent.getStringExtra(EXTRA_MESSAGE_KEY),
+                    intent.getIntExtra(EXTRA_MAX_DIMENSION,
+                            MainActivity.DEFAULT_PHOTO_MAX_DIMENSION),
+                    intent.getIntExtra(EXTRA_QUALITY, MainActivity.DEFAULT_PHOTO_QUALITY));
+        }
+        execute(mScheduler, mDrain);
+
+        // If the process is killed before a photo has been turned into a job, the system
+        // redelivers its intent, including the permission to read it
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Interrupted jobs stay in the queue and resume the next time the service starts
+        mDestroyed = true;
+        mScheduler.shutdownNow();
+        mWorkers.shutdownNow();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * Processes a picked photo in the background, saves the result to private storage and adds a
+     * job for it to the queue.
+     */
+    private void prepare(final Uri photoUri, final String username, final String roomId,
+                         final String messageKey, final int maxDimension, final int quality) {
+        mPreparingCount.incrementAndGet();
+        execute(mWorkers, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PhotoProcessor.Result photo = PhotoProcessor.process(getContentResolver(),
+                            photoUri, maxDimension, quality);
+
+                    File directory = new File(getFilesDir(), "uploads");
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("Could not create " + directory);
+                    }
+                    File photoFile = new File(directory, messageKey + ".jpg");
+                    File thumbFile = new File(directory, messageKey + "_thumb.jpg");
+                    writeFile(photoFile, photo.photo);
+                    writeFile(thumbFile, photo.thumbnail);
+
+                    UploadQueue.UploadJob job = new UploadQueue.UploadJob();
+                    job.roomId = roomId;
+                    job.messageKey = messageKey;
+                    job.username = username;
+                    job.contentHash = photo.contentHash;
+                    job.photoPath = photoFile.getPath();
+                    job.thumbPath = thumbFile.getPath();
+                    job.width = photo.width;
+                    job.height = photo.height;
+                    mQueue.add(job);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not process photo " + photoUri, e);
+                    showToast("Could not send photo");
+                } catch (SQLiteConstraintException e) {
+                    // A redelivered intent for a photo that was already queued
+                    Log.d(TAG, "Photo for message " + messageKey + " is already queued");
+                } finally {
+                    mPreparingCount.decrementAndGet();
+                    execute(mScheduler, mDrain);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the jobs that are due, up to MAX_PARALLEL_UPLOADS at a time, and schedules a wake-up
+     * for the next retry. Stops the service once there is nothing left to do. Runs on mScheduler.
+     */
+    private void drain() {
+        if (mDestroyed) {
+            return;
+        }
+        List<UploadQueue.UploadJob> jobs = mQueue.getAll();
+
+        if (jobs.isEmpty() && mRunningJobs.isEmpty() && mPreparingCount.get() == 0) {
+            // Only stops if no start request arrived since the last one we handled
+            stopSelfResult(mLastStartId);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long nextAttemptAt = Long.MAX_VALUE;
+        for (UploadQueue.UploadJob job : jobs) {
+            if (mRunningJobs.size() >= MAX_PARALLEL_UPLOADS) {
+                break;
+            }
+            if (mRunningJobs.contains(job.id)) {
+                continue;
+            }
+            if (job.nextAttemptAt > now) {
+                nextAttemptAt = Math.min(nextAttemptAt, job.nextAttemptAt);
+                continue;
+            }
+            start(job);
+        }
+
+        if (mNextWakeUp != null) {
+            mNextWakeUp.cancel(false);
+            mNextWakeUp = null;
+        }
+        if (nextAttemptAt != Long.MAX_VALUE && !mDestroyed) {
+            try {
+                mNextWakeUp = mScheduler.schedule(mDrain, nextAttemptAt - now,
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Destroyed meanwhile. The jobs resume the next time the service starts.
+            }
+        }
+    }
+
+    /**
+     * Runs a job on a worker thread. Runs on mScheduler.
+     */
+    private void start(final UploadQueue.UploadJob job) {
+        mRunningJobs.add(job.id);
+        execute(mWorkers, new Runnable() {
+            @Override
+            public void run() {
+                runJob(job);
+                execute(mScheduler, new Runnable() {
+                    @Override
+                    public void run() {
+                        mRunningJobs.remove(job.id);
+                        drain();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Uploads the thumbnail and the photo of a job, unless that has already been done, then posts
+     * its message and removes it from the queue. On failure, schedules the job to be retried.
+     * Runs on a worker thread.
+     */
+    private void runJob(UploadQueue.UploadJob job) {
+        try {
+            if (job.thumbUrl == null) {
+                String thumbUrl = upload(job, true);
+                synchronized (job) {
+                    job.thumbUrl = thumbUrl;
+                    mQueue.update(job);
+                }
+            }
+            if (job.photoUrl == null) {
+                String photoUrl = upload(job, false);
+                synchronized (job) {
+                    job.photoUrl = photoUrl;
+                    mQueue.update(job);
+                }
+            }
+
+            // Writing to the key chosen up front makes posting idempotent: if we are killed after
+            // this write but before the job is removed, the retry overwrites the same message
+            FriendlyMessage friendlyMessage = new FriendlyMessage(job.messageKey, null,
+                    job.username, job.photoUrl, job.thumbUrl, job.width, job.height);
+            Tasks.await(getRootDatabaseReference().updateChildren(
+                    FirebaseChatTransport.messageUpdates(job.roomId,
+                            Collections.singletonList(friendlyMessage))));
+
+            mQueue.remove(job);
+            deleteFiles(job);
+        } catch (ExecutionException | RuntimeException e) {
+            Log.w(TAG, "Uploading photo for message " + job.messageKey + " failed", e);
+            retryLater(job);
+        } catch (InterruptedException e) {
+            // The service is being destroyed. The job stays queued for the next start.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the download URL of the job's photo or thumbnail, uploading it first unless an
+     * object with the same content hash already exists.
+     */
+    private String upload(final UploadQueue.UploadJob job, final boolean thumbnail)
+            throws ExecutionException, InterruptedException {
+        String fileName = job.contentHash + ".jpg";
+        StorageReference photosRef = getChatPhotosStorageReference();
+        StorageReference ref = thumbnail
+                ? photosRef.child("thumbs").child(fileName)
+                : photosRef.child(fileName);
+
+        // Since objects are named after their content, an existing object holds the same photo
+        try {
+            return Tasks.await(ref.getDownloadUrl()).toString();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof StorageException)
+                    || ((StorageException) e.getCause()).getErrorCode()
+                    != StorageException.ERROR_OBJECT_NOT_FOUND) {
+                throw e;
+            }
+        }
+
+        File file = new File(thumbnail ? job.thumbPath : job.photoPath);
+        String session = thumbnail ? job.thumbSession : job.photoSession;
+        long start = System.nanoTime();
+        UploadTask uploadTask = session == null
+                ? ref.putFile(Uri.fromFile(file), JPEG_METADATA)
+                : ref.putFile(Uri.fromFile(file), JPEG_METADATA, Uri.parse(session));
+
+        // Save the upload session as soon as it exists, so the upload can be resumed if it is
+        // interrupted
+        uploadTask.addOnProgressListener(mScheduler,
+                new OnProgressListener<UploadTask.TaskSnapshot>() {
+                    @Override
+                    public void onProgress(UploadTask.TaskSnapshot snapshot) {
+                        Uri sessionUri = snapshot.getUploadSessionUri();
+                        if (sessionUri == null) {
+                            return;
+                        }
+                        synchronized (job) {
+                            String current = thumbnail ? job.thumbSession : job.photoSession;
+                            if (sessionUri.toString().equals(current)) {
+                                return;
+                            }
+                            if (thumbnail) {
+                                job.thumbSession = sessionUri.toString();
+                            } else {
+                                job.photoSession = sessionUri.toString();
+                            }
+                            mQueue.update(job);
+                        }
+                    }
+                });
+
+        UploadTask.TaskSnapshot snapshot;
+        try {
+            snapshot = Tasks.await(uploadTask);
+        } catch (ExecutionException e) {
+            if (session != null && isSessionRejected(e.getCause())) {
+                dropSession(job, thumbnail, session);
+            }
+            throw e;
+        }
+        @SuppressWarnings("VisibleForTests") Uri downloadUrl = snapshot.getDownloadUrl();
+
+        long elapsedNanos = System.nanoTime() - start;
+        UPLOAD_MILLIS.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        // A resumed upload only sent part of the file, so its throughput is unknown
+        if (session == null && elapsedNanos > 0) {
+            UPLOAD_THROUGHPUT.record(file.length() * TimeUnit.SECONDS.toNanos(1)
+                    / elapsedNanos / 1024);
+        }
+        if (downloadUrl == null) {
+            throw new ExecutionException(new IOException("No download URL for " + ref.getPath()));
+        }
+        return downloadUrl.toString();
+    }
+
+    /**
+     * Returns true if resuming an upload failed because Storage no longer knows its session, or
+     * won't accept it, rather than because the device is offline or the server is unavailable.
+     */
+    private static boolean isSessionRejected(Throwable error) {
+        if (!(error instanceof StorageException)) {
+            return false;
+        }
+        StorageException storageError = (StorageException) error;
+        int httpCode = storageError.getHttpResultCode();
+        return storageError.getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND
+                || (httpCode >= 400 && httpCode < 500);
+    }
+
+    /**
+     * Forgets a session that Storage rejected, so the next attempt starts a new one. Runs on
+     * mScheduler, after the progress updates that saved the session, so they can't bring it back.
+     */
+    private void dropSession(final UploadQueue.UploadJob job, final boolean thumbnail,
+                             final String session) {
+        execute(mScheduler, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (job) {
+                    if (thumbnail && session.equals(job.thumbSession)) {
+                        job.thumbSession = null;
+                    } else if (!thumbnail && session.equals(job.photoSession)) {
+                        job.photoSession = null;
+                    } else {
+                        return;
+                    }
+                    mQueue.update(job);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules a failed job to be tried again with exponential backoff, or gives up on it after
+     * MAX_ATTEMPTS attempts. Its upload sessions are kept, so the next attempt resumes them.
+     */
+    private void retryLater(UploadQueue.UploadJob job) {
+        synchronized (job) {
+            job.attempts++;
+            if (job.attempts >= MAX_ATTEMPTS) {
+                Log.w(TAG, "Giving up on photo for message " + job.messageKey);
+                mQueue.remove(job);
+                deleteFiles(job);
+                showToast("Could not send photo");
+                return;
+            }
+
+            long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                    INITIAL_BACKOFF_MILLIS << Math.min(job.attempts - 1, 20));
+            job.nextAttemptAt = System.currentTimeMillis() + backoff;
+            mQueue.update(job);
+        }
+    }
+
+    /**
+     * Hands a task to one of the service's executors, unless the service has been destroyed. Work
+     * that finishes while the service is being destroyed is dropped, and its job resumes the next
+     * time the service starts.
+     */
+    private void execute(Executor executor, Runnable task) {
+        if (mDestroyed) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down between the check and the call
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteFiles(UploadQueue.UploadJob job) {
+        new File(job.photoPath).delete();
+        new File(job.thumbPath).delete();
+    }
+
+    private void showToast(final String message) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.util.Log;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.ServerValue;
+import com.google.firebase.database.ValueEventListener;
+import com.google.firebase.udacity.friendlychat.core.PresenceRoster;
+import com.google.firebase.udacity.friendlychat.core.TypingThrottle;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the other members of a chat room that this user is there and whether they are typing,
+ * and tells this user the same about the others.
+ *
+ * Each member present in a room has a child of {@code presence/<roomId>}, keyed by their user ID:
+ * their name, whether they are typing, and when that was last written, as set by the server.
+ * Members read the whole node with a single listener, however many members the room has.
+ *
+ * Writes are kept to a handful per member: keystrokes go through a {@link TypingThrottle}, and
+ * otherwise a member only writes when joining and every {@link #HEARTBEAT_MILLIS}. A member's
+ * child is removed when they leave, or by the server when their connection drops, through an
+ * onDisconnect() hook. States that weren't refreshed in time are ignored, see
+ * {@link PresenceRoster}, in case neither happened.
+ *
+ * Must only be used from the main thread.
+ */
+public class RoomPresence {
+
+    private static final String TAG = "RoomPresence";
+
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_TYPING = "typing";
+    private static final String FIELD_UPDATED_AT = "updatedAt";
+
+    /** How long after the last keystroke the user counts as having stopped typing. */
+    private static final long TYPING_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(3);
+
+    /** The shortest time between two writes of the typing state while the user keeps typing. */
+    private static final long TYPING_REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /** How long a typing state lasts without being refreshed. */
+    private static final long TYPING_TTL_MILLIS = 2 * TYPING_REFRESH_MILLIS;
+
+    /** How often a member's state is written while nothing else about it changes. */
+    private static final long HEARTBEAT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** How long a member counts as present without their state being refreshed. */
+    private static final long PRESENCE_TTL_MILLIS = 3 * HEARTBEAT_MILLIS;
+
+    /**
+     * Receives the state of the other members of the room, on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param typingNames  the names of the other members typing, sorted
+         * @param presentCount the number of other members present
+         */
+        void onPresenceChanged(List<String> typingNames, int presentCount);
+    }
+
+    private final DatabaseReference mRootReference;
+    private final HandlerScheduler mScheduler = new HandlerScheduler();
+    private final PresenceRoster mRoster =
+            new PresenceRoster(PRESENCE_TTL_MILLIS, TYPING_TTL_MILLIS);
+    private final TypingThrottle mTypingThrottle;
+
+    /** This member's child of the room's presence node, or null while not in a room. */
+    private DatabaseReference mMemberReference;
+    private DatabaseReference mRoomReference;
+    private String mUserId;
+    private String mName;
+    private Listener mListener;
+
+    /** The difference between the server's clock and this device's, as the database sees it. */
+    private long mServerTimeOffsetMillis;
+
+    private final ValueEventListener mServerTimeOffsetListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            Object offset = dataSnapshot.getValue();
+            if (offset instanceof Number) {
+                mServerTimeOffsetMillis = ((Number) offset).longValue();
+                notifyListener();
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+        }
+    };
+
+    /** Whether the client is connected to the database, see mConnectedListener. */
+    private boolean mConnected;
+
+    /**
+     * Enters the room again whenever the client connects. The server forgets onDisconnect()
+     * operations once it has run them, and has removed this member's state when the connection
+     * dropped, so both are restored on every connection, not just the first.
+     */
+    private final ValueEventListener mConnectedListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            mConnected = Boolean.TRUE.equals(dataSnapshot.getValue());
+            if (mMemberReference == null || !mConnected) {
+                return;
+            }
+            // Registered before the state is written, so the state can't outlive the connection
+            mMemberReference.onDisconnect().removeValue();
+            writeState(mTypingThrottle.isTyping());
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+        }
+    };
+
+    private final ChildEventListener mRoomListener = new ChildEventListener() {
+        @Override
+        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+            putMember(dataSnapshot);
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+            putMember(dataSnapshot);
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot dataSnapshot) {
+            mRoster.remove(dataSnapshot.getKey());
+            notifyListener();
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            Log.w(TAG, "Listening to presence failed", databaseError.toException());
+        }
+    };
+
+    private final Runnable mHeartbeat = new Runnable() {
+        @Override
+        public void run() {
+            writeState(mTypingThrottle.isTyping());
+            mScheduler.postDelayed(mHeartbeat, HEARTBEAT_MILLIS);
+        }
+    };
+
+    /** Updates the listener when a member's state expires, see notifyListener(). */
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            notifyListener();
+        }
+    };
+
+    public RoomPresence(DatabaseReference rootReference) {
+        mRootReference = rootReference;
+        mTypingThrottle = new TypingThrottle(mScheduler, TYPING_IDLE_MILLIS,
+                TYPING_REFRESH_MILLIS, new TypingThrottle.Writer() {
+                    @Override
+                    public void writeTyping(boolean typing) {
+                        writeState(typing);
+                    }
+                });
+    }
+
+    /**
+     * Enters a room as the given user, leaving the room they were in, if any.
+     *
+     * @param listener receives the state of the other members of the room
+     */
+    public void join(String roomId, String userId, String name, Listener listener) {
+        leave();
+        mRoomReference = mRootReference.child("presence").child(roomId);
+        mMemberReference = mRoomReference.child(userId);
+        mUserId = userId;
+        mName = name;
+        mListener = listener;
+
+        // Writes the state as soon as the client is connected, which it may be already
+        mRootReference.child(".info/connected").addValueEventListener(mConnectedListener);
+        mScheduler.postDelayed(mHeartbeat, HEARTBEAT_MILLIS);
+
+        mRoomReference.addChildEventListener(mRoomListener);
+        mRootReference.child(".info/serverTimeOffset")
+                .addValueEventListener(mServerTimeOffsetListener);
+    }
+
+    /**
+     * Leaves the room, if the user is in one, removing their state.
+     */
+    public void leave() {
+        if (mMemberReference == null) {
+            return;
+        }
+        mTypingThrottle.reset();
+        mScheduler.cancel(mHeartbeat);
+        mScheduler.cancel(mExpire);
+        mRootReference.child(".info/connected").removeEventListener(mConnectedListener);
+        mConnected = false;
+        mRoomReference.removeEventListener(mRoomListener);
+        mRootReference.child(".info/serverTimeOffset")
+                .removeEventListener(mServerTimeOffsetListener);
+
+        mMemberReference.removeValue();
+        mMemberReference.onDisconnect().cancel();
+
+        mRoster.clear();
+        mMemberReference = null;
+        mRoomReference = null;
+        mUserId = null;
+        mListener = null;
+    }
+
+    /**
+     * Called whenever the text of the message being written changes.
+     */
+    public void onTextChanged(boolean hasText) {
+        if (mMemberReference == null) {
+            return;
+        }
+        if (hasText) {
+            mTypingThrottle.onKeystroke();
+        } else {
+            mTypingThrottle.stop();
+        }
+    }
+
+    /**
+     * Called when the user sent the message they were typing.
+     */
+    public void onMessageSent() {
+        if (mMemberReference != null) {
+            mTypingThrottle.stop();
+        }
+    }
+
+    /**
+     * Writes this member's whole state in one write, which also refreshes it. Nothing is written
+     * while the client is offline: queued writes would be sent on reconnecting, before the
+     * onDisconnect() hook is registered again, and the current state is written then anyway.
+     */
+    private void writeState(boolean typing) {
+        if (!mConnected) {
+            return;
+        }
+        Map<String, Object> state = new HashMap<>();
+        state.put(FIELD_NAME, mName);
+        state.put(FIELD_TYPING, typing);
+        state.put(FIELD_UPDATED_AT, ServerValue.TIMESTAMP);
+        mMemberReference.setValue(state);
+    }
+
+    private void putMember(DataSnapshot dataSnapshot) {
+        if (dataSnapshot.getKey().equals(mUserId)) {
+            return;
+        }
+        Object name = dataSnapshot.child(FIELD_NAME).getValue();
+        Object typing = dataSnapshot.child(FIELD_TYPING).getValue();
+        Object updatedAt = dataSnapshot.child(FIELD_UPDATED_AT).getValue();
+        if (!(updatedAt instanceof Number)) {
+            // Not a state written by this app, or a local write the server hasn't timestamped
+            return;
+        }
+        mRoster.put(dataSnapshot.getKey(), name instanceof String ? (String) name : "",
+                Boolean.TRUE.equals(typing), ((Number) updatedAt).longValue());
+        notifyListener();
+    }
+
+    /**
+     * Tells the listener the current state of the room, and schedules telling it again when the
+     * next member's state expires.
+     */
+    private void notifyListener() {
+        if (mListener == null) {
+            return;
+        }
+        long now = System.currentTimeMillis() + mServerTimeOffsetMillis;
+        mListener.onPresenceChanged(mRoster.getTypingNames(now), mRoster.getPresentCount(now));
+
+        mScheduler.cancel(mExpire);
+        long nextExpiry = mRoster.getNextExpiryMillis(now);
+        if (nextExpiry != -1) {
+            mScheduler.postDelayed(mExpire, nextExpiry - now);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The photo uploads that haven't finished yet, persisted in SQLite so they survive the app being
+ * killed.
+ *
+ * Each job records how far its upload has got: the resumable upload sessions of the photo and its
+ * thumbnail while they are being uploaded, then their download URLs once they are done. A job that
+ * is picked up again after a restart continues from there instead of starting over.
+ *
+ * The database may be accessed from any thread.
+ */
+public class UploadQueue extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "uploads.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_JOBS = "jobs";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_ROOM_ID = "room_id";
+    private static final String COLUMN_MESSAGE_KEY = "message_key";
+    private static final String COLUMN_USERNAME = "username";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
+    private static final String COLUMN_PHOTO_PATH = "photo_path";
+    private static final String COLUMN_THUMB_PATH = "thumb_path";
+    private static final String COLUMN_WIDTH = "width";
+    private static final String COLUMN_HEIGHT = "height";
+    private static final String COLUMN_PHOTO_SESSION = "photo_session";
+    private static final String COLUMN_THUMB_SESSION = "thumb_session";
+    private static final String COLUMN_PHOTO_URL = "photo_url";
+    private static final String COLUMN_THUMB_URL = "thumb_url";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+    private static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at";
+
+    private static final String[] JOB_COLUMNS = {COLUMN_ID, COLUMN_MESSAGE_KEY, COLUMN_USERNAME,
+            COLUMN_CONTENT_HASH, COLUMN_PHOTO_PATH, COLUMN_THUMB_PATH, COLUMN_WIDTH, COLUMN_HEIGHT,
+            COLUMN_PHOTO_SESSION, COLUMN_THUMB_SESSION, COLUMN_PHOTO_URL, COLUMN_THUMB_URL,
+            COLUMN_ATTEMPTS, COLUMN_NEXT_ATTEMPT_AT, COLUMN_ROOM_ID};
+
+    /**
+     * A photo waiting to be uploaded and posted as a message.
+     */
+    public static class UploadJob {
+        long id;
+
+        /** The room the message is posted to. */
+        String roomId;
+
+        /**
+         * The push key the message will be written to. It is chosen when the job is created, so
+         * posting the message again after a retry overwrites it instead of adding a duplicate.
+         */
+        String messageKey;
+        String username;
+        String contentHash;
+
+        /** The processed photo and thumbnail, in the app's private storage. */
+        String photoPath;
+        String thumbPath;
+        int width;
+        int height;
+
+        /** The resumable upload sessions, once the uploads have started. */
+        String photoSession;
+        String thumbSession;
+
+        /** The download URLs, once the uploads have finished. */
+        String photoUrl;
+        String thumbUrl;
+
+        int attempts;
+
+        /** When the job may be tried again, in milliseconds since the epoch. */
+        long nextAttemptAt;
+    }
+
+    private static UploadQueue sInstance;
+
+    public static synchronized UploadQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UploadQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UploadQueue(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_JOBS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_MESSAGE_KEY + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_USERNAME + " TEXT, "
+                + COLUMN_CONTENT_HASH + " TEXT NOT NULL, "
+                + COLUMN_PHOTO_PATH + " TEXT NOT NULL, "
+                + COLUMN_THUMB_PATH + " TEXT NOT NULL, "
+                + COLUMN_WIDTH + " INTEGER NOT NULL, "
+                + COLUMN_HEIGHT + " INTEGER NOT NULL, "
+                + COLUMN_PHOTO_SESSION + " TEXT, "
+                + COLUMN_THUMB_SESSION + " TEXT, "
+                + COLUMN_PHOTO_URL + " TEXT, "
+                + COLUMN_THUMB_URL + " TEXT, "
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_NEXT_ATTEMPT_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_ROOM_ID + " TEXT NOT NULL DEFAULT '" + ChatServices.DEFAULT_ROOM_ID
+                + "')");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Jobs queued before there were rooms were sent to the only room there was
+            db.execSQL("ALTER TABLE " + TABLE_JOBS + " ADD COLUMN " + COLUMN_ROOM_ID
+                    + " TEXT NOT NULL DEFAULT '" + ChatServices.DEFAULT_ROOM_ID + "'");
+        }
+    }
+
+    /**
+     * Adds a job to the queue and sets its ID.
+     */
+    public void add(UploadJob job) {
+        job.id = getWritableDatabase().insertOrThrow(TABLE_JOBS, null, toContentValues(job));
+    }
+
+    /**
+     * Saves the progress of a job.
+     */
+    public void update(UploadJob job) {
+        getWritableDatabase().update(TABLE_JOBS, toContentValues(job),
+                COLUMN_ID + " = ?", new String[]{String.valueOf(job.id)});
+    }
+
+    /**
+     * Removes a job that has finished or given up.
+     */
+    public void remove(UploadJob job) {
+        getWritableDatabase().delete(TABLE_JOBS,
+                COLUMN_ID + " = ?", new String[]{String.valueOf(job.id)});
+    }
+
+    /**
+     * Returns every job in the queue, oldest first.
+     */
+    public List<UploadJob> getAll() {
+        List<UploadJob> jobs = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_JOBS, JOB_COLUMNS,
+                null, null, null, null, COLUMN_ID);
+        try {
+            while (cursor.moveToNext()) {
+                UploadJob job = new UploadJob();
+                job.id = cursor.getLong(0);
+                job.messageKey = cursor.getString(1);
+                job.username = cursor.getString(2);
+                job.contentHash = cursor.getString(3);
+                job.photoPath = cursor.getString(4);
+                job.thumbPath = cursor.getString(5);
+                job.width = cursor.getInt(6);
+                job.height = cursor.getInt(7);
+                job.photoSession = cursor.getString(8);
+                job.thumbSession = cursor.getString(9);
+                job.photoUrl = cursor.getString(10);
+                job.thumbUrl = cursor.getString(11);
+                job.attempts = cursor.getInt(12);
+                job.nextAttemptAt = cursor.getLong(13);
+                job.roomId = cursor.getString(14);
+                jobs.add(job);
+            }
+        } finally {
+            cursor.close();
+        }
+        return jobs;
+    }
+
+    private static ContentValues toContentValues(UploadJob job) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ROOM_ID, job.roomId);
+        values.put(COLUMN_MESSAGE_KEY, job.messageKey);
+        values.put(COLUMN_USERNAME, job.username);
+        values.put(COLUMN_CONTENT_HASH, job.contentHash);
+        values.put(COLUMN_PHOTO_PATH, job.photoPath);
+        values.put(COLUMN_THUMB_PATH, job.thumbPath);
+        values.put(COLUMN_WIDTH, job.width);
+        values.put(COLUMN_HEIGHT, job.height);
+        values.put(COLUMN_PHOTO_SESSION, job.photoSession);
+        values.put(COLUMN_THUMB_SESSION, job.thumbSession);
+        values.put(COLUMN_PHOTO_URL, job.photoUrl);
+        values.put(COLUMN_THUMB_URL, job.thumbUrl);
+        values.put(COLUMN_ATTEMPTS, job.attempts);
+        values.put(COLUMN_NEXT_ATTEMPT_AT, job.nextAttemptAt);
+        return values;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.ChatTransport;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessageMapper;
+import com.google.firebase.udacity.friendlychat.core.PushKeyGenerator;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A transport that encodes every write like the real one would, acknowledges it straight away and
+ * then forgets it. It keeps no messages, so a send benchmark can run for as long as JMH wants
+ * without the memory it uses growing.
+ */
+final class AckingTransport implements ChatTransport {
+
+    private final PushKeyGenerator mKeyGenerator =
+            new PushKeyGenerator(new Random(BenchmarkData.DEFAULT_SEED));
+    private long mTimeMillis = BenchmarkData.START_TIME_MILLIS;
+
+    private int mWriteCount;
+    private long mEncodedSize;
+
+    @Override
+    public String newKey() {
+        return mKeyGenerator.generate(mTimeMillis++);
+    }
+
+    @Override
+    public Subscription listen(String startKey, int limit, MessageListener listener) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void loadPage(String endKey, int limit, PageCallback callback) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void loadPageAfter(String startKey, int limit, PageCallback callback) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void write(List<FriendlyMessage> messages, WriteCallback callback) {
+        mWriteCount++;
+        for (FriendlyMessage message : messages) {
+            mEncodedSize += FriendlyMessageMapper.toValue(message).size();
+        }
+        if (callback != null) {
+            callback.onWriteComplete(null);
+        }
+    }
+
+    /**
+     * Returns the number of round trips the writes so far would have cost.
+     */
+    int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Returns the number of fields written so far. Only there so the encoding can't be optimized
+     * away.
+     */
+    long getEncodedSize() {
+        return mEncodedSize;
+    }
+}
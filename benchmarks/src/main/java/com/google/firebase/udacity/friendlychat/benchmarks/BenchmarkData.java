@@ -0,0 +1,146 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessageMapper;
+import com.google.firebase.udacity.friendlychat.core.PushKeyGenerator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates the messages the benchmarks work on.
+ *
+ * Everything is derived from a seed and a fixed start time, so every run of a benchmark sees the
+ * same keys, texts and photos. The mix is meant to look like a real room: mostly short texts from
+ * a few dozen authors, with a photo every so often.
+ */
+final class BenchmarkData {
+
+    /** The time of the first generated message. Fixed so keys are the same every run. */
+    static final long START_TIME_MILLIS = 1490000000000L;
+
+    /** The time between two generated messages. */
+    static final long MESSAGE_INTERVAL_MILLIS = 1000;
+
+    static final long DEFAULT_SEED = 42;
+
+    private static final int AUTHOR_COUNT = 40;
+    private static final int PHOTO_EVERY = 10;
+    private static final int MAX_TEXT_LENGTH = 200;
+
+    private static final String PHOTO_URL_PREFIX = "https://firebasestorage.googleapis.com/v0/b/"
+            + "friendlychat.appspot.com/o/chat_photos%2F";
+
+    private static final String WORDS = "the quick brown fox jumps over lazy dog hello see you "
+            + "tomorrow at lunch sounds good thanks did anyone get the photos from saturday";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns {@code count} messages with increasing keys, oldest first.
+     */
+    static List<FriendlyMessage> messages(int count, long seed) {
+        return messages(count, START_TIME_MILLIS, seed);
+    }
+
+    /**
+     * Returns {@code count} messages with increasing keys starting at {@code startTimeMillis},
+     * oldest first.
+     */
+    static List<FriendlyMessage> messages(int count, long startTimeMillis, long seed) {
+        Generator generator = new Generator(startTimeMillis, seed);
+        List<FriendlyMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(generator.next());
+        }
+        return messages;
+    }
+
+    /**
+     * Generates messages one at a time, for when there are too many to hold in a list first.
+     * Generates the same messages as {@link #messages(int, long, long)} for the same start time
+     * and seed.
+     */
+    static final class Generator {
+        private final Random mRandom;
+        private final PushKeyGenerator mKeyGenerator;
+        private final String[] mWords = WORDS.split(" ");
+        private long mNextTimeMillis;
+        private int mCount;
+
+        Generator(long startTimeMillis, long seed) {
+            mRandom = new Random(seed);
+            mKeyGenerator = new PushKeyGenerator(mRandom);
+            mNextTimeMillis = startTimeMillis;
+        }
+
+        /**
+         * Returns the time the next message will be sent at.
+         */
+        long getNextTimeMillis() {
+            return mNextTimeMillis;
+        }
+
+        /**
+         * Returns a message sent {@link #MESSAGE_INTERVAL_MILLIS} after the previous one.
+         */
+        FriendlyMessage next() {
+            String key = mKeyGenerator.generate(mNextTimeMillis);
+            mNextTimeMillis += MESSAGE_INTERVAL_MILLIS;
+            mCount++;
+
+            String author = "Author " + mRandom.nextInt(AUTHOR_COUNT);
+            if (mCount % PHOTO_EVERY == 0) {
+                String name = Long.toHexString(mRandom.nextLong());
+                String token = "?alt=media&token=" + Long.toHexString(mRandom.nextLong());
+                return new FriendlyMessage(key, null, author,
+                        PHOTO_URL_PREFIX + name + ".jpg" + token,
+                        PHOTO_URL_PREFIX + "thumbs%2F" + name + ".jpg" + token,
+                        1280, 960);
+            }
+
+            StringBuilder text = new StringBuilder();
+            int length = 1 + mRandom.nextInt(MAX_TEXT_LENGTH);
+            while (text.length() < length) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(mWords[mRandom.nextInt(mWords.length)]);
+            }
+            return new FriendlyMessage(key, text.toString(), author, null, null, 0, 0);
+        }
+    }
+
+    /**
+     * Returns the value the database would deliver for the message. The database decodes every
+     * JSON number as a Long, so the dimensions are converted to match.
+     */
+    static Map<String, Object> rawValue(FriendlyMessage message) {
+        Map<String, Object> value = new HashMap<>(FriendlyMessageMapper.toValue(message));
+        for (Map.Entry<String, Object> entry : value.entrySet()) {
+            if (entry.getValue() instanceof Integer) {
+                entry.setValue(((Integer) entry.getValue()).longValue());
+            }
+        }
+        return value;
+    }
+}
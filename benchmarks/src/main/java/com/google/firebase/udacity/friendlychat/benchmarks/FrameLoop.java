@@ -0,0 +1,186 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.Scheduler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the app's main thread off the device: a single thread that runs posted tasks as
+ * they come, like a Handler, and runs the tasks given to {@link #getFrameExecutor()} together at
+ * the start of each 60 Hz frame, like the app's FrameExecutor. Its {@link #getScheduler()} runs
+ * delayed tasks on the same thread, like the app's HandlerScheduler.
+ *
+ * It also keeps track of how long each frame's work took, since work that doesn't fit in a frame
+ * is what the user sees as jank.
+ */
+final class FrameLoop {
+
+    static final long FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    private final ScheduledExecutorService mThread = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrentLinkedQueue<Runnable> mFrameTasks = new ConcurrentLinkedQueue<>();
+
+    /** Only touched on the loop's thread. */
+    private long mFrameCount;
+    private long mJankyFrameCount;
+    private long mLongestFrameNanos;
+
+    private final Executor mFrameExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mFrameTasks.add(task);
+        }
+    };
+
+    /** The pending runs of each task posted to mScheduler. Only touched on the loop's thread. */
+    private final Map<Runnable, List<ScheduledFuture<?>>> mScheduled = new HashMap<>();
+
+    private final Scheduler mScheduler = new Scheduler() {
+        @Override
+        public void postDelayed(final Runnable task, long delayMillis) {
+            final List<ScheduledFuture<?>> runs;
+            if (mScheduled.containsKey(task)) {
+                runs = mScheduled.get(task);
+            } else {
+                runs = new ArrayList<>();
+                mScheduled.put(task, runs);
+            }
+            final ScheduledFuture<?>[] run = new ScheduledFuture<?>[1];
+            run[0] = mThread.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runs.remove(run[0]);
+                    if (runs.isEmpty()) {
+                        mScheduled.remove(task);
+                    }
+                    task.run();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            runs.add(run[0]);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            List<ScheduledFuture<?>> runs = mScheduled.remove(task);
+            if (runs != null) {
+                for (ScheduledFuture<?> run : runs) {
+                    run.cancel(false);
+                }
+            }
+        }
+    };
+
+    private final Runnable mFrame = new Runnable() {
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Runnable task;
+            while ((task = mFrameTasks.poll()) != null) {
+                task.run();
+            }
+            long duration = System.nanoTime() - start;
+            mFrameCount++;
+            if (duration > FRAME_INTERVAL_NANOS) {
+                mJankyFrameCount++;
+            }
+            mLongestFrameNanos = Math.max(mLongestFrameNanos, duration);
+        }
+    };
+
+    FrameLoop() {
+        mThread.scheduleAtFixedRate(mFrame, FRAME_INTERVAL_NANOS, FRAME_INTERVAL_NANOS,
+                TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs tasks on the loop's thread as soon as possible, like posting to a Handler.
+     */
+    Executor getExecutor() {
+        return mThread;
+    }
+
+    /**
+     * Runs tasks on the loop's thread at the start of the next frame.
+     */
+    Executor getFrameExecutor() {
+        return mFrameExecutor;
+    }
+
+    /**
+     * Runs tasks on the loop's thread after a delay. Must only be used from the loop's thread.
+     */
+    Scheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Runs the task on the loop's thread and waits for its result.
+     */
+    <T> T call(Callable<T> task) throws InterruptedException {
+        try {
+            return mThread.submit(task).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the frame statistics since the previous call, and starts counting again.
+     */
+    FrameStats takeStats() throws InterruptedException {
+        return call(new Callable<FrameStats>() {
+            @Override
+            public FrameStats call() {
+                FrameStats stats = new FrameStats(mFrameCount, mJankyFrameCount,
+                        mLongestFrameNanos);
+                mFrameCount = 0;
+                mJankyFrameCount = 0;
+                mLongestFrameNanos = 0;
+                return stats;
+            }
+        });
+    }
+
+    void shutdown() {
+        mThread.shutdownNow();
+    }
+
+    static final class FrameStats {
+        final long frameCount;
+        /** Frames whose work took longer than a frame interval. */
+        final long jankyFrameCount;
+        final long longestFrameNanos;
+
+        FrameStats(long frameCount, long jankyFrameCount, long longestFrameNanos) {
+            this.frameCount = frameCount;
+            this.jankyFrameCount = jankyFrameCount;
+            this.longestFrameNanos = longestFrameNanos;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.InMemoryChatTransport;
+import com.google.firebase.udacity.friendlychat.core.MessageHistoryPager;
+import com.google.firebase.udacity.friendlychat.core.MessageStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading a page of older history: reading it from the transport, decoding it, and
+ * merging it into a store that holds the newest page. The transport is the in-memory one, with
+ * callbacks run directly, so no network or thread hop is included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryPageBenchmark {
+
+    private static final int HISTORY_SIZE = 10000;
+
+    @Param({"50", "500"})
+    public int pageSize;
+
+    private InMemoryChatTransport mTransport;
+    private List<FriendlyMessage> mNewestPage;
+    private String mAnchorKey;
+
+    @Setup
+    public void setUp() {
+        mTransport = new InMemoryChatTransport();
+        List<FriendlyMessage> history = BenchmarkData.messages(HISTORY_SIZE,
+                BenchmarkData.DEFAULT_SEED);
+        for (FriendlyMessage message : history) {
+            mTransport.put(message);
+        }
+        mNewestPage = history.subList(HISTORY_SIZE - pageSize, HISTORY_SIZE);
+        mAnchorKey = mNewestPage.get(0).getKey();
+    }
+
+    @Benchmark
+    public MessageStore loadOlderPage() {
+        final MessageStore store = new MessageStore();
+        for (FriendlyMessage message : mNewestPage) {
+            store.put(message);
+        }
+
+        MessageHistoryPager pager = new MessageHistoryPager(mTransport, pageSize);
+        pager.restore(mAnchorKey, true);
+        pager.loadOlder(new MessageHistoryPager.Callback() {
+            @Override
+            public void onPageLoaded(List<FriendlyMessage> olderMessages, boolean hasMore) {
+                for (FriendlyMessage message : olderMessages) {
+                    store.put(message);
+                }
+            }
+        });
+        return store;
+    }
+}
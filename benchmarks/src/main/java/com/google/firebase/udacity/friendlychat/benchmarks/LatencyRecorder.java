@@ -0,0 +1,71 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies and reports their percentiles. Every sample is kept, which at the rates the
+ * load generator runs is a few megabytes at most and gives exact percentiles.
+ *
+ * Not thread-safe.
+ */
+final class LatencyRecorder {
+
+    private long[] mSamples = new long[1024];
+    private int mCount;
+    private boolean mSorted = true;
+
+    void record(long nanos) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = nanos;
+        mSorted = false;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Forgets every sample recorded so far.
+     */
+    void reset() {
+        mCount = 0;
+        mSorted = true;
+    }
+
+    /**
+     * Returns the smallest sample that {@code percentile} percent of the samples are less than or
+     * equal to, or 0 if nothing was recorded.
+     */
+    long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (!mSorted) {
+            Arrays.sort(mSamples, 0, mCount);
+            mSorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100 * mCount) - 1;
+        return mSamples[Math.max(0, Math.min(index, mCount - 1))];
+    }
+
+    long getMax() {
+        return getPercentile(100);
+    }
+}
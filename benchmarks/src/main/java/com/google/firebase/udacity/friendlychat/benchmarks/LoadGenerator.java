@@ -0,0 +1,444 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.ChatRoom;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.InMemoryChatTransport;
+import com.google.firebase.udacity.friendlychat.core.MessageHistoryPager;
+import com.google.firebase.udacity.friendlychat.core.MessageIngestor;
+import com.google.firebase.udacity.friendlychat.core.MessageStore;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Soak test for busy rooms: sends messages into a room at a fixed rate and measures how the client
+ * keeps up.
+ *
+ * The room is an {@link InMemoryChatTransport} standing in for the database, preloaded with a long
+ * history. The client is a {@link ChatRoom}, as in the app, so every event goes through the real
+ * {@link MessageIngestor} on a simulated main thread, see {@link FrameLoop}. Its observer does what
+ * MainActivity's does for a user following the conversation: it adds the received messages to the
+ * room's {@link MessageStore} and trims the store to the newest messages that fit in the window,
+ * whose capacity is computed the way MainActivity computes it from the heap limit. While messages
+ * arrive, the client also pages back through the history once a second, as a user glancing up
+ * would, and the store is trimmed back to the newest messages right after.
+ *
+ * For each rate, it reports the latency from a message being written to it being in the store,
+ * the frames whose work overran a frame interval, garbage collections, and peak heap usage. The
+ * peak heap includes the stand-in backend, whose size is printed before the first rate runs.
+ *
+ * Runs headless on any JVM:
+ *
+ *     ./gradlew :benchmarks:loadgen -PloadgenArgs="--rates=50,500,5000 --history=1000000"
+ *
+ * Options, all optional:
+ * <ul>
+ * <li>{@code --rates}: the messages per second to run at, one after the other. Default 50,500,5000.
+ * <li>{@code --duration}: the seconds measured at each rate. Default 30.
+ * <li>{@code --warmup}: the seconds run at each rate before measuring. Default 5.
+ * <li>{@code --history}: the messages in the room before the first rate runs. Default 1000000.
+ * <li>{@code --memory-class}: the heap limit of the simulated device, in megabytes, which sizes the
+ * window of messages kept, see MainActivity. Default 192.
+ * <li>{@code --seed}: the seed of the generated messages. Default 42.
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    /** The page size MainActivity uses. */
+    private static final int PAGE_SIZE = 50;
+
+    /** The smallest window MainActivity keeps, in pages. */
+    private static final int MIN_WINDOW_PAGES = 4;
+
+    /** The messages MainActivity keeps per megabyte of heap limit, message_window_per_heap_mb. */
+    private static final int WINDOW_PER_HEAP_MB = 16;
+
+    private static final String ROOM_ID = "loadgen";
+
+    /** The app's disk cache isn't part of what is measured. */
+    private static final ChatRoom.Cache NO_CACHE = new ChatRoom.Cache() {
+        @Override
+        public void putAll(String roomId, List<FriendlyMessage> messages) {
+        }
+
+        @Override
+        public void removeAll(String roomId, List<String> keys) {
+        }
+
+        @Override
+        public void clear(String roomId) {
+        }
+    };
+
+    /** How long to wait for the client to catch up once sending has stopped. */
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    private static final long PAGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final InMemoryChatTransport mTransport;
+    private final FrameLoop mFrameLoop;
+    private final BenchmarkData.Generator mGenerator;
+
+    /** The most messages the store keeps, like MainActivity's mMaxWindowCapacity. */
+    private final int mWindowCapacity;
+
+    private LoadGenerator(InMemoryChatTransport transport, FrameLoop frameLoop,
+                          BenchmarkData.Generator generator, int memoryClassMb) {
+        mTransport = transport;
+        mFrameLoop = frameLoop;
+        mGenerator = generator;
+        mWindowCapacity = Math.max(MIN_WINDOW_PAGES * PAGE_SIZE,
+                memoryClassMb * WINDOW_PER_HEAP_MB);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        List<Integer> rates = new ArrayList<>();
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        int historySize = 1000000;
+        int memoryClassMb = 192;
+        long seed = BenchmarkData.DEFAULT_SEED;
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = equals < 0 ? arg : arg.substring(0, equals);
+            String value = equals < 0 ? "" : arg.substring(equals + 1);
+            switch (name) {
+                case "--rates":
+                    for (String rate : value.split(",")) {
+                        rates.add(Integer.parseInt(rate.trim()));
+                    }
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--history":
+                    historySize = Integer.parseInt(value);
+                    break;
+                case "--memory-class":
+                    memoryClassMb = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + arg);
+                    System.exit(2);
+            }
+        }
+        if (rates.isEmpty()) {
+            rates.add(50);
+            rates.add(500);
+            rates.add(5000);
+        }
+
+        FrameLoop frameLoop = new FrameLoop();
+        // The database delivers events on the main thread
+        InMemoryChatTransport transport = new InMemoryChatTransport(frameLoop.getExecutor());
+        BenchmarkData.Generator generator =
+                new BenchmarkData.Generator(BenchmarkData.START_TIME_MILLIS, seed);
+        LoadGenerator loadGenerator =
+                new LoadGenerator(transport, frameLoop, generator, memoryClassMb);
+
+        try {
+            loadGenerator.fillHistory(historySize);
+            for (int rate : rates) {
+                loadGenerator.run(rate, warmupSeconds, durationSeconds);
+            }
+        } finally {
+            frameLoop.shutdown();
+        }
+    }
+
+    private void fillHistory(int historySize) {
+        long start = System.nanoTime();
+        List<FriendlyMessage> chunk = new ArrayList<>();
+        for (int i = 0; i < historySize; i++) {
+            chunk.add(mGenerator.next());
+            if (chunk.size() == 1000 || i == historySize - 1) {
+                mTransport.write(chunk, null);
+                chunk = new ArrayList<>();
+            }
+        }
+        System.gc();
+        printf("History: %d messages, written in %.1f s, heap after GC %.1f MB%n",
+                mTransport.size(), seconds(System.nanoTime() - start), megabytes(usedHeap()));
+        printf("Window: %d messages%n", mWindowCapacity);
+    }
+
+    /**
+     * Sends messages at {@code rate} per second for the warmup and then the measured duration,
+     * and prints what was measured.
+     */
+    private void run(int rate, int warmupSeconds, int durationSeconds)
+            throws InterruptedException {
+        final ConcurrentHashMap<String, Long> sendTimes = new ConcurrentHashMap<>();
+        final LatencyRecorder latencies = new LatencyRecorder();
+        final AtomicInteger delivered = new AtomicInteger();
+
+        // Opened on the main thread, like the rooms of OpenRooms
+        final ChatRoom room = mFrameLoop.call(new Callable<ChatRoom>() {
+            @Override
+            public ChatRoom call() {
+                return new ChatRoom(ROOM_ID, mTransport, PAGE_SIZE, mFrameLoop.getScheduler(),
+                        mFrameLoop.getFrameExecutor(), null, NO_CACHE);
+            }
+        });
+        final MessageStore store = room.getStore();
+        final ChatRoom.Observer observer = new ChatRoom.Observer() {
+            @Override
+            public void onMessagesReceived(List<FriendlyMessage> messages) {
+                long now = System.nanoTime();
+                for (FriendlyMessage message : messages) {
+                    store.put(message);
+                    Long sendTime = sendTimes.remove(message.getKey());
+                    if (sendTime != null) {
+                        latencies.record(now - sendTime);
+                        delivered.incrementAndGet();
+                    }
+                }
+                // The user follows the conversation, so the oldest messages are dropped
+                room.trimToNewest(mWindowCapacity);
+            }
+
+            @Override
+            public void onMessagesRemoved(List<String> keys) {
+                for (String key : keys) {
+                    int position = store.indexOf(key);
+                    if (position >= 0) {
+                        store.remove(position);
+                    }
+                }
+            }
+
+            @Override
+            public void onHistoryReset() {
+                // The room clears the store itself
+            }
+
+            @Override
+            public void onMessagesEvicted(int start, int end) {
+                store.removeRange(start, end);
+            }
+        };
+        mFrameLoop.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                room.setObserver(observer);
+                room.connect();
+                return null;
+            }
+        });
+        final Runnable loadOlder = new Runnable() {
+            @Override
+            public void run() {
+                room.getHistoryPager().loadOlder(new MessageHistoryPager.Callback() {
+                    @Override
+                    public void onPageLoaded(List<FriendlyMessage> olderMessages,
+                                             boolean hasMore) {
+                        store.setHasMoreHistory(hasMore);
+                        for (FriendlyMessage message : olderMessages) {
+                            store.put(message);
+                        }
+                        // Back to the newest messages
+                        room.trimToNewest(mWindowCapacity);
+                    }
+                });
+            }
+        };
+
+        // Warm up, then throw away everything measured so far
+        send(rate, TimeUnit.SECONDS.toNanos(warmupSeconds), sendTimes, loadOlder);
+        awaitDelivery(sendTimes);
+        mFrameLoop.call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                latencies.reset();
+                return null;
+            }
+        });
+        delivered.set(0);
+        mFrameLoop.takeStats();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        resetPeakHeap();
+
+        long start = System.nanoTime();
+        int sent = send(rate, TimeUnit.SECONDS.toNanos(durationSeconds), sendTimes, loadOlder);
+        long sendNanos = System.nanoTime() - start;
+        boolean drained = awaitDelivery(sendTimes);
+
+        FrameLoop.FrameStats frameStats = mFrameLoop.takeStats();
+        long peakHeap = peakHeap();
+        gcCount = gcCount() - gcCount;
+        gcMillis = gcMillis() - gcMillis;
+
+        long[] storeStats = mFrameLoop.call(new Callable<long[]>() {
+            @Override
+            public long[] call() {
+                long[] stats = {store.size(), store.estimateFootprintBytes()};
+                room.close();
+                return stats;
+            }
+        });
+
+        printf("%nRate %d msg/s: sent %d in %.1f s (%.0f msg/s), delivered %d%s%n",
+                rate, sent, seconds(sendNanos), sent / seconds(sendNanos), delivered.get(),
+                drained ? "" : ", gave up waiting for " + sendTimes.size() + " messages");
+        StringBuilder percentiles = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            percentiles.append(String.format(Locale.US, "p%s %.2f  ",
+                    percentile == (long) percentile
+                            ? String.valueOf((long) percentile)
+                            : String.valueOf(percentile),
+                    millis(latencies.getPercentile(percentile))));
+        }
+        printf("  Latency, ms:   %smax %.2f%n", percentiles, millis(latencies.getMax()));
+        printf("  Frames:        %d, %d over %.1f ms, longest %.2f ms%n",
+                frameStats.frameCount, frameStats.jankyFrameCount,
+                millis(FrameLoop.FRAME_INTERVAL_NANOS), millis(frameStats.longestFrameNanos));
+        printf("  GC:            %d collections, %d ms%n", gcCount, gcMillis);
+        printf("  Peak heap:     %.1f MB%n", megabytes(peakHeap));
+        printf("  Store:         %d messages, about %.1f MB%n",
+                storeStats[0], megabytes(storeStats[1]));
+    }
+
+    /**
+     * Writes messages to the room at {@code rate} per second for {@code durationNanos}, and
+     * requests an older page once a second. Falls behind rather than skipping messages if the
+     * writes can't keep up.
+     *
+     * @return the number of messages sent
+     */
+    private int send(int rate, long durationNanos, ConcurrentHashMap<String, Long> sendTimes,
+                     Runnable loadOlder) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long nextPage = start;
+        int sent = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now - start >= durationNanos) {
+                return sent;
+            }
+            long due = start + sent * intervalNanos;
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+            if (now >= nextPage) {
+                mFrameLoop.getExecutor().execute(loadOlder);
+                nextPage += PAGE_INTERVAL_NANOS;
+            }
+
+            FriendlyMessage message = mGenerator.next();
+            sendTimes.put(message.getKey(), System.nanoTime());
+            mTransport.put(message);
+            sent++;
+        }
+    }
+
+    /**
+     * Waits until every message sent has been delivered to the store.
+     *
+     * @return false if that didn't happen within the timeout
+     */
+    private static boolean awaitDelivery(ConcurrentHashMap<String, Long> sendTimes)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (!sendTimes.isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the peak usage of each heap pool. The pools don't all peak at the same
+     * moment, so this overestimates the real peak a little.
+     */
+    private static long peakHeap() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+    private static void printf(String format, Object... args) {
+        System.out.printf(Locale.US, format, args);
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Scheduler that only runs its tasks when told to, so a benchmark decides when a batch window
+ * ends instead of waiting for real time to pass.
+ */
+final class ManualScheduler implements Scheduler {
+
+    private final List<Runnable> mTasks = new ArrayList<>();
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(task);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        while (mTasks.remove(task)) {
+            // Remove every pending copy
+        }
+    }
+
+    /**
+     * Runs every task posted so far, as if all their delays had passed.
+     */
+    void runPending() {
+        List<Runnable> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
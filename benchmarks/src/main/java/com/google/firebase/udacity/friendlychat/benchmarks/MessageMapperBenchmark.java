@@ -0,0 +1,99 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessageMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning the raw values delivered by the database into messages, and back again for
+ * writes. Scores are per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageMapperBenchmark {
+
+    private static final int MESSAGE_COUNT = 1000;
+
+    private List<FriendlyMessage> mMessages;
+    private List<Map<String, Object>> mValues;
+    private ReflectiveMessageMapper<ReflectiveMessageMapper.MessageBean> mReflectiveMapper;
+
+    @Setup
+    public void setUp() {
+        mMessages = BenchmarkData.messages(MESSAGE_COUNT, BenchmarkData.DEFAULT_SEED);
+        mValues = new ArrayList<>(MESSAGE_COUNT);
+        for (FriendlyMessage message : mMessages) {
+            mValues.add(BenchmarkData.rawValue(message));
+        }
+        mReflectiveMapper = new ReflectiveMessageMapper<>(ReflectiveMessageMapper.MessageBean.class);
+    }
+
+    /**
+     * The mapper the app uses.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void fromValue(Blackhole blackhole) {
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            blackhole.consume(FriendlyMessageMapper.fromValue(mMessages.get(i).getKey(),
+                    mValues.get(i)));
+        }
+    }
+
+    /**
+     * Setter-based mapping onto a bean, as the database's own mapper does it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void fromValueReflective(Blackhole blackhole) {
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            ReflectiveMessageMapper.MessageBean bean = mReflectiveMapper.fromValue(mValues.get(i));
+            bean.setKey(mMessages.get(i).getKey());
+            blackhole.consume(bean);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void toValue(Blackhole blackhole) {
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            blackhole.consume(FriendlyMessageMapper.toValue(mMessages.get(i)));
+        }
+    }
+}
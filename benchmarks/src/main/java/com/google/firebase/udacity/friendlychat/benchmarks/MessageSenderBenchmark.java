@@ -0,0 +1,94 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.MessageSender;
+import com.google.firebase.udacity.friendlychat.core.MessageStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sending a burst of messages, such as a user typing quickly, with the sends within the
+ * batch window coalesced into one write, against flushing after every send. Scores are per
+ * message. The transport acknowledges writes immediately, so only the client side is measured,
+ * not the round trips coalescing saves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageSenderBenchmark {
+
+    private static final int BURST_SIZE = 20;
+
+    private AckingTransport mTransport;
+    private ManualScheduler mScheduler;
+    private MessageSender mSender;
+    private List<FriendlyMessage> mBurst;
+
+    @Setup
+    public void setUp() {
+        mTransport = new AckingTransport();
+        mScheduler = new ManualScheduler();
+        mSender = new MessageSender(mTransport, new MessageStore(), mScheduler);
+
+        // The keys of these messages are replaced by the sender
+        mBurst = BenchmarkData.messages(BURST_SIZE, BenchmarkData.DEFAULT_SEED);
+    }
+
+    /**
+     * The whole burst is sent within one batch window, and written when it ends.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void sendCoalesced(Blackhole blackhole) {
+        for (FriendlyMessage message : mBurst) {
+            blackhole.consume(mSender.send(message));
+        }
+        mScheduler.runPending();
+        blackhole.consume(mTransport.getEncodedSize());
+    }
+
+    /**
+     * Every message is written as soon as it is sent.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void sendUnbatched(Blackhole blackhole) {
+        for (FriendlyMessage message : mBurst) {
+            blackhole.consume(mSender.send(message));
+            mSender.flush();
+        }
+        blackhole.consume(mTransport.getEncodedSize());
+    }
+}
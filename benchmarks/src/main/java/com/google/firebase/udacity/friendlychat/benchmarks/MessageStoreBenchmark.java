@@ -0,0 +1,156 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import com.google.firebase.udacity.friendlychat.core.FriendlyMessage;
+import com.google.firebase.udacity.friendlychat.core.MessageStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the message store with {@code storeSize} messages loaded: adding batches of new
+ * messages, merging pages of older ones, and finding and replacing messages by key.
+ *
+ * The batch benchmarks remove the messages they added again before returning, so the store has
+ * the same size for every invocation. Their scores include that removal.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageStoreBenchmark {
+
+    /** The size of a batch of live messages, and of a page of older ones. */
+    private static final int BATCH_SIZE = 50;
+
+    @Param({"1000", "100000"})
+    public int storeSize;
+
+    private MessageStore mStore;
+    private List<FriendlyMessage> mOlderPage;
+    private List<FriendlyMessage> mNewerBatch;
+    private String[] mKeys;
+    private FriendlyMessage[] mEdits;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        // One batch before the loaded messages, the loaded messages, then one batch after them
+        List<FriendlyMessage> messages = BenchmarkData.messages(storeSize + 2 * BATCH_SIZE,
+                BenchmarkData.DEFAULT_SEED);
+        mOlderPage = messages.subList(0, BATCH_SIZE);
+        List<FriendlyMessage> loaded = messages.subList(BATCH_SIZE, BATCH_SIZE + storeSize);
+        mNewerBatch = messages.subList(BATCH_SIZE + storeSize, messages.size());
+
+        mStore = new MessageStore();
+        mKeys = new String[storeSize];
+        mEdits = new FriendlyMessage[storeSize];
+        for (int i = 0; i < storeSize; i++) {
+            FriendlyMessage message = loaded.get(i);
+            mStore.put(message);
+            mKeys[i] = message.getKey();
+            mEdits[i] = new FriendlyMessage(message.getKey(), "edited " + i, message.getName(),
+                    message.getPhotoUrl(), message.getThumbUrl(), message.getWidth(),
+                    message.getHeight());
+        }
+
+        // Visit the keys in a scattered but fixed order, so lookups don't just walk the array
+        for (int i = storeSize - 1; i > 0; i--) {
+            int j = (int) ((i * 2654435761L) % (i + 1));
+            String key = mKeys[i];
+            mKeys[i] = mKeys[j];
+            mKeys[j] = key;
+            FriendlyMessage edit = mEdits[i];
+            mEdits[i] = mEdits[j];
+            mEdits[j] = edit;
+        }
+    }
+
+    /**
+     * A batch of live messages arriving at the bottom of the list.
+     */
+    @Benchmark
+    public int appendBatch() {
+        for (FriendlyMessage message : mNewerBatch) {
+            mStore.put(message);
+        }
+        int size = mStore.size();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mStore.remove(mStore.size() - 1);
+        }
+        return size;
+    }
+
+    /**
+     * A page of older history merged in at the top of the list.
+     */
+    @Benchmark
+    public int mergeOlderPage() {
+        for (FriendlyMessage message : mOlderPage) {
+            mStore.put(message);
+        }
+        int size = mStore.size();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mStore.remove(0);
+        }
+        return size;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int indexOf() {
+        return mStore.indexOf(mKeys[nextIndex()]);
+    }
+
+    /**
+     * An edit to a loaded message, replacing it in place.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int replace() {
+        return mStore.put(mEdits[nextIndex()]);
+    }
+
+    /**
+     * Reading a message back for binding to a row.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public FriendlyMessage get() {
+        return mStore.get(nextIndex());
+    }
+
+    private int nextIndex() {
+        int index = mNext;
+        mNext = index + 1 == storeSize ? 0 : index + 1;
+        return index;
+    }
+}
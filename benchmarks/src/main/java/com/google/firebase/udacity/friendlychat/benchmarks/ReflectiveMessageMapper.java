@@ -0,0 +1,159 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The baseline for {@link MessageMapperBenchmark}: maps a raw database value onto a mutable bean
+ * the way {@code DataSnapshot.getValue(Class)} does, by looking up a setter for every field and
+ * invoking it reflectively, converting numbers to the parameter type on the way.
+ *
+ * The Firebase Database SDK only runs on Android, so it can't be measured on a plain JVM. This
+ * follows what its bean mapper does for every message, with the setters cached per class as the
+ * SDK caches them.
+ */
+final class ReflectiveMessageMapper<T> {
+
+    /**
+     * The shape FriendlyMessage had before it was mapped by hand: a no-argument constructor and a
+     * setter for every field.
+     */
+    public static class MessageBean {
+        private String key;
+        private String text;
+        private String name;
+        private String photoUrl;
+        private String thumbUrl;
+        private int width;
+        private int height;
+
+        public MessageBean() {
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public void setKey(String key) {
+            this.key = key;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public void setText(String text) {
+            this.text = text;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getPhotoUrl() {
+            return photoUrl;
+        }
+
+        public void setPhotoUrl(String photoUrl) {
+            this.photoUrl = photoUrl;
+        }
+
+        public String getThumbUrl() {
+            return thumbUrl;
+        }
+
+        public void setThumbUrl(String thumbUrl) {
+            this.thumbUrl = thumbUrl;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public void setWidth(int width) {
+            this.width = width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public void setHeight(int height) {
+            this.height = height;
+        }
+    }
+
+    private final Class<T> mBeanClass;
+    private final Map<String, Method> mSetters = new HashMap<>();
+
+    ReflectiveMessageMapper(Class<T> beanClass) {
+        mBeanClass = beanClass;
+        for (Method method : beanClass.getMethods()) {
+            String name = method.getName();
+            if (name.startsWith("set") && name.length() > 3
+                    && method.getParameterTypes().length == 1) {
+                String property = Character.toLowerCase(name.charAt(3)) + name.substring(4);
+                mSetters.put(property, method);
+            }
+        }
+    }
+
+    /**
+     * Creates a bean and sets every field of {@code value} that has a setter.
+     */
+    T fromValue(Map<String, Object> value) {
+        try {
+            T bean = mBeanClass.newInstance();
+            for (Map.Entry<String, Object> entry : value.entrySet()) {
+                Method setter = mSetters.get(entry.getKey());
+                if (setter == null) {
+                    continue;
+                }
+                setter.invoke(bean, convert(entry.getValue(), setter.getParameterTypes()[0]));
+            }
+            return bean;
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object convert(Object value, Class<?> type) {
+        if (value instanceof Number) {
+            if (type == int.class || type == Integer.class) {
+                return ((Number) value).intValue();
+            }
+            if (type == long.class || type == Long.class) {
+                return ((Number) value).longValue();
+            }
+            if (type == double.class || type == Double.class) {
+                return ((Number) value).doubleValue();
+            }
+        }
+        return value;
+    }
+}
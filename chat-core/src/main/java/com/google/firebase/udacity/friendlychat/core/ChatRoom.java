@@ -0,0 +1,551 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A chat room: the messages under {@code messages/<roomId>} in the database, and everything that
+ * is kept for them while the room is open.
+ *
+ * Each room has its own transport, store, sender and history pager, so the messages of one room
+ * never pass through another. While the room is connected, it listens to its newest page of
+ * messages and every message sent after it, and keeps its store up to date whether or not it is
+ * on screen:
+ *
+ * - The room on screen has an {@link Observer}, which adds the received messages to the list,
+ *   and so to the store, in batches of at most one per frame.
+ * - A room that is open but not on screen adds them to its store itself, so switching back to it
+ *   shows them without downloading anything.
+ *
+ * Either way, they are written to the {@link Cache} for the next cold start.
+ *
+ * The store only holds a window of the room's history, see {@link #trimWindow}: messages far
+ * from the screen are dropped, and read again from the transport when the user scrolls back to
+ * them. While the window doesn't reach the newest message, new messages are held back until it
+ * catches up, see {@link #loadNewer}.
+ *
+ * Which rooms are open is decided by {@link OpenRooms}. A room must only be used from the thread
+ * the transport delivers callbacks on, which must also be the thread of its scheduler and frame
+ * executor.
+ */
+public class ChatRoom {
+
+    /**
+     * Shows the messages of the room on screen.
+     */
+    public interface Observer {
+        /**
+         * Receives the messages deserialized since the previous frame, in arrival order. The
+         * observer adds them to the room's store, e.g. through the adapter, which tells the list
+         * where they went.
+         */
+        void onMessagesReceived(List<FriendlyMessage> messages);
+
+        /**
+         * Receives the keys of messages deleted from the database, in order with the received
+         * messages: before the messages received in the same frame, and never before a message
+         * that was received ahead of its deletion. The observer removes them from the room's
+         * store.
+         */
+        void onMessagesRemoved(List<String> keys);
+
+        /**
+         * Called when more than a page of messages was sent while the room wasn't connected, so
+         * the messages in the store don't connect to the newest ones. The observer stops showing
+         * them; the room then clears its store and starts over from the newest page.
+         */
+        void onHistoryReset();
+
+        /**
+         * Called when messages far from the screen are dropped to save memory, see
+         * {@link #trimWindow}. The observer removes the messages from position {@code start} up
+         * to, but not including, {@code end} from the room's store.
+         */
+        void onMessagesEvicted(int start, int end);
+    }
+
+    /**
+     * A copy of the newest messages of every room that outlives the process, kept up to date as
+     * messages are received and deleted.
+     */
+    public interface Cache {
+        void putAll(String roomId, List<FriendlyMessage> messages);
+
+        void removeAll(String roomId, List<String> keys);
+
+        void clear(String roomId);
+    }
+
+    /**
+     * How far the store may grow beyond the capacity given to trimWindow(), as a share of it, so
+     * that it isn't trimmed again for every message received.
+     */
+    private static final int TRIM_SLACK_DIVISOR = 4;
+
+    private final String mRoomId;
+    private final int mPageSize;
+    private final ChatTransport mTransport;
+    private final MessageStore mStore = new MessageStore();
+    private final MessageSender mSender;
+    private final MessageHistoryPager mHistoryPager;
+    private final MessageIngestor mIngestor;
+    private final Scheduler mScheduler;
+    private final Cache mCache;
+
+    private Observer mObserver;
+
+    /** The live subscription to the newest messages, or null if the room isn't connected. */
+    private ChatTransport.Subscription mSubscription;
+
+    /**
+     * The key of the newest message that was already in the store when the room connected, or
+     * null once the subscription has delivered it. See connect().
+     */
+    private String mResumeAnchorKey;
+
+    /**
+     * The keys of the messages removed from the subscription by the batch of events being
+     * delivered. Those that weren't just pushed out of its window are handed to the ingestor once
+     * the batch is over, see onMessageRemoved().
+     */
+    private final List<String> mRemovedKeys = new ArrayList<>();
+
+    /** Whether older messages than the oldest one in the store were dropped by trimWindow(). */
+    private boolean mOlderTrimmed;
+
+    /**
+     * Whether newer messages than the newest one in the store were dropped by trimWindow(), so
+     * the store no longer reaches the newest message of the room. Until loadNewer() catches up,
+     * new messages go to mHeldBackMessages instead of the store.
+     */
+    private boolean mNewerTrimmed;
+
+    /** The newest messages received while mNewerTrimmed, at most a page of them. */
+    private final List<FriendlyMessage> mHeldBackMessages = new ArrayList<>();
+
+    private final Runnable mQueueRemovals = new Runnable() {
+        @Override
+        public void run() {
+            mIngestor.remove(new ArrayList<>(mRemovedKeys));
+            mRemovedKeys.clear();
+        }
+    };
+
+    private final ChatTransport.MessageListener mMessageListener =
+            new ChatTransport.MessageListener() {
+                @Override
+                public void onMessageAdded(ChatTransport.RawMessage message) {
+                    // When resuming, the first message received tells us whether the new
+                    // messages connect to the ones already loaded
+                    if (mResumeAnchorKey != null) {
+                        String anchorKey = mResumeAnchorKey;
+                        mResumeAnchorKey = null;
+                        if (anchorKey.equals(message.getKey())) {
+                            // Already loaded; everything after it is new
+                            return;
+                        }
+                        // More than a page of messages was sent while we weren't listening.
+                        // Rather than leave a hole in the history, start over from the newest
+                        // page.
+                        resetHistory();
+                    }
+
+                    // Remember where the loaded history starts, so the next older page can
+                    // follow it. Once older messages have been dropped, the pager already
+                    // knows.
+                    if (!mOlderTrimmed) {
+                        mHistoryPager.onMessageReceived(message.getKey());
+                    }
+
+                    // A new message pushes the oldest one out of the limitToLast() window. Such a
+                    // message is still part of the history, so it isn't deleted.
+                    for (int i = mRemovedKeys.size() - 1; i >= 0; i--) {
+                        if (mRemovedKeys.get(i).compareTo(message.getKey()) < 0) {
+                            mRemovedKeys.remove(i);
+                        }
+                    }
+
+                    // Deserialized in the background, and delivered along with the other
+                    // messages received this frame
+                    mIngestor.ingest(message);
+                }
+
+                // A message was edited. The ingestor delivers it after any messages still being
+                // deserialized, and it replaces the message with the same key in place.
+                @Override
+                public void onMessageChanged(ChatTransport.RawMessage message) {
+                    mIngestor.ingest(message);
+                }
+
+                // Called when a message is deleted, but also when a new message pushes the oldest
+                // one out of the limitToLast() window, in the same batch of events as the
+                // onMessageAdded() for the new message. Deletions are therefore only queued once
+                // the batch is over, for the keys that weren't pushed out by a newer message.
+                // They go through the ingestor like everything else, so a deletion is never
+                // applied before an addition or edit of the same message that came before it.
+                @Override
+                public void onMessageRemoved(String key) {
+                    if (mRemovedKeys.isEmpty()) {
+                        mScheduler.postDelayed(mQueueRemovals, 0);
+                    }
+                    mRemovedKeys.add(key);
+                }
+            };
+
+    /**
+     * @param transport     reads and writes the messages of this room only
+     * @param pageSize      the number of messages in the newest page and every older one
+     * @param frameExecutor delivers the received messages, at the start of the next frame
+     * @param preparer      prepares each received message in the background, or null
+     */
+    public ChatRoom(String roomId, ChatTransport transport, int pageSize, Scheduler scheduler,
+                    Executor frameExecutor, MessageIngestor.Preparer preparer, Cache cache) {
+        mRoomId = roomId;
+        mPageSize = pageSize;
+        mTransport = transport;
+        mScheduler = scheduler;
+        mCache = cache;
+        mSender = new MessageSender(transport, mStore, scheduler);
+        mHistoryPager = new MessageHistoryPager(transport, pageSize);
+        mIngestor = new MessageIngestor(frameExecutor, new MessageIngestor.Sink() {
+            @Override
+            public void onMessagesIngested(List<FriendlyMessage> messages) {
+                List<FriendlyMessage> inWindow = inWindow(messages);
+                if (mObserver != null) {
+                    // Messages sent from this device are already on screen, and are only
+                    // replaced
+                    if (!inWindow.isEmpty()) {
+                        mObserver.onMessagesReceived(inWindow);
+                    }
+                } else {
+                    for (FriendlyMessage message : inWindow) {
+                        mStore.put(message);
+                    }
+                }
+                mCache.putAll(mRoomId, messages);
+            }
+
+            @Override
+            public void onMessagesRemoved(List<String> keys) {
+                applyRemovals(keys);
+            }
+        }, preparer);
+    }
+
+    public String getRoomId() {
+        return mRoomId;
+    }
+
+    public ChatTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Returns the messages of this room loaded so far.
+     */
+    public MessageStore getStore() {
+        return mStore;
+    }
+
+    public MessageSender getMessageSender() {
+        return mSender;
+    }
+
+    /**
+     * Returns the pager that loads the older messages of this room.
+     */
+    public MessageHistoryPager getHistoryPager() {
+        return mHistoryPager;
+    }
+
+    /**
+     * Sets the observer showing this room, or null if the room isn't on screen.
+     */
+    public void setObserver(Observer observer) {
+        mObserver = observer;
+    }
+
+    public boolean isConnected() {
+        return mSubscription != null;
+    }
+
+    /**
+     * Keeps at most {@code capacity} messages in the store, around the ones on screen, once it
+     * holds a quarter more than that. Messages are dropped from whichever end is further from the
+     * screen: older ones are read again by the history pager, newer ones by loadNewer(). Messages
+     * that haven't been acknowledged by the database are never dropped.
+     *
+     * @param firstVisible the position of the first message on screen
+     * @param lastVisible  the position of the last message on screen
+     */
+    public void trimWindow(int firstVisible, int lastVisible, int capacity) {
+        int size = mStore.size();
+        if (size <= capacity + capacity / TRIM_SLACK_DIVISOR || firstVisible < 0) {
+            return;
+        }
+        firstVisible = Math.min(firstVisible, size - 1);
+        lastVisible = Math.max(firstVisible, Math.min(lastVisible, size - 1));
+
+        // Centered on the screen, unless the screen is near either end
+        int margin = Math.max(0, capacity - (lastVisible - firstVisible + 1)) / 2;
+        int start = Math.max(0, firstVisible - margin);
+        int end = Math.min(size, Math.max(start + capacity, lastVisible + 1));
+        start = Math.min(start, Math.max(0, end - capacity));
+        if (hasUnsentMessages(end, size)) {
+            end = size;
+        }
+        if (hasUnsentMessages(0, start)) {
+            start = 0;
+        }
+
+        // Newer ones first, so the positions of the older ones don't change
+        if (end < size) {
+            evict(end, size);
+            mNewerTrimmed = true;
+        }
+        if (start > 0) {
+            evict(0, start);
+            mOlderTrimmed = true;
+            mStore.setHasMoreHistory(true);
+            mHistoryPager.trimTo(mStore.getOldestKey());
+        }
+    }
+
+    /**
+     * Keeps at most {@code capacity} of the newest messages in the store, like trimWindow() with
+     * the newest message on screen, e.g. for a room that isn't on screen.
+     */
+    public void trimToNewest(int capacity) {
+        int newest = mStore.size() - 1;
+        trimWindow(newest, newest, capacity);
+    }
+
+    /**
+     * Returns true if newer messages than the ones in the store were dropped by trimWindow(), and
+     * aren't being loaded again yet, see {@link MessageHistoryPager#canLoadNewer()}.
+     */
+    public boolean canLoadNewer() {
+        return mNewerTrimmed && !mStore.isEmpty() && mHistoryPager.canLoadNewer();
+    }
+
+    /**
+     * Loads the page of messages after the newest one in the store, once newer ones were dropped
+     * by trimWindow(). The callback adds the page to the store. When the page reaches the newest
+     * message in the room, the messages held back meanwhile are added to it, and new messages go
+     * to the store again.
+     */
+    public void loadNewer(final MessageHistoryPager.Callback callback) {
+        if (!canLoadNewer()) {
+            return;
+        }
+        final String newestKey = mStore.getNewestKey();
+        mHistoryPager.loadNewer(newestKey, new MessageHistoryPager.Callback() {
+            @Override
+            public void onPageLoaded(List<FriendlyMessage> newerMessages, boolean hasMore) {
+                // The window may have moved, or been reset, while the page was loading
+                if (!mNewerTrimmed || !newestKey.equals(mStore.getNewestKey())) {
+                    return;
+                }
+                List<FriendlyMessage> page = newerMessages;
+                if (!hasMore) {
+                    String pageEndKey = newerMessages.isEmpty()
+                            ? newestKey
+                            : newerMessages.get(newerMessages.size() - 1).getKey();
+                    page = new ArrayList<>(newerMessages);
+                    for (FriendlyMessage message : mHeldBackMessages) {
+                        if (message.getKey().compareTo(pageEndKey) > 0) {
+                            page.add(message);
+                        }
+                    }
+                    mHeldBackMessages.clear();
+                    mNewerTrimmed = false;
+                }
+                callback.onPageLoaded(page, hasMore);
+            }
+        });
+    }
+
+    /**
+     * Starts over from the newest page if newer messages than the ones in the store were dropped
+     * by trimWindow(), e.g. before the user sends a message, which has to follow the newest one.
+     * Like when the history is reset, the observer is told to stop showing the stored messages.
+     */
+    public void jumpToNewest() {
+        if (!mNewerTrimmed) {
+            return;
+        }
+        boolean connected = isConnected();
+        disconnect();
+        mIngestor.clear();
+        if (mObserver != null) {
+            mObserver.onHistoryReset();
+        }
+        // Keeps the send state of messages still in flight
+        mStore.removeAll();
+        mStore.setHasMoreHistory(true);
+        mHistoryPager.reset();
+        clearTrim();
+        if (connected) {
+            connect();
+        }
+    }
+
+    /**
+     * Starts listening to the newest messages, if the room isn't already. If messages have already
+     * been loaded, it listens from the newest of them instead, so only messages sent since then
+     * are downloaded. Pages that failed to load while the room was disconnected may be requested
+     * again.
+     */
+    public void connect() {
+        if (mSubscription != null) {
+            return;
+        }
+        mHistoryPager.retry();
+        // A store that doesn't reach the newest message has nothing to resume from, and holds
+        // back the newest page until loadNewer() catches up with it
+        mResumeAnchorKey = mNewerTrimmed ? null : mStore.getNewestKey();
+        if (mResumeAnchorKey == null) {
+            mSubscription = mHistoryPager.listenToNewestPage(mMessageListener);
+        } else {
+            mSubscription = mHistoryPager.listenFrom(mResumeAnchorKey, mMessageListener);
+        }
+    }
+
+    /**
+     * Stops listening, keeping the messages loaded so far. Messages already received are still
+     * added to the store; they are newer than the newest stored message, so connecting again only
+     * receives them again if they haven't been delivered by then.
+     */
+    public void disconnect() {
+        if (mSubscription == null) {
+            return;
+        }
+        mSubscription.cancel();
+        mSubscription = null;
+        mScheduler.cancel(mQueueRemovals);
+        mRemovedKeys.clear();
+        mResumeAnchorKey = null;
+    }
+
+    /**
+     * Disconnects the room and drops everything kept for it, including the messages that haven't
+     * been written yet. The room can't be used afterwards.
+     */
+    public void close() {
+        disconnect();
+        mObserver = null;
+        mSender.clear();
+        mSender.setListener(null);
+        mHistoryPager.reset();
+        mIngestor.shutdown();
+        clearTrim();
+    }
+
+    /**
+     * Clears the store, and the cache, when the newest messages don't connect to the stored ones.
+     */
+    private void resetHistory() {
+        mIngestor.clear();
+        if (mObserver != null) {
+            mObserver.onHistoryReset();
+        }
+        mStore.clear();
+        mCache.clear(mRoomId);
+        mHistoryPager.reset();
+        clearTrim();
+    }
+
+    private void clearTrim() {
+        mOlderTrimmed = false;
+        mNewerTrimmed = false;
+        mHeldBackMessages.clear();
+    }
+
+    /**
+     * Removes the messages from position {@code start} up to {@code end} from the store, through
+     * the observer if the room is on screen.
+     */
+    private void evict(int start, int end) {
+        if (mObserver != null) {
+            mObserver.onMessagesEvicted(start, end);
+        } else {
+            mStore.removeRange(start, end);
+        }
+    }
+
+    private boolean hasUnsentMessages(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mStore.getSendState(mStore.getKey(i)) != MessageStore.SEND_STATE_SENT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the received messages that belong in the store. While the store holds a trimmed
+     * window, messages newer than the window are held back until loadNewer() catches up with
+     * them, and changes to messages older than it are dropped, since they are read again with
+     * their page.
+     */
+    private List<FriendlyMessage> inWindow(List<FriendlyMessage> messages) {
+        String oldestKey = mStore.getOldestKey();
+        String newestKey = mStore.getNewestKey();
+        if ((!mOlderTrimmed && !mNewerTrimmed) || oldestKey == null) {
+            return messages;
+        }
+        List<FriendlyMessage> inWindow = new ArrayList<>(messages.size());
+        for (FriendlyMessage message : messages) {
+            if (mNewerTrimmed && message.getKey().compareTo(newestKey) > 0) {
+                mHeldBackMessages.add(message);
+            } else if (!mOlderTrimmed || message.getKey().compareTo(oldestKey) >= 0) {
+                inWindow.add(message);
+            }
+        }
+        // Older ones are read again by loadNewer() anyway
+        int excess = mHeldBackMessages.size() - mPageSize;
+        if (excess > 0) {
+            mHeldBackMessages.subList(0, excess).clear();
+        }
+        return inWindow;
+    }
+
+    /**
+     * Deletes the messages that were removed from the database, from the store and from the
+     * cache, along with any that were held back.
+     */
+    private void applyRemovals(List<String> keys) {
+        for (int i = mHeldBackMessages.size() - 1; i >= 0; i--) {
+            if (keys.contains(mHeldBackMessages.get(i).getKey())) {
+                mHeldBackMessages.remove(i);
+            }
+        }
+        if (mObserver != null) {
+            mObserver.onMessagesRemoved(keys);
+        } else {
+            for (String key : keys) {
+                int position = mStore.indexOf(key);
+                if (position >= 0) {
+                    mStore.remove(position);
+                }
+            }
+        }
+        mCache.removeAll(mRoomId, keys);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.List;
+
+/**
+ * The backend the chat reads messages from and writes them to.
+ *
+ * The messaging logic only talks to the backend through this interface, so it runs the same
+ * against the Firebase Realtime Database in the app and against an {@link InMemoryChatTransport}
+ * on a plain JVM.
+ *
+ * Messages are identified by push keys, which sort in the order the messages were sent. Callbacks
+ * are delivered on the thread the transport was set up to use, which in the app is the main
+ * thread. All of the events caused by one change are delivered together, in a single task.
+ */
+public interface ChatTransport {
+
+    /**
+     * A message as the backend stores it. Its value is only decoded when getValue() is called,
+     * so that can be done off the thread the message was delivered on.
+     */
+    interface RawMessage {
+        String getKey();
+
+        /**
+         * Returns the raw value of the message: a map of field names to Strings and Longs, or
+         * something else if the backend holds data that isn't a message.
+         */
+        Object getValue();
+    }
+
+    /**
+     * Receives the messages of a live subscription, see {@link #listen}.
+     */
+    interface MessageListener {
+        void onMessageAdded(RawMessage message);
+
+        void onMessageChanged(RawMessage message);
+
+        /**
+         * Called when a message is deleted, or when it leaves the subscription's window because
+         * newer messages were added.
+         */
+        void onMessageRemoved(String key);
+    }
+
+    /**
+     * Receives a page of messages, see {@link #loadPage} and {@link #loadPageAfter}.
+     */
+    interface PageCallback {
+        /**
+         * @param messages the messages of the page, oldest first
+         */
+        void onPageLoaded(List<RawMessage> messages);
+
+        void onPageFailed(Exception error);
+    }
+
+    /**
+     * Learns whether a write succeeded, see {@link #write}.
+     */
+    interface WriteCallback {
+        /**
+         * @param error the reason the write failed, or null if it succeeded
+         */
+        void onWriteComplete(Exception error);
+    }
+
+    /**
+     * A live subscription, which receives events until it is cancelled.
+     */
+    interface Subscription {
+        void cancel();
+    }
+
+    /**
+     * Returns a new push key, without contacting the backend. Keys generated later sort after
+     * keys generated earlier.
+     */
+    String newKey();
+
+    /**
+     * Listens to the newest {@code limit} messages, then to every new message, and to changes
+     * and deletions of those messages.
+     *
+     * @param startKey if not null, only messages with this key or a later one are received
+     */
+    Subscription listen(String startKey, int limit, MessageListener listener);
+
+    /**
+     * Loads the newest {@code limit} messages whose keys are at most {@code endKey}, including the
+     * message at {@code endKey} itself.
+     */
+    void loadPage(String endKey, int limit, PageCallback callback);
+
+    /**
+     * Loads the oldest {@code limit} messages whose keys are at least {@code startKey}, including
+     * the message at {@code startKey} itself.
+     */
+    void loadPageAfter(String startKey, int limit, PageCallback callback);
+
+    /**
+     * Writes messages, each at its own push key, in a single atomic update.
+     *
+     * @param callback notified when the backend has acknowledged or rejected the write, or null
+     */
+    void write(List<FriendlyMessage> messages, WriteCallback callback);
+}
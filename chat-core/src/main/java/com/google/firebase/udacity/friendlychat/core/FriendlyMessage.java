@@ -0,0 +1,98 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+/**
+ * A single chat message. Messages are immutable, so they can be handed between the threads that
+ * read them from the database and the main thread without copying or locking.
+ *
+ * Messages are converted to and from database values by {@link FriendlyMessageMapper}.
+ */
+public final class FriendlyMessage {
+
+    /**
+     * The push key of this message in its room's node under "messages", or null if it hasn't been
+     * given one yet. It is the name of the message's location rather than part of its value.
+     */
+    private final String key;
+
+    private final String text;
+    private final String name;
+    private final String photoUrl;
+
+    /** The URL of a small preview of the photo, or null if there is no photo or no thumbnail. */
+    private final String thumbUrl;
+
+    /** The width of the photo in pixels, or 0 if unknown. */
+    private final int width;
+
+    /** The height of the photo in pixels, or 0 if unknown. */
+    private final int height;
+
+    public FriendlyMessage(String key, String text, String name, String photoUrl, String thumbUrl,
+                           int width, int height) {
+        this.key = key;
+        this.text = text;
+        this.name = name;
+        this.photoUrl = photoUrl;
+        this.thumbUrl = thumbUrl;
+        this.width = width;
+        this.height = height;
+    }
+
+    public FriendlyMessage(String text, String name, String photoUrl) {
+        this(null, text, name, photoUrl, null, 0, 0);
+    }
+
+    public FriendlyMessage(String name, String photoUrl, String thumbUrl, int width, int height) {
+        this(null, null, name, photoUrl, thumbUrl, width, height);
+    }
+
+    /**
+     * Returns a copy of this message with the given push key.
+     */
+    public FriendlyMessage withKey(String key) {
+        return new FriendlyMessage(key, text, name, photoUrl, thumbUrl, width, height);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPhotoUrl() {
+        return photoUrl;
+    }
+
+    public String getThumbUrl() {
+        return thumbUrl;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts FriendlyMessages to and from the values stored in the "messages" node, without the
+ * reflection used by {@code DataSnapshot.getValue(FriendlyMessage.class)}.
+ *
+ * The reflective mapper looks up and invokes the setters of the class for every message, which
+ * dominates the CPU time of the initial sync on older devices. Here the raw value of a message,
+ * a map of field names to Strings and Longs, is read field by field, and the FriendlyMessage is
+ * created in one step.
+ */
+public final class FriendlyMessageMapper {
+
+    private static final String FIELD_TEXT = "text";
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_PHOTO_URL = "photoUrl";
+    private static final String FIELD_THUMB_URL = "thumbUrl";
+    private static final String FIELD_WIDTH = "width";
+    private static final String FIELD_HEIGHT = "height";
+
+    private FriendlyMessageMapper() {
+    }
+
+    /**
+     * Returns the message held by a raw message from the transport, or null if its value isn't
+     * a message.
+     */
+    public static FriendlyMessage fromRaw(ChatTransport.RawMessage message) {
+        return fromValue(message.getKey(), message.getValue());
+    }
+
+    /**
+     * Returns the message held by a raw database value, as returned by
+     * {@code DataSnapshot.getValue()}, or null if the value isn't a message.
+     *
+     * @param key the push key of the message
+     */
+    public static FriendlyMessage fromValue(String key, Object value) {
+        if (!(value instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> fields = (Map<?, ?>) value;
+        return new FriendlyMessage(key,
+                getString(fields, FIELD_TEXT),
+                getString(fields, FIELD_NAME),
+                getString(fields, FIELD_PHOTO_URL),
+                getString(fields, FIELD_THUMB_URL),
+                getInt(fields, FIELD_WIDTH),
+                getInt(fields, FIELD_HEIGHT));
+    }
+
+    /**
+     * Returns the value to write to the database for a message. Fields without a value are left
+     * out, so text messages don't carry empty photo fields.
+     */
+    public static Map<String, Object> toValue(FriendlyMessage message) {
+        Map<String, Object> value = new HashMap<>();
+        putIfPresent(value, FIELD_TEXT, message.getText());
+        putIfPresent(value, FIELD_NAME, message.getName());
+        putIfPresent(value, FIELD_PHOTO_URL, message.getPhotoUrl());
+        putIfPresent(value, FIELD_THUMB_URL, message.getThumbUrl());
+        if (message.getWidth() > 0 && message.getHeight() > 0) {
+            value.put(FIELD_WIDTH, message.getWidth());
+            value.put(FIELD_HEIGHT, message.getHeight());
+        }
+        return value;
+    }
+
+    private static String getString(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Whole numbers are read as Longs, but a value written by another client may be a Double.
+     */
+    private static int getInt(Map<?, ?> fields, String name) {
+        Object value = fields.get(name);
+        return value instanceof Number ? ((Number) value).intValue() : 0;
+    }
+
+    private static void putIfPresent(Map<String, Object> value, String name, String field) {
+        if (field != null) {
+            value.put(name, field);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts recorded values in logarithmic buckets, so that percentiles can be reported without
+ * keeping every value.
+ *
+ * Each power of two is split into 8 buckets, so a percentile is accurate to within about 6% of
+ * its value, whatever the range of the values. Recording only increments a few atomic counters,
+ * without locking or allocating, so it is cheap enough for hot paths such as binding rows, and
+ * may be done from any thread.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Enough buckets for every positive long. */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long min = mMin.get();
+        while (value < min && !mMin.compareAndSet(min, value)) {
+            min = mMin.get();
+        }
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a value of {@link System#nanoTime()}, in
+     * microseconds.
+     */
+    public void recordMicrosSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a value of {@link System#nanoTime()}, in
+     * milliseconds.
+     */
+    public void recordMillisSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the smallest value recorded, or 0 if nothing has been recorded.
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : mMin.get();
+    }
+
+    /**
+     * Returns the largest value recorded, or 0 if nothing has been recorded.
+     */
+    public long getMax() {
+        return getCount() == 0 ? 0 : mMax.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded, or 0 if nothing has been recorded.
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Returns an estimate of the value that {@code percentile} percent of the recorded values are
+     * less than or equal to, or 0 if nothing has been recorded. Values recorded while this runs
+     * may or may not be included.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        if (percentile >= 100) {
+            return getMax();
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // The middle of the bucket, but never beyond what was actually recorded
+                long lower = lowerBoundOf(i);
+                long upper = i + 1 < BUCKETS ? lowerBoundOf(i + 1) - 1 : Long.MAX_VALUE;
+                long estimate = lower + (upper - lower) / 2;
+                return Math.max(getMin(), Math.min(estimate, getMax()));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets every value recorded so far. Values recorded while this runs may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each. Above that, the highest set bit picks the power
+     * of two, and the SUB_BUCKET_BITS bits below it pick the bucket within it.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value that falls into the bucket.
+     */
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << shift;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the history of a room into buckets of one day each, UTC, so no single node of the
+ * backend holds every message ever sent to the room.
+ *
+ * The bucket of a message follows from its push key, whose first characters encode the time it
+ * was sent, see {@link PushKeyGenerator#timestampOf(String)}. Bucket IDs are the date as
+ * {@code yyyyMMdd}, so they sort in time order like the keys they hold, and can be listed with
+ * the same ordered queries as messages.
+ *
+ * A bucket is sealed once it ended {@link #SEAL_AFTER_MILLIS} ago. Messages are no longer
+ * expected in it, so it can be archived in one piece.
+ */
+public final class HistoryBuckets {
+
+    public static final long BUCKET_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * How long after a bucket ends it is sealed. Leaves room for messages sent from devices whose
+     * clocks are behind, and for uploads that were queued while offline.
+     */
+    public static final long SEAL_AFTER_MILLIS = TimeUnit.DAYS.toMillis(2);
+
+    private HistoryBuckets() {
+    }
+
+    /**
+     * Returns the ID of the bucket holding the message with the given push key.
+     *
+     * @throws IllegalArgumentException if the key isn't a push key
+     */
+    public static String bucketOf(String pushKey) {
+        return bucketAt(PushKeyGenerator.timestampOf(pushKey));
+    }
+
+    /**
+     * Returns the ID of the bucket holding the messages sent at the given time, in milliseconds
+     * since the epoch.
+     */
+    public static String bucketAt(long timeMillis) {
+        // Days since 1970-01-01 to a civil date, after Howard Hinnant's days_from_civil inverse,
+        // so no Calendar has to be created for every message
+        long days = floorDiv(timeMillis, BUCKET_MILLIS) + 719468;
+        long era = floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return String.format(Locale.US, "%04d%02d%02d", year, month, day);
+    }
+
+    /**
+     * Returns the time the bucket starts, in milliseconds since the epoch.
+     *
+     * @throws IllegalArgumentException if the ID isn't a bucket ID
+     */
+    public static long startOf(String bucketId) {
+        if (bucketId == null || bucketId.length() != 8) {
+            throw new IllegalArgumentException("Not a bucket: " + bucketId);
+        }
+        long year;
+        long month;
+        long day;
+        try {
+            year = Long.parseLong(bucketId.substring(0, 4));
+            month = Long.parseLong(bucketId.substring(4, 6));
+            day = Long.parseLong(bucketId.substring(6, 8));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a bucket: " + bucketId, e);
+        }
+        // The civil date back to days since 1970-01-01
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return (era * 146097 + dayOfEra - 719468) * BUCKET_MILLIS;
+    }
+
+    /**
+     * Returns whether no more messages are expected in the bucket at the given time.
+     */
+    public static boolean isSealed(String bucketId, long nowMillis) {
+        return startOf(bucketId) + BUCKET_MILLIS + SEAL_AFTER_MILLIS <= nowMillis;
+    }
+
+    /** Division rounding down, so times before the epoch land in the right day. */
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? quotient - 1 : quotient;
+    }
+}
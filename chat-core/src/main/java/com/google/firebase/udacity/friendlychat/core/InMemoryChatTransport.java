@@ -0,0 +1,264 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link ChatTransport} that keeps the messages in memory, for running and measuring the chat
+ * off the device.
+ *
+ * Messages are stored as the same raw values the Realtime Database would hold, so reading them
+ * goes through the same decoding as in the app. Callbacks are delivered on the executor given to
+ * the constructor, one task per change, like the Firebase client does on the main thread. Unlike
+ * a limitToLast() query, a subscription doesn't drop its oldest messages as new ones arrive.
+ *
+ * Other clients can be simulated with {@link #put} and {@link #remove}. All methods may be called
+ * from any thread.
+ */
+public class InMemoryChatTransport implements ChatTransport {
+
+    /** Runs callbacks on the thread that caused them. */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Executor mCallbackExecutor;
+    private final PushKeyGenerator mKeyGenerator = new PushKeyGenerator();
+
+    /** The raw values of all messages, by push key. Guarded by itself. */
+    private final NavigableMap<String, Object> mMessages = new TreeMap<>();
+
+    private final List<LiveSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a transport that runs every callback directly on the calling thread.
+     */
+    public InMemoryChatTransport() {
+        this(DIRECT);
+    }
+
+    public InMemoryChatTransport(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public String newKey() {
+        return mKeyGenerator.generate(System.currentTimeMillis());
+    }
+
+    @Override
+    public Subscription listen(String startKey, int limit, MessageListener listener) {
+        final LiveSubscription subscription = new LiveSubscription(startKey, listener);
+        final List<RawMessage> initial;
+        synchronized (mMessages) {
+            NavigableMap<String, Object> range = startKey == null
+                    ? mMessages
+                    : mMessages.tailMap(startKey, true);
+            initial = newest(range, limit);
+            // Registered under the lock, so no write falls between the initial messages and
+            // the live ones
+            mSubscriptions.add(subscription);
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (RawMessage message : initial) {
+                    if (subscription.mCancelled) {
+                        return;
+                    }
+                    subscription.mListener.onMessageAdded(message);
+                }
+            }
+        });
+        return subscription;
+    }
+
+    @Override
+    public void loadPage(String endKey, int limit, final PageCallback callback) {
+        final List<RawMessage> page;
+        synchronized (mMessages) {
+            page = newest(mMessages.headMap(endKey, true), limit);
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPageLoaded(page);
+            }
+        });
+    }
+
+    @Override
+    public void loadPageAfter(String startKey, int limit, final PageCallback callback) {
+        final List<RawMessage> page = new ArrayList<>();
+        synchronized (mMessages) {
+            for (Map.Entry<String, Object> entry
+                    : mMessages.tailMap(startKey, true).entrySet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                page.add(new StoredMessage(entry.getKey(), entry.getValue()));
+            }
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPageLoaded(page);
+            }
+        });
+    }
+
+    @Override
+    public void write(List<FriendlyMessage> messages, final WriteCallback callback) {
+        final List<RawMessage> added = new ArrayList<>();
+        final List<RawMessage> changed = new ArrayList<>();
+        synchronized (mMessages) {
+            for (FriendlyMessage message : messages) {
+                Map<String, Object> value = FriendlyMessageMapper.toValue(message);
+                RawMessage raw = new StoredMessage(message.getKey(), value);
+                if (mMessages.put(message.getKey(), value) == null) {
+                    added.add(raw);
+                } else {
+                    changed.add(raw);
+                }
+            }
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (LiveSubscription subscription : mSubscriptions) {
+                    for (RawMessage message : added) {
+                        if (subscription.accepts(message.getKey())) {
+                            subscription.mListener.onMessageAdded(message);
+                        }
+                    }
+                    for (RawMessage message : changed) {
+                        if (subscription.accepts(message.getKey())) {
+                            subscription.mListener.onMessageChanged(message);
+                        }
+                    }
+                }
+                if (callback != null) {
+                    callback.onWriteComplete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds or replaces a message as if another client had written it. The message must have a
+     * key.
+     */
+    public void put(FriendlyMessage message) {
+        write(Collections.singletonList(message), null);
+    }
+
+    /**
+     * Deletes a message as if another client had deleted it.
+     */
+    public void remove(final String key) {
+        synchronized (mMessages) {
+            if (mMessages.remove(key) == null) {
+                return;
+            }
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (LiveSubscription subscription : mSubscriptions) {
+                    if (subscription.accepts(key)) {
+                        subscription.mListener.onMessageRemoved(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of messages stored.
+     */
+    public int size() {
+        synchronized (mMessages) {
+            return mMessages.size();
+        }
+    }
+
+    /**
+     * Returns the last {@code limit} messages of the range, oldest first. Must hold mMessages.
+     */
+    private static List<RawMessage> newest(NavigableMap<String, Object> range, int limit) {
+        List<RawMessage> messages = new ArrayList<>(Math.min(limit, range.size()));
+        for (Map.Entry<String, Object> entry : range.descendingMap().entrySet()) {
+            if (messages.size() == limit) {
+                break;
+            }
+            messages.add(new StoredMessage(entry.getKey(), entry.getValue()));
+        }
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    private static final class StoredMessage implements RawMessage {
+        private final String mKey;
+        private final Object mValue;
+
+        StoredMessage(String key, Object value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public Object getValue() {
+            return mValue;
+        }
+    }
+
+    private final class LiveSubscription implements Subscription {
+        private final String mStartKey;
+        private final MessageListener mListener;
+        private volatile boolean mCancelled;
+
+        LiveSubscription(String startKey, MessageListener listener) {
+            mStartKey = startKey;
+            mListener = listener;
+        }
+
+        boolean accepts(String key) {
+            return !mCancelled && (mStartKey == null || key.compareTo(mStartKey) >= 0);
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+        }
+    }
+}
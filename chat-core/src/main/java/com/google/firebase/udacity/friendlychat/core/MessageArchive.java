@@ -0,0 +1,153 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes the messages of a history bucket, see {@link HistoryBuckets}, into a single compressed
+ * blob, and decodes them again.
+ *
+ * An archived bucket is downloaded in one request instead of a query per page, and its blob is
+ * a fraction of the size of the same messages as database JSON: field names aren't repeated for
+ * every message, and the gzip compression finds the names and photo URLs that recur in a day of
+ * chat.
+ *
+ * The same messages always encode to the same bytes, so two clients archiving the same bucket
+ * at the same time write identical blobs.
+ */
+public final class MessageArchive {
+
+    /** "FCA" followed by the format version. */
+    private static final int MAGIC = 0x46434101;
+
+    private static final Comparator<FriendlyMessage> BY_KEY = new Comparator<FriendlyMessage>() {
+        @Override
+        public int compare(FriendlyMessage a, FriendlyMessage b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    /** Longer than any message, but short enough that a corrupt length can't exhaust memory. */
+    private static final int MAX_STRING_BYTES = 1 << 20;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private MessageArchive() {
+    }
+
+    /**
+     * Returns the blob holding the given messages. Every message must have a key.
+     */
+    public static byte[] encode(List<FriendlyMessage> messages) {
+        List<FriendlyMessage> sorted = new ArrayList<>(messages);
+        Collections.sort(sorted, BY_KEY);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+            out.writeInt(MAGIC);
+            out.writeInt(sorted.size());
+            for (FriendlyMessage message : sorted) {
+                writeString(out, message.getKey());
+                writeString(out, message.getText());
+                writeString(out, message.getName());
+                writeString(out, message.getPhotoUrl());
+                writeString(out, message.getThumbUrl());
+                out.writeInt(message.getWidth());
+                out.writeInt(message.getHeight());
+            }
+            out.close();
+        } catch (IOException e) {
+            // A ByteArrayOutputStream doesn't throw
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the messages held by a blob, oldest first.
+     *
+     * @throws IOException if the blob wasn't written by encode(), or is truncated
+     */
+    public static List<FriendlyMessage> decode(byte[] blob) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(blob)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a message archive");
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt message archive");
+            }
+            // The count comes from the blob, so don't trust it with a huge up-front allocation
+            List<FriendlyMessage> messages = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                String key = readString(in);
+                String text = readString(in);
+                String name = readString(in);
+                String photoUrl = readString(in);
+                String thumbUrl = readString(in);
+                int width = in.readInt();
+                int height = in.readInt();
+                messages.add(new FriendlyMessage(key, text, name, photoUrl, thumbUrl,
+                        width, height));
+            }
+            return messages;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a string as its length in UTF-8 bytes, or -1 for null, followed by the bytes.
+     * Unlike writeUTF(), this has no 64 KB limit.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_BYTES) {
+            throw new IOException("Corrupt message archive");
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, UTF_8);
+    }
+}
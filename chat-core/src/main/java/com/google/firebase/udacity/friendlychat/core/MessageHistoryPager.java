@@ -0,0 +1,294 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the message history of a room in fixed-size pages instead of downloading all of it.
+ *
+ * Push keys sort chronologically, so ordering by key is the same as ordering by time. The newest
+ * page is read with a live subscription limited to the last {@code pageSize} messages; older
+ * pages are fetched on demand by asking for the messages whose keys end at the oldest key we have
+ * seen so far.
+ *
+ * When the room only keeps a window of its history in memory, newer messages than the window may
+ * have been dropped too. Those are fetched again page by page going forward, see
+ * {@link #loadNewer}.
+ *
+ * A page that fails to load isn't requested again until {@link #retry} is called, e.g. once the
+ * device is back online. Otherwise every scroll event while offline would ask for it again.
+ *
+ * The pager must only be used from the thread the transport delivers callbacks on.
+ */
+public class MessageHistoryPager {
+
+    private static final Logger LOG = Logger.getLogger(MessageHistoryPager.class.getName());
+
+    /**
+     * Receives a page of older, or newer, messages once it has been downloaded.
+     */
+    public interface Callback {
+        /**
+         * @param olderMessages the messages older than everything loaded so far, oldest first, or
+         *                      newer than everything loaded for {@link #loadNewer}
+         * @param hasMore       false if the start of the history has been reached, or its end
+         *                      for {@link #loadNewer}
+         */
+        void onPageLoaded(List<FriendlyMessage> olderMessages, boolean hasMore);
+    }
+
+    private final ChatTransport mTransport;
+    private final int mPageSize;
+
+    /** The key of the oldest message loaded so far, or null if nothing has been loaded. */
+    private String mOldestKey;
+
+    private boolean mLoading;
+    private boolean mHasMore = true;
+
+    /** Whether a page of newer messages is being loaded, see loadNewer(). */
+    private boolean mLoadingNewer;
+
+    /** Whether the last page of older messages failed to load, and retry() wasn't called since. */
+    private boolean mOlderFailed;
+
+    /** Like mOlderFailed, for pages of newer messages. */
+    private boolean mNewerFailed;
+
+    /**
+     * Incremented on every reset, so that a page requested before a reset is ignored when it
+     * arrives after it.
+     */
+    private int mGeneration;
+
+    /** Like mGeneration, for pages of newer messages. */
+    private int mNewerGeneration;
+
+    public MessageHistoryPager(ChatTransport transport, int pageSize) {
+        mTransport = transport;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Listens to the newest page of messages. The listener receives the newest {@code pageSize}
+     * messages, followed by every new message.
+     */
+    public ChatTransport.Subscription listenToNewestPage(ChatTransport.MessageListener listener) {
+        return mTransport.listen(null, mPageSize, listener);
+    }
+
+    /**
+     * Resumes listening after the messages in {@code newestKey} and before have already been
+     * loaded. The listener receives the message at {@code newestKey} first, followed by the newer
+     * ones. If that message is missing, more than a page of messages has been sent since, and the
+     * newest page doesn't connect to the messages already loaded.
+     */
+    public ChatTransport.Subscription listenFrom(String newestKey,
+                                                 ChatTransport.MessageListener listener) {
+        return mTransport.listen(newestKey, mPageSize + 1, listener);
+    }
+
+    /**
+     * Continues paging from messages that were loaded earlier, e.g. by a previous Activity.
+     *
+     * @param oldestKey the key of the oldest message already loaded
+     * @param hasMore   whether older messages than that one exist
+     */
+    public void restore(String oldestKey, boolean hasMore) {
+        reset();
+        mOldestKey = oldestKey;
+        mHasMore = hasMore;
+    }
+
+    /**
+     * Continues paging from a message that is now the oldest loaded, after the messages before it
+     * were dropped to save memory. A page being loaded is dropped, since it would end at the
+     * wrong message.
+     */
+    public void trimTo(String oldestKey) {
+        mGeneration++;
+        mLoading = false;
+        mOlderFailed = false;
+        mOldestKey = oldestKey;
+        mHasMore = true;
+    }
+
+    /**
+     * Records the key of a message received through the live query, so that the next older page
+     * starts right before the oldest message on screen.
+     */
+    public void onMessageReceived(String key) {
+        if (mOldestKey == null || key.compareTo(mOldestKey) < 0) {
+            mOldestKey = key;
+        }
+    }
+
+    /**
+     * Returns true if an older page can be requested right now. It can't after the previous one
+     * failed, until retry() is called.
+     */
+    public boolean canLoadOlder() {
+        return !mLoading && !mOlderFailed && mHasMore && mOldestKey != null;
+    }
+
+    /**
+     * Lets the pages that failed to load be requested again, e.g. when the device is back online
+     * or the user asks for them.
+     */
+    public void retry() {
+        mOlderFailed = false;
+        mNewerFailed = false;
+    }
+
+    /**
+     * Downloads the page of messages right before the oldest message loaded so far. Does nothing
+     * if a page is already being loaded or the start of the history has been reached.
+     */
+    public void loadOlder(final Callback callback) {
+        if (!canLoadOlder()) {
+            return;
+        }
+        mLoading = true;
+        final int generation = mGeneration;
+        final String endKey = mOldestKey;
+
+        // The page includes its end key, so ask for one extra message: the oldest one we already
+        // have.
+        mTransport.loadPage(endKey, mPageSize + 1, new ChatTransport.PageCallback() {
+            @Override
+            public void onPageLoaded(List<ChatTransport.RawMessage> messages) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mLoading = false;
+
+                List<FriendlyMessage> olderMessages = new ArrayList<>();
+                int receivedCount = 0;
+                for (ChatTransport.RawMessage rawMessage : messages) {
+                    if (endKey.equals(rawMessage.getKey())) {
+                        continue;
+                    }
+                    receivedCount++;
+                    onMessageReceived(rawMessage.getKey());
+                    FriendlyMessage message = FriendlyMessageMapper.fromRaw(rawMessage);
+                    if (message != null) {
+                        olderMessages.add(message);
+                    }
+                }
+
+                // A short page means there is nothing older left on the server
+                mHasMore = receivedCount == mPageSize;
+                callback.onPageLoaded(olderMessages, mHasMore);
+            }
+
+            @Override
+            public void onPageFailed(Exception error) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                mLoading = false;
+                mOlderFailed = true;
+                LOG.log(Level.WARNING, "Loading older messages failed", error);
+            }
+        });
+    }
+
+    /**
+     * Returns true if a newer page can be requested right now: none is being loaded, and the
+     * previous one didn't fail since retry() was called.
+     */
+    public boolean canLoadNewer() {
+        return !mLoadingNewer && !mNewerFailed;
+    }
+
+    /**
+     * Downloads the page of messages right after {@code newestKey}, the newest message loaded,
+     * once newer messages than it have been dropped to save memory. Does nothing if a newer page
+     * is already being loaded, or if the previous one failed, see canLoadNewer().
+     *
+     * The callback's hasMore is false once the page reaches the newest message in the database.
+     */
+    public void loadNewer(final String newestKey, final Callback callback) {
+        if (!canLoadNewer()) {
+            return;
+        }
+        mLoadingNewer = true;
+        final int generation = mNewerGeneration;
+
+        // The page starts at its start key, so ask for one extra message: the newest one we
+        // already have.
+        mTransport.loadPageAfter(newestKey, mPageSize + 1, new ChatTransport.PageCallback() {
+            @Override
+            public void onPageLoaded(List<ChatTransport.RawMessage> messages) {
+                if (generation != mNewerGeneration) {
+                    return;
+                }
+                mLoadingNewer = false;
+
+                List<FriendlyMessage> newerMessages = new ArrayList<>();
+                int receivedCount = 0;
+                for (ChatTransport.RawMessage rawMessage : messages) {
+                    if (newestKey.equals(rawMessage.getKey())) {
+                        continue;
+                    }
+                    receivedCount++;
+                    FriendlyMessage message = FriendlyMessageMapper.fromRaw(rawMessage);
+                    if (message != null) {
+                        newerMessages.add(message);
+                    }
+                }
+
+                // A short page means it reached the newest message on the server
+                callback.onPageLoaded(newerMessages, receivedCount == mPageSize);
+            }
+
+            @Override
+            public void onPageFailed(Exception error) {
+                if (generation != mNewerGeneration) {
+                    return;
+                }
+                mLoadingNewer = false;
+                mNewerFailed = true;
+                LOG.log(Level.WARNING, "Loading newer messages failed", error);
+            }
+        });
+    }
+
+    /**
+     * Drops the pages being loaded, if any, without forgetting how far the history has been
+     * paged.
+     */
+    public void cancel() {
+        mGeneration++;
+        mLoading = false;
+        mNewerGeneration++;
+        mLoadingNewer = false;
+    }
+
+    /**
+     * Forgets everything that has been loaded, e.g. when the messages on screen are cleared.
+     */
+    public void reset() {
+        cancel();
+        retry();
+        mOldestKey = null;
+        mHasMore = true;
+    }
+}
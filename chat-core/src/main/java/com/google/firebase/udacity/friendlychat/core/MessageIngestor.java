@@ -0,0 +1,231 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Turns the raw messages received from the transport into FriendlyMessages off the main thread,
+ * and hands them to the UI in batches of at most one per display frame.
+ *
+ * During the initial sync, or in a busy room, hundreds of messages can arrive at once. Handling
+ * them one at a time on the main thread means hundreds of deserializations and adapter updates
+ * between two frames. Instead, messages are deserialized in arrival order on a single background
+ * thread, and whatever has been deserialized by the time the next frame starts is delivered to the
+ * Sink as a single list.
+ *
+ * When a frame starts is up to the frame executor: in the app, it runs tasks on the main thread
+ * at the start of the next frame. Off the device, any executor will do.
+ *
+ * Deletions go through the same queue as tombstones, see {@link #remove}, so they are applied in
+ * the order they were received relative to the messages around them. A message that is deleted
+ * before it has been delivered is dropped, rather than delivered after its deletion.
+ *
+ * Other per-message work that would otherwise happen on the main thread, such as laying out the
+ * message's text, can be done on the same background thread by a {@link Preparer}.
+ */
+public class MessageIngestor {
+
+    private static final Logger LOG = Logger.getLogger(MessageIngestor.class.getName());
+
+    /**
+     * Receives the deserialized messages on the frame executor's thread.
+     */
+    public interface Sink {
+        /**
+         * @param messages the messages deserialized since the previous frame, in arrival order
+         */
+        void onMessagesIngested(List<FriendlyMessage> messages);
+
+        /**
+         * Called before onMessagesIngested() in the same frame, so a message deleted and then
+         * written again under the same key ends up in the list.
+         *
+         * @param keys the keys of the messages deleted since the previous frame. None of them is
+         *             delivered to onMessagesIngested() in the same frame unless it was received
+         *             again after its deletion.
+         */
+        void onMessagesRemoved(List<String> keys);
+    }
+
+    /**
+     * Does work for each message before it is delivered, on the ingestor's background thread.
+     */
+    public interface Preparer {
+        void prepare(FriendlyMessage message);
+    }
+
+    /** A single thread, so messages come out in the order they went in. */
+    private final ExecutorService mDeserializer = Executors.newSingleThreadExecutor();
+
+    private final Executor mFrameExecutor;
+
+    private final Sink mSink;
+
+    private final Preparer mPreparer;
+
+    private final Object mLock = new Object();
+
+    /** Messages waiting for the next frame. Guarded by mLock. */
+    private List<FriendlyMessage> mPending = new ArrayList<>();
+
+    /** The keys of the messages deleted since the previous frame. Guarded by mLock. */
+    private List<String> mPendingRemovals = new ArrayList<>();
+
+    /** Whether mDeliver has already been handed to mFrameExecutor. Guarded by mLock. */
+    private boolean mFrameScheduled;
+
+    /**
+     * Incremented by clear(), so messages ingested before it are dropped rather than delivered
+     * after it. Guarded by mLock.
+     */
+    private int mGeneration;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            List<FriendlyMessage> batch;
+            List<String> removals;
+            synchronized (mLock) {
+                batch = mPending;
+                mPending = new ArrayList<>();
+                removals = mPendingRemovals;
+                mPendingRemovals = new ArrayList<>();
+                mFrameScheduled = false;
+            }
+            if (!removals.isEmpty()) {
+                mSink.onMessagesRemoved(removals);
+            }
+            if (!batch.isEmpty()) {
+                mSink.onMessagesIngested(batch);
+            }
+        }
+    };
+
+    /**
+     * @param frameExecutor runs the delivery of each batch, at the start of the next frame
+     */
+    public MessageIngestor(Executor frameExecutor, Sink sink) {
+        this(frameExecutor, sink, null);
+    }
+
+    /**
+     * @param frameExecutor runs the delivery of each batch, at the start of the next frame
+     * @param preparer      prepares each message before it is delivered, or null
+     */
+    public MessageIngestor(Executor frameExecutor, Sink sink, Preparer preparer) {
+        mFrameExecutor = frameExecutor;
+        mSink = sink;
+        mPreparer = preparer;
+    }
+
+    /**
+     * Queues a message received from the transport for deserialization. May be called from any
+     * thread.
+     */
+    public void ingest(final ChatTransport.RawMessage rawMessage) {
+        final int generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        mDeserializer.execute(new Runnable() {
+            @Override
+            public void run() {
+                FriendlyMessage message = FriendlyMessageMapper.fromRaw(rawMessage);
+                if (message == null) {
+                    LOG.log(Level.WARNING, "Not a message: " + rawMessage.getKey());
+                    return;
+                }
+                if (mPreparer != null) {
+                    mPreparer.prepare(message);
+                }
+
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    mPending.add(message);
+                    scheduleFrame();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the deletion of messages, behind the messages already queued for deserialization.
+     * Messages with these keys that haven't been delivered yet are dropped. May be called from
+     * any thread.
+     */
+    public void remove(final List<String> keys) {
+        final int generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        mDeserializer.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    // Deletions are rare, so a scan of the pending messages is cheap enough
+                    for (int i = mPending.size() - 1; i >= 0; i--) {
+                        if (keys.contains(mPending.get(i).getKey())) {
+                            mPending.remove(i);
+                        }
+                    }
+                    mPendingRemovals.addAll(keys);
+                    scheduleFrame();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands mDeliver to the frame executor, unless it already has it. Must hold mLock.
+     */
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mFrameExecutor.execute(mDeliver);
+        }
+    }
+
+    /**
+     * Drops every message and deletion that has been queued but not delivered yet.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mPending.clear();
+            mPendingRemovals.clear();
+        }
+    }
+
+    /**
+     * Stops the background thread. The ingestor can't be used afterwards.
+     */
+    public void shutdown() {
+        clear();
+        mDeserializer.shutdownNow();
+    }
+}
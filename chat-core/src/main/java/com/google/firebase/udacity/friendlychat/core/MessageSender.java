@@ -0,0 +1,215 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the messages typed by the user, showing them straight away and tracking each one until
+ * the database has acknowledged it.
+ *
+ * A message's push key is generated on the device, so the message can be added to the list the
+ * moment it is sent, marked as pending in the {@link MessageStore}. Messages sent in quick
+ * succession are then coalesced: everything sent within BATCH_WINDOW_MILLIS of the first message
+ * is written with a single multi-path update, which costs one round trip instead of one per
+ * message. When the update completes, the messages are marked as sent, or as failed.
+ *
+ * A failed message stays in the store, and is never dropped to save memory, until the user either
+ * sends it again with {@link #resend} or gives up on it with {@link #discard}.
+ *
+ * In the app, each {@link ChatRoom} has a sender, which lives as long as the room is open, like
+ * its MessageStore, so writes still in flight when the Activity is recreated are tracked to
+ * completion. It must only be used from the thread of its scheduler, which must also be the
+ * thread the transport delivers callbacks on.
+ */
+public class MessageSender {
+
+    private static final Logger LOG = Logger.getLogger(MessageSender.class.getName());
+
+    /** How long to wait for more messages before writing the ones sent so far. */
+    private static final long BATCH_WINDOW_MILLIS = 50;
+
+    /** The largest number of messages written in one update. A full batch is written at once. */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Notified when messages are acknowledged or fail, so their rows can be updated.
+     */
+    public interface Listener {
+        /**
+         * @param keys the push keys of the messages whose send state changed
+         */
+        void onSendStateChanged(List<String> keys);
+    }
+
+    private final ChatTransport mTransport;
+    private final MessageStore mMessageStore;
+    private final Scheduler mScheduler;
+
+    /** The messages waiting to be written, in the order they were sent, by push key. */
+    private final Map<String, FriendlyMessage> mQueued = new LinkedHashMap<>();
+
+    /** Whether mFlush has been posted for the messages in mQueued. */
+    private boolean mFlushScheduled;
+
+    /**
+     * Incremented by clear(), so the results of writes started before it are ignored rather than
+     * applied to the cleared store.
+     */
+    private int mGeneration;
+
+    private Listener mListener;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public MessageSender(ChatTransport transport, MessageStore messageStore, Scheduler scheduler) {
+        mTransport = transport;
+        mMessageStore = messageStore;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Sets the listener to notify about acknowledged and failed messages, or null to stop
+     * notifying.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Gives the message a push key, marks it as pending and queues it to be written with the
+     * other messages sent within the batch window. The caller adds the returned message, which
+     * carries the key, to the list.
+     */
+    public FriendlyMessage send(FriendlyMessage message) {
+        // Generated locally, with no round trip to the database
+        String key = mTransport.newKey();
+        FriendlyMessage keyedMessage = message.withKey(key);
+        queue(keyedMessage);
+        return keyedMessage;
+    }
+
+    /**
+     * Queues a message that failed to be written to be written again, at the same push key, with
+     * the other messages sent within the batch window. It is pending again until the new write
+     * completes, and the listener is notified as usual.
+     *
+     * @return false if the message isn't in the store or didn't fail, so nothing was queued
+     */
+    public boolean resend(String key) {
+        if (mMessageStore.getSendState(key) != MessageStore.SEND_STATE_FAILED) {
+            return false;
+        }
+        int position = mMessageStore.indexOf(key);
+        if (position < 0) {
+            // No longer shown, so there is nothing to send again
+            mMessageStore.setSendState(key, MessageStore.SEND_STATE_SENT);
+            return false;
+        }
+        queue(mMessageStore.get(position));
+        return true;
+    }
+
+    /**
+     * Gives up on a message that failed to be written, forgetting its send state. The caller
+     * removes it from the list, e.g. through the adapter.
+     *
+     * @return false if the message didn't fail, e.g. because it is being written again
+     */
+    public boolean discard(String key) {
+        if (mMessageStore.getSendState(key) != MessageStore.SEND_STATE_FAILED) {
+            return false;
+        }
+        mMessageStore.setSendState(key, MessageStore.SEND_STATE_SENT);
+        return true;
+    }
+
+    /**
+     * Writes every queued message now, as a single update.
+     */
+    public void flush() {
+        mScheduler.cancel(mFlush);
+        mFlushScheduled = false;
+        if (mQueued.isEmpty()) {
+            return;
+        }
+
+        // Each message is written to its own child of the room, so the update adds them all
+        // without touching any other message
+        List<FriendlyMessage> messages = new ArrayList<>(mQueued.values());
+        final List<String> keys = new ArrayList<>(mQueued.keySet());
+        mQueued.clear();
+
+        final int generation = mGeneration;
+        mTransport.write(messages, new ChatTransport.WriteCallback() {
+            @Override
+            public void onWriteComplete(Exception error) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                int state;
+                if (error == null) {
+                    state = MessageStore.SEND_STATE_SENT;
+                } else {
+                    LOG.log(Level.WARNING, "Could not send " + keys.size() + " messages", error);
+                    state = MessageStore.SEND_STATE_FAILED;
+                }
+                for (String key : keys) {
+                    mMessageStore.setSendState(key, state);
+                }
+                if (mListener != null) {
+                    mListener.onSendStateChanged(keys);
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks a message that has a key as pending and queues it for the next batch.
+     */
+    private void queue(FriendlyMessage message) {
+        mMessageStore.markPending(message.getKey());
+        mQueued.put(message.getKey(), message);
+
+        if (mQueued.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mScheduler.postDelayed(mFlush, BATCH_WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Drops the messages that haven't been written yet and stops tracking the ones in flight,
+     * e.g. when the user signs out.
+     */
+    public void clear() {
+        mScheduler.cancel(mFlush);
+        mFlushScheduled = false;
+        mQueued.clear();
+        mGeneration++;
+    }
+}
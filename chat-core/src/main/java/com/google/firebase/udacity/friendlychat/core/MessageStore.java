@@ -0,0 +1,424 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the messages of a chat room loaded so far, independently of any Activity.
+ *
+ * An Activity is destroyed and recreated on every configuration change, such as a rotation. If the
+ * loaded messages lived in the Activity, every rotation would throw them away and download them
+ * again. This store lives as long as its {@link ChatRoom} is open, so a new Activity can pick up
+ * exactly where the previous one stopped, and only ask the database for messages newer than the
+ * last one it has.
+ *
+ * Messages are kept in push key order, which is the order they were sent in, so a message can be
+ * found by its key with a binary search. To hold a large history on low-end devices, they aren't
+ * kept as FriendlyMessage objects but column by column in parallel arrays. Author names and the
+ * common prefixes of photo URLs repeat across many messages, so each distinct value is stored
+ * once in a {@link StringPool} and messages only hold its ID. {@link #get(int)} puts a
+ * FriendlyMessage back together when a row is bound.
+ *
+ * The store also tracks the messages sent from this device that are shown before the database has
+ * acknowledged them, see {@link MessageSender}.
+ *
+ * The store must only be accessed from the main thread, or from one thread at a time off the
+ * device.
+ */
+public class MessageStore {
+
+    /** The message has been acknowledged by the database, or wasn't sent from this device. */
+    public static final int SEND_STATE_SENT = 0;
+
+    /** The message is shown, but hasn't been acknowledged by the database yet. */
+    public static final int SEND_STATE_PENDING = 1;
+
+    /**
+     * The database rejected the message. It stays until it is sent again or discarded, see
+     * {@link MessageSender#resend}.
+     */
+    public static final int SEND_STATE_FAILED = 2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The size of a reference or an int in the arrays, in bytes. */
+    private static final int SLOT_BYTES = 4;
+
+    /** The approximate size of a String object without its characters, in bytes. */
+    private static final int STRING_OVERHEAD_BYTES = 24;
+
+    /** The approximate size of a HashMap entry and its boxed Integer value, in bytes. */
+    private static final int MAP_ENTRY_BYTES = 48;
+
+    /** Authors and URL prefixes, shared by all messages. */
+    private final StringPool mPool = new StringPool();
+
+    // One slot per message, in push key order. Only the first mSize slots are used.
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private String[] mTexts = new String[INITIAL_CAPACITY];
+    private int[] mAuthorIds = new int[INITIAL_CAPACITY];
+    private int[] mPhotoPrefixIds = new int[INITIAL_CAPACITY];
+    private String[] mPhotoSuffixes = new String[INITIAL_CAPACITY];
+    private int[] mThumbPrefixIds = new int[INITIAL_CAPACITY];
+    private String[] mThumbSuffixes = new String[INITIAL_CAPACITY];
+    private int[] mWidths = new int[INITIAL_CAPACITY];
+    private int[] mHeights = new int[INITIAL_CAPACITY];
+    private int mSize;
+
+    /** Whether older messages than the ones in this store exist in the database. */
+    private boolean mHasMoreHistory = true;
+
+    /** The send state of every message that isn't SEND_STATE_SENT, by push key. */
+    private final Map<String, Integer> mSendStates = new HashMap<>();
+
+    /**
+     * Creates an empty store. In the app, each {@link ChatRoom} has its own.
+     */
+    public MessageStore() {
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the message at the given position, oldest first.
+     */
+    public FriendlyMessage get(int position) {
+        checkPosition(position);
+        return new FriendlyMessage(mKeys[position], mTexts[position],
+                mPool.get(mAuthorIds[position]),
+                joinUrl(mPhotoPrefixIds[position], mPhotoSuffixes[position]),
+                joinUrl(mThumbPrefixIds[position], mThumbSuffixes[position]),
+                mWidths[position], mHeights[position]);
+    }
+
+    /**
+     * Returns the push key of the message at the given position, without creating the message.
+     */
+    public String getKey(int position) {
+        checkPosition(position);
+        return mKeys[position];
+    }
+
+    /**
+     * Returns the position of the message with the given key if it is in the store. Otherwise
+     * returns {@code -(insertion point) - 1}, where the insertion point is the position the
+     * message would be added at. Works like {@link java.util.Collections#binarySearch}.
+     */
+    public int indexOf(String key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    /**
+     * Adds a message at its position in push key order, or replaces the message with the same
+     * key if there is one.
+     *
+     * @return the position of the message
+     */
+    public int put(FriendlyMessage message) {
+        int position = indexOf(message.getKey());
+        if (position >= 0) {
+            write(position, message);
+            return position;
+        }
+        position = -position - 1;
+        ensureCapacity(mSize + 1);
+        int moved = mSize - position;
+        if (moved > 0) {
+            System.arraycopy(mKeys, position, mKeys, position + 1, moved);
+            System.arraycopy(mTexts, position, mTexts, position + 1, moved);
+            System.arraycopy(mAuthorIds, position, mAuthorIds, position + 1, moved);
+            System.arraycopy(mPhotoPrefixIds, position, mPhotoPrefixIds, position + 1, moved);
+            System.arraycopy(mPhotoSuffixes, position, mPhotoSuffixes, position + 1, moved);
+            System.arraycopy(mThumbPrefixIds, position, mThumbPrefixIds, position + 1, moved);
+            System.arraycopy(mThumbSuffixes, position, mThumbSuffixes, position + 1, moved);
+            System.arraycopy(mWidths, position, mWidths, position + 1, moved);
+            System.arraycopy(mHeights, position, mHeights, position + 1, moved);
+        }
+        mSize++;
+        write(position, message);
+        return position;
+    }
+
+    /**
+     * Removes the message at the given position.
+     */
+    public void remove(int position) {
+        checkPosition(position);
+        int moved = mSize - position - 1;
+        if (moved > 0) {
+            System.arraycopy(mKeys, position + 1, mKeys, position, moved);
+            System.arraycopy(mTexts, position + 1, mTexts, position, moved);
+            System.arraycopy(mAuthorIds, position + 1, mAuthorIds, position, moved);
+            System.arraycopy(mPhotoPrefixIds, position + 1, mPhotoPrefixIds, position, moved);
+            System.arraycopy(mPhotoSuffixes, position + 1, mPhotoSuffixes, position, moved);
+            System.arraycopy(mThumbPrefixIds, position + 1, mThumbPrefixIds, position, moved);
+            System.arraycopy(mThumbSuffixes, position + 1, mThumbSuffixes, position, moved);
+            System.arraycopy(mWidths, position + 1, mWidths, position, moved);
+            System.arraycopy(mHeights, position + 1, mHeights, position, moved);
+        }
+        mSize--;
+        mKeys[mSize] = null;
+        mTexts[mSize] = null;
+        mPhotoSuffixes[mSize] = null;
+        mThumbSuffixes[mSize] = null;
+    }
+
+    /**
+     * Removes the messages from position {@code start} up to, but not including, {@code end},
+     * with a single copy of the messages after them.
+     */
+    public void removeRange(int start, int end) {
+        if (start < 0 || end > mSize || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "Range " + start + " to " + end + ", size " + mSize);
+        }
+        int removed = end - start;
+        if (removed == 0) {
+            return;
+        }
+        int moved = mSize - end;
+        if (moved > 0) {
+            System.arraycopy(mKeys, end, mKeys, start, moved);
+            System.arraycopy(mTexts, end, mTexts, start, moved);
+            System.arraycopy(mAuthorIds, end, mAuthorIds, start, moved);
+            System.arraycopy(mPhotoPrefixIds, end, mPhotoPrefixIds, start, moved);
+            System.arraycopy(mPhotoSuffixes, end, mPhotoSuffixes, start, moved);
+            System.arraycopy(mThumbPrefixIds, end, mThumbPrefixIds, start, moved);
+            System.arraycopy(mThumbSuffixes, end, mThumbSuffixes, start, moved);
+            System.arraycopy(mWidths, end, mWidths, start, moved);
+            System.arraycopy(mHeights, end, mHeights, start, moved);
+        }
+        int oldSize = mSize;
+        mSize -= removed;
+        // Drop the references so the strings can be collected
+        Arrays.fill(mKeys, mSize, oldSize, null);
+        Arrays.fill(mTexts, mSize, oldSize, null);
+        Arrays.fill(mPhotoSuffixes, mSize, oldSize, null);
+        Arrays.fill(mThumbSuffixes, mSize, oldSize, null);
+    }
+
+    /**
+     * Returns the push key of the oldest loaded message, or null if the store is empty.
+     */
+    public String getOldestKey() {
+        return mSize == 0 ? null : mKeys[0];
+    }
+
+    /**
+     * Returns the push key of the newest loaded message, or null if the store is empty.
+     */
+    public String getNewestKey() {
+        return mSize == 0 ? null : mKeys[mSize - 1];
+    }
+
+    public boolean hasMoreHistory() {
+        return mHasMoreHistory;
+    }
+
+    public void setHasMoreHistory(boolean hasMoreHistory) {
+        mHasMoreHistory = hasMoreHistory;
+    }
+
+    /**
+     * Records that the message with the given key is shown before the database has acknowledged
+     * it. It is pending until setSendState() is called.
+     */
+    public void markPending(String key) {
+        mSendStates.put(key, SEND_STATE_PENDING);
+    }
+
+    /**
+     * Returns one of SEND_STATE_SENT, SEND_STATE_PENDING or SEND_STATE_FAILED.
+     */
+    public int getSendState(String key) {
+        Integer state = mSendStates.get(key);
+        return state == null ? SEND_STATE_SENT : state;
+    }
+
+    public void setSendState(String key, int state) {
+        if (state == SEND_STATE_SENT) {
+            mSendStates.remove(key);
+        } else {
+            mSendStates.put(key, state);
+        }
+    }
+
+    /**
+     * Removes every message, but keeps the pagination and send state, e.g. when the adapter is
+     * cleared.
+     */
+    public void removeAll() {
+        // Drop the references so the strings can be collected, but keep the capacity
+        Arrays.fill(mKeys, 0, mSize, null);
+        Arrays.fill(mTexts, 0, mSize, null);
+        Arrays.fill(mPhotoSuffixes, 0, mSize, null);
+        Arrays.fill(mThumbSuffixes, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * Forgets every loaded message, e.g. when the user signs out.
+     */
+    public void clear() {
+        removeAll();
+        mPool.clear();
+        mHasMoreHistory = true;
+        mSendStates.clear();
+    }
+
+    /**
+     * Returns an estimate of the memory held by the store, in bytes: its arrays, the strings
+     * referenced from them and the string pool. Shared strings are only counted once.
+     */
+    public long estimateFootprintBytes() {
+        long bytes = (long) mKeys.length * SLOT_BYTES * 9;
+        for (int i = 0; i < mSize; i++) {
+            bytes += sizeOf(mKeys[i]) + sizeOf(mTexts[i])
+                    + sizeOf(mPhotoSuffixes[i]) + sizeOf(mThumbSuffixes[i]);
+        }
+        return bytes + mPool.estimateFootprintBytes();
+    }
+
+    private void write(int position, FriendlyMessage message) {
+        mKeys[position] = message.getKey();
+        mTexts[position] = message.getText();
+        mAuthorIds[position] = mPool.idOf(message.getName());
+
+        String photoUrl = message.getPhotoUrl();
+        int photoSplit = urlPrefixLength(photoUrl);
+        mPhotoPrefixIds[position] = photoUrl == null
+                ? StringPool.NO_ID
+                : mPool.idOf(photoUrl.substring(0, photoSplit));
+        mPhotoSuffixes[position] = photoUrl == null ? null : photoUrl.substring(photoSplit);
+
+        String thumbUrl = message.getThumbUrl();
+        int thumbSplit = urlPrefixLength(thumbUrl);
+        mThumbPrefixIds[position] = thumbUrl == null
+                ? StringPool.NO_ID
+                : mPool.idOf(thumbUrl.substring(0, thumbSplit));
+        mThumbSuffixes[position] = thumbUrl == null ? null : thumbUrl.substring(thumbSplit);
+
+        mWidths[position] = message.getWidth();
+        mHeights[position] = message.getHeight();
+    }
+
+    private String joinUrl(int prefixId, String suffix) {
+        if (suffix == null) {
+            return null;
+        }
+        return prefixId == StringPool.NO_ID ? suffix : mPool.get(prefixId) + suffix;
+    }
+
+    /**
+     * Returns the length of the part of a URL that many URLs share: everything up to the last
+     * path separator. Storage download URLs encode the separators of the object path as "%2F",
+     * so those count too, e.g. ".../o/chat_photos%2Fthumbs%2F" is shared by all thumbnails.
+     */
+    private static int urlPrefixLength(String url) {
+        if (url == null) {
+            return 0;
+        }
+        int query = url.indexOf('?');
+        int end = query < 0 ? url.length() : query;
+        int slash = url.lastIndexOf('/', end - 1);
+        int encodedSlash = url.lastIndexOf("%2F", end - 1);
+        return Math.max(slash + 1, encodedSlash < 0 ? 0 : encodedSlash + 3);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mKeys.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mKeys.length + (mKeys.length >> 1));
+        mKeys = Arrays.copyOf(mKeys, newCapacity);
+        mTexts = Arrays.copyOf(mTexts, newCapacity);
+        mAuthorIds = Arrays.copyOf(mAuthorIds, newCapacity);
+        mPhotoPrefixIds = Arrays.copyOf(mPhotoPrefixIds, newCapacity);
+        mPhotoSuffixes = Arrays.copyOf(mPhotoSuffixes, newCapacity);
+        mThumbPrefixIds = Arrays.copyOf(mThumbPrefixIds, newCapacity);
+        mThumbSuffixes = Arrays.copyOf(mThumbSuffixes, newCapacity);
+        mWidths = Arrays.copyOf(mWidths, newCapacity);
+        mHeights = Arrays.copyOf(mHeights, newCapacity);
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + mSize);
+        }
+    }
+
+    private static long sizeOf(String s) {
+        // Characters are counted at two bytes each, although newer runtimes store ASCII strings
+        // in one, so this errs on the high side
+        return s == null ? 0 : STRING_OVERHEAD_BYTES + 2L * s.length();
+    }
+
+    /**
+     * Stores each distinct string once and identifies it by a small int.
+     */
+    static final class StringPool {
+
+        /** The ID standing for null. */
+        static final int NO_ID = -1;
+
+        private final List<String> mStrings = new ArrayList<>();
+        private final Map<String, Integer> mIds = new HashMap<>();
+
+        /**
+         * Returns the ID of the given string, adding it to the pool if it is new.
+         */
+        int idOf(String s) {
+            if (s == null) {
+                return NO_ID;
+            }
+            Integer id = mIds.get(s);
+            if (id == null) {
+                id = mStrings.size();
+                mStrings.add(s);
+                mIds.put(s, id);
+            }
+            return id;
+        }
+
+        String get(int id) {
+            return id == NO_ID ? null : mStrings.get(id);
+        }
+
+        void clear() {
+            mStrings.clear();
+            mIds.clear();
+        }
+
+        long estimateFootprintBytes() {
+            long bytes = (long) mStrings.size() * (SLOT_BYTES + MAP_ENTRY_BYTES);
+            for (String s : mStrings) {
+                bytes += sizeOf(s);
+            }
+            return bytes;
+        }
+    }
+}
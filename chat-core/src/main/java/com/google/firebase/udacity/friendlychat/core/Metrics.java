@@ -0,0 +1,138 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The app's performance histograms, by name.
+ *
+ * Code that measures something keeps the {@link Histogram} it records into in a static field, so
+ * recording never has to look it up. The whole set can be dumped as JSON, to be compared across
+ * devices and releases.
+ *
+ * Names end in the unit of the recorded values, e.g. "message_bind_us" for microseconds.
+ */
+public final class Metrics {
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private static final Metrics sInstance = new Metrics();
+
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the metrics shared by the whole app.
+     */
+    public static Metrics getInstance() {
+        return sInstance;
+    }
+
+    public Metrics() {
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if it doesn't exist yet.
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Forgets every value recorded so far. The histograms themselves stay registered.
+     */
+    public void reset() {
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Returns every histogram as a JSON object, along with {@code tags} describing where the
+     * values were recorded, such as the device model and app version:
+     *
+     * <pre>
+     * {"tags": {"model": "Pixel"},
+     *  "histograms": {"message_bind_us": {"count": 120, "min": 80, "mean": 210.5, "p50": 180,
+     *                                     "p90": 400, "p99": 950, "max": 1200}}}
+     * </pre>
+     */
+    public String toJson(Map<String, String> tags) {
+        StringBuilder json = new StringBuilder("{\"tags\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> tag : new TreeMap<>(tags).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, tag.getKey());
+            json.append(':');
+            appendString(json, tag.getValue());
+        }
+
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            Histogram histogram = entry.getValue();
+            appendString(json, entry.getKey());
+            json.append(":{\"count\":").append(histogram.getCount())
+                    .append(",\"min\":").append(histogram.getMin())
+                    .append(",\"mean\":")
+                    .append(String.format(Locale.US, "%.1f", histogram.getMean()));
+            for (double percentile : PERCENTILES) {
+                json.append(",\"p").append((int) percentile).append("\":")
+                        .append(histogram.getPercentile(percentile));
+            }
+            json.append(",\"max\":").append(histogram.getMax()).append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
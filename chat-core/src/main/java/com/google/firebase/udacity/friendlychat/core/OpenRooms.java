@@ -0,0 +1,129 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The chat rooms the user has open, up to a fixed number of them.
+ *
+ * An open room keeps listening to its newest messages while the user is in another room, so
+ * switching back to it shows what was sent meanwhile straight away. But every listener costs
+ * memory for the room's messages and bandwidth for everything sent to it, however long ago the
+ * user last looked at it. So only the most recently used rooms are kept open: opening one more
+ * closes the room that was used least recently, detaching its listener and dropping its messages.
+ * Memory and bandwidth therefore grow with the number of rooms in use, not with the traffic of
+ * every room the user has visited. A closed room is opened again from the disk cache and the
+ * newest page, like on a cold start.
+ *
+ * Must only be used from the thread the rooms are used on.
+ */
+public class OpenRooms {
+
+    /**
+     * Creates the room with the given ID when it is opened.
+     */
+    public interface Factory {
+        ChatRoom create(String roomId);
+    }
+
+    private final Factory mFactory;
+
+    /** The open rooms by ID, least recently used first. */
+    private final LinkedHashMap<String, ChatRoom> mRooms;
+
+    /**
+     * @param maxOpenRooms the number of rooms kept open, at least 1
+     */
+    public OpenRooms(final int maxOpenRooms, Factory factory) {
+        if (maxOpenRooms < 1) {
+            throw new IllegalArgumentException("maxOpenRooms must be at least 1: " + maxOpenRooms);
+        }
+        mFactory = factory;
+        // Ordered by access, so get() moves a room to the end
+        mRooms = new LinkedHashMap<String, ChatRoom>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChatRoom> eldest) {
+                if (size() <= maxOpenRooms) {
+                    return false;
+                }
+                // The messages the user sent there are still written before the room is closed
+                ChatRoom room = eldest.getValue();
+                room.getMessageSender().flush();
+                room.close();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the room with the given ID, opening it if it isn't open yet, and marks it as the
+     * most recently used. Opening a room may close the least recently used one. The room isn't
+     * connected by this, see {@link ChatRoom#connect()}.
+     */
+    public ChatRoom open(String roomId) {
+        ChatRoom room = mRooms.get(roomId);
+        if (room == null) {
+            room = mFactory.create(roomId);
+            mRooms.put(roomId, room);
+        }
+        return room;
+    }
+
+    public int size() {
+        return mRooms.size();
+    }
+
+    /**
+     * Stops every open room from listening, e.g. when the app goes to the background. The rooms
+     * stay open, and continue from their newest message once they are connected again.
+     */
+    public void disconnectAll() {
+        for (ChatRoom room : mRooms.values()) {
+            room.disconnect();
+        }
+    }
+
+    /**
+     * Writes the messages waiting to be sent in every open room now.
+     */
+    public void flushAll() {
+        for (ChatRoom room : mRooms.values()) {
+            room.getMessageSender().flush();
+        }
+    }
+
+    /**
+     * Keeps at most {@code capacity} of the newest messages of every open room, e.g. when the app
+     * is in the background and the system is short of memory. See {@link ChatRoom#trimWindow}.
+     */
+    public void trimAll(int capacity) {
+        for (ChatRoom room : mRooms.values()) {
+            room.trimToNewest(capacity);
+        }
+    }
+
+    /**
+     * Closes every room, dropping their messages, e.g. when the user signs out.
+     */
+    public void closeAll() {
+        for (ChatRoom room : mRooms.values()) {
+            room.close();
+        }
+        mRooms.clear();
+    }
+}
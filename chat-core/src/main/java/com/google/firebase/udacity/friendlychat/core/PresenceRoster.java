@@ -0,0 +1,126 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The members present in a room, and which of them are typing, built from the room's single
+ * presence node rather than from a listener per member.
+ *
+ * Every state carries the time it was last written. A member counts as present for
+ * {@code presenceTtlMillis} after that, and as typing for {@code typingTtlMillis}, so a member
+ * whose client went away without clearing its state, and without its disconnect hook running,
+ * drops out on its own. Times are in the clock of the backend, so compare them with the
+ * backend's idea of now rather than the device's.
+ */
+public class PresenceRoster {
+
+    private static final class Member {
+        final String name;
+        final boolean typing;
+        final long updatedAtMillis;
+
+        Member(String name, boolean typing, long updatedAtMillis) {
+            this.name = name;
+            this.typing = typing;
+            this.updatedAtMillis = updatedAtMillis;
+        }
+    }
+
+    private final long mPresenceTtlMillis;
+    private final long mTypingTtlMillis;
+
+    private final Map<String, Member> mMembers = new HashMap<>();
+
+    /**
+     * @param presenceTtlMillis how long a member counts as present after their state was written
+     * @param typingTtlMillis   how long a member counts as typing after their state was written
+     */
+    public PresenceRoster(long presenceTtlMillis, long typingTtlMillis) {
+        mPresenceTtlMillis = presenceTtlMillis;
+        mTypingTtlMillis = typingTtlMillis;
+    }
+
+    /**
+     * Adds a member's state, or replaces it.
+     *
+     * @param updatedAtMillis the time the state was written, in the backend's clock
+     */
+    public void put(String memberId, String name, boolean typing, long updatedAtMillis) {
+        mMembers.put(memberId, new Member(name, typing, updatedAtMillis));
+    }
+
+    public void remove(String memberId) {
+        mMembers.remove(memberId);
+    }
+
+    public void clear() {
+        mMembers.clear();
+    }
+
+    /**
+     * Returns the names of the members typing at the given time, sorted.
+     */
+    public List<String> getTypingNames(long nowMillis) {
+        List<String> names = new ArrayList<>();
+        for (Member member : mMembers.values()) {
+            if (member.typing && nowMillis - member.updatedAtMillis < mTypingTtlMillis) {
+                names.add(member.name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns the number of members present at the given time.
+     */
+    public int getPresentCount(long nowMillis) {
+        int count = 0;
+        for (Member member : mMembers.values()) {
+            if (nowMillis - member.updatedAtMillis < mPresenceTtlMillis) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the earliest time after {@code nowMillis} at which a member stops counting as
+     * typing or present, so whatever shows the roster knows when to update, or -1 if nothing
+     * expires.
+     */
+    public long getNextExpiryMillis(long nowMillis) {
+        long next = -1;
+        for (Member member : mMembers.values()) {
+            long presenceExpiry = member.updatedAtMillis + mPresenceTtlMillis;
+            if (presenceExpiry > nowMillis && (next == -1 || presenceExpiry < next)) {
+                next = presenceExpiry;
+            }
+            long typingExpiry = member.updatedAtMillis + mTypingTtlMillis;
+            if (member.typing && typingExpiry > nowMillis
+                    && (next == -1 || typingExpiry < next)) {
+                next = typingExpiry;
+            }
+        }
+        return next;
+    }
+}
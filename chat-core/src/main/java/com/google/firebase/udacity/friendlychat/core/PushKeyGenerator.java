@@ -0,0 +1,108 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.Random;
+
+/**
+ * Generates push keys the way the Firebase clients do, for backends other than Firebase.
+ *
+ * A key is 20 characters long. The first 8 encode the time it was generated in milliseconds,
+ * so keys sort chronologically, and the other 12 are random, so keys generated by different
+ * clients at the same time don't collide. Keys generated by the same generator within the same
+ * millisecond increment the random part instead, so they still sort in the order they were
+ * generated.
+ */
+public class PushKeyGenerator {
+
+    /** The characters of the key, in ASCII order, so keys compare like the times they encode. */
+    private static final String PUSH_CHARS =
+            "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    private static final int TIME_CHARS = 8;
+    private static final int RANDOM_CHARS = 12;
+
+    private final Random mRandom;
+    private final int[] mLastRandomChars = new int[RANDOM_CHARS];
+    private long mLastTime = -1;
+
+    public PushKeyGenerator() {
+        this(new Random());
+    }
+
+    /**
+     * @param random the source of the random part of the keys. A seeded Random generates the same
+     *               keys for the same times every run.
+     */
+    public PushKeyGenerator(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Returns the time a key was generated, in milliseconds since the epoch.
+     *
+     * @throws IllegalArgumentException if the key isn't a push key
+     */
+    public static long timestampOf(String key) {
+        if (key == null || key.length() < TIME_CHARS) {
+            throw new IllegalArgumentException("Not a push key: " + key);
+        }
+        long time = 0;
+        for (int i = 0; i < TIME_CHARS; i++) {
+            int digit = PUSH_CHARS.indexOf(key.charAt(i));
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not a push key: " + key);
+            }
+            time = time * 64 + digit;
+        }
+        return time;
+    }
+
+    /**
+     * Returns a new key for the given time, in milliseconds since the epoch.
+     */
+    public synchronized String generate(long timeMillis) {
+        boolean sameTime = timeMillis == mLastTime;
+        mLastTime = timeMillis;
+
+        char[] key = new char[TIME_CHARS + RANDOM_CHARS];
+        long time = timeMillis;
+        for (int i = TIME_CHARS - 1; i >= 0; i--) {
+            key[i] = PUSH_CHARS.charAt((int) (time % 64));
+            time /= 64;
+        }
+
+        if (!sameTime) {
+            for (int i = 0; i < RANDOM_CHARS; i++) {
+                mLastRandomChars[i] = mRandom.nextInt(64);
+            }
+        } else {
+            // Increment the random part, carrying over like an odometer
+            int i = RANDOM_CHARS - 1;
+            while (i >= 0 && mLastRandomChars[i] == 63) {
+                mLastRandomChars[i] = 0;
+                i--;
+            }
+            if (i >= 0) {
+                mLastRandomChars[i]++;
+            }
+        }
+        for (int i = 0; i < RANDOM_CHARS; i++) {
+            key[TIME_CHARS + i] = PUSH_CHARS.charAt(mLastRandomChars[i]);
+        }
+        return new String(key);
+    }
+}
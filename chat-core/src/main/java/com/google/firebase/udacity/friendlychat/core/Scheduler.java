@@ -0,0 +1,32 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+/**
+ * Runs tasks on a single thread after a delay, such as the main thread of the app.
+ */
+public interface Scheduler {
+
+    /**
+     * Runs the task on the scheduler's thread once {@code delayMillis} have passed.
+     */
+    void postDelayed(Runnable task, long delayMillis);
+
+    /**
+     * Cancels every pending run of the task.
+     */
+    void cancel(Runnable task);
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+/**
+ * Turns the user's keystrokes into a few writes of their typing state, instead of one per
+ * keystroke.
+ *
+ * The state is written as typing on the first keystroke, so others see it right away. While the
+ * user keeps typing, it is written again at most once every {@code refreshMillis}, so readers can
+ * expire a typing state that wasn't refreshed, e.g. because the writer crashed. Once no key has
+ * been pressed for {@code idleMillis}, or stop() is called because the message was sent, it is
+ * written as not typing. However fast the user types, that is two writes per burst of typing,
+ * plus one per refresh.
+ *
+ * Must only be used from the scheduler's thread.
+ */
+public class TypingThrottle {
+
+    /**
+     * Writes the typing state to the backend.
+     */
+    public interface Writer {
+        void writeTyping(boolean typing);
+    }
+
+    private final Scheduler mScheduler;
+    private final long mIdleMillis;
+    private final long mRefreshMillis;
+    private final Writer mWriter;
+
+    /** Whether the state was last written as typing. */
+    private boolean mTyping;
+
+    /** Whether a key was pressed since the state was last written as typing. */
+    private boolean mTypedSinceWrite;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!mTyping) {
+                return;
+            }
+            if (mTypedSinceWrite) {
+                mTypedSinceWrite = false;
+                mWriter.writeTyping(true);
+            }
+            mScheduler.postDelayed(mRefresh, mRefreshMillis);
+        }
+    };
+
+    private final Runnable mIdle = new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    };
+
+    /**
+     * @param idleMillis    how long after the last keystroke the user stops typing
+     * @param refreshMillis the shortest time between two writes of the typing state while the
+     *                      user keeps typing. Readers should expire the state a while after it.
+     */
+    public TypingThrottle(Scheduler scheduler, long idleMillis, long refreshMillis,
+                          Writer writer) {
+        mScheduler = scheduler;
+        mIdleMillis = idleMillis;
+        mRefreshMillis = refreshMillis;
+        mWriter = writer;
+    }
+
+    /**
+     * Called on every keystroke.
+     */
+    public void onKeystroke() {
+        if (!mTyping) {
+            mTyping = true;
+            mTypedSinceWrite = false;
+            mWriter.writeTyping(true);
+            mScheduler.postDelayed(mRefresh, mRefreshMillis);
+        } else {
+            mTypedSinceWrite = true;
+        }
+        // Restart the countdown to the user having stopped typing
+        mScheduler.cancel(mIdle);
+        mScheduler.postDelayed(mIdle, mIdleMillis);
+    }
+
+    /**
+     * Writes the state as not typing right away, if it isn't already, e.g. when the message was
+     * sent or the text was cleared.
+     */
+    public void stop() {
+        mScheduler.cancel(mIdle);
+        mScheduler.cancel(mRefresh);
+        if (mTyping) {
+            mTyping = false;
+            mWriter.writeTyping(false);
+        }
+    }
+
+    /**
+     * Forgets the state without writing it, e.g. when the user left the room and the backend
+     * removes their state anyway.
+     */
+    public void reset() {
+        mScheduler.cancel(mIdle);
+        mScheduler.cancel(mRefresh);
+        mTyping = false;
+        mTypedSinceWrite = false;
+    }
+
+    public boolean isTyping() {
+        return mTyping;
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link ChatRoom} against an {@link InMemoryChatTransport} that delivers its callbacks on
+ * the test's thread. Other clients are simulated through the transport.
+ */
+public class ChatRoomTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    /**
+     * The keys of every message the room delivered, whether it went to the store or was held
+     * back.
+     */
+    private final Set<String> mDeliveredKeys = Collections.synchronizedSet(
+            new HashSet<String>());
+
+    private final ChatRoom.Cache mCache = new ChatRoom.Cache() {
+        @Override
+        public void putAll(String roomId, List<FriendlyMessage> messages) {
+            for (FriendlyMessage message : messages) {
+                mDeliveredKeys.add(message.getKey());
+            }
+        }
+
+        @Override
+        public void removeAll(String roomId, List<String> keys) {
+        }
+
+        @Override
+        public void clear(String roomId) {
+        }
+    };
+
+    private InMemoryChatTransport mTransport;
+    private ManualScheduler mScheduler;
+    private ManualExecutor mFrames;
+    private ChatRoom mRoom;
+
+    @Before
+    public void setUp() {
+        mTransport = new InMemoryChatTransport();
+        mScheduler = new ManualScheduler();
+        mFrames = new ManualExecutor();
+        mRoom = new ChatRoom("test", mTransport, PAGE_SIZE, mScheduler, mFrames, null, mCache);
+    }
+
+    @After
+    public void tearDown() {
+        mRoom.close();
+    }
+
+    @Test
+    public void removeAfterAddDropsMessageNotDeliveredYet() throws Exception {
+        mRoom.connect();
+        FriendlyMessage message = message("deleted");
+        mTransport.put(message);
+        mTransport.remove(message.getKey());
+        mScheduler.runPending();
+
+        FriendlyMessage later = message("later");
+        mTransport.put(later);
+        mFrames.runUntilStored(mRoom.getStore(), later.getKey());
+
+        assertEquals(1, mTransport.size());
+        assertEquals(1, mRoom.getStore().size());
+        assertTrue(mRoom.getStore().indexOf(message.getKey()) < 0);
+    }
+
+    @Test
+    public void removeAfterChangeDropsMessage() throws Exception {
+        mRoom.connect();
+        FriendlyMessage message = message("original");
+        mTransport.put(message);
+        mFrames.runUntilStored(mRoom.getStore(), message.getKey());
+
+        mTransport.put(new FriendlyMessage(message.getKey(), "edited", "author", null, null, 0,
+                0));
+        mTransport.remove(message.getKey());
+        mScheduler.runPending();
+
+        FriendlyMessage later = message("later");
+        mTransport.put(later);
+        mFrames.runUntilStored(mRoom.getStore(), later.getKey());
+
+        assertEquals(1, mRoom.getStore().size());
+        assertTrue(mRoom.getStore().indexOf(message.getKey()) < 0);
+    }
+
+    @Test
+    public void removeOfDeliveredMessageRemovesItFromStore() throws Exception {
+        mRoom.connect();
+        FriendlyMessage message = message("delivered");
+        mTransport.put(message);
+        mFrames.runUntilStored(mRoom.getStore(), message.getKey());
+
+        mTransport.remove(message.getKey());
+        mScheduler.runPending();
+        FriendlyMessage later = message("later");
+        mTransport.put(later);
+        mFrames.runUntilStored(mRoom.getStore(), later.getKey());
+
+        assertEquals(1, mRoom.getStore().size());
+        assertEquals(later.getKey(), mRoom.getStore().getKey(0));
+    }
+
+    @Test
+    public void trimWindowDropsNewerMessagesFarFromScreen() {
+        List<String> keys = storeHistory(20);
+
+        mRoom.trimWindow(0, 1, PAGE_SIZE);
+
+        MessageStore store = mRoom.getStore();
+        assertEquals(PAGE_SIZE, store.size());
+        assertEquals(keys.get(0), store.getOldestKey());
+        assertEquals(keys.get(PAGE_SIZE - 1), store.getNewestKey());
+        assertTrue(mRoom.canLoadNewer());
+    }
+
+    @Test
+    public void trimWindowDropsOlderMessagesFarFromScreen() {
+        List<String> keys = storeHistory(20);
+
+        mRoom.trimWindow(18, 19, PAGE_SIZE);
+
+        MessageStore store = mRoom.getStore();
+        assertEquals(PAGE_SIZE, store.size());
+        assertEquals(keys.get(10), store.getOldestKey());
+        assertFalse(mRoom.canLoadNewer());
+        assertTrue(mRoom.getHistoryPager().canLoadOlder());
+    }
+
+    @Test
+    public void trimWindowLeavesSlackBeforeTrimming() {
+        storeHistory(PAGE_SIZE + PAGE_SIZE / 4);
+
+        mRoom.trimWindow(0, 1, PAGE_SIZE);
+
+        assertEquals(PAGE_SIZE + PAGE_SIZE / 4, mRoom.getStore().size());
+    }
+
+    @Test
+    public void trimWindowKeepsUnsentMessages() {
+        List<String> keys = storeHistory(20);
+        mRoom.getStore().markPending(keys.get(15));
+
+        mRoom.trimWindow(0, 1, PAGE_SIZE);
+
+        assertEquals(20, mRoom.getStore().size());
+    }
+
+    @Test
+    public void messagesReceivedWhileTrimmedAreHeldBackUntilLoadNewerCatchesUp()
+            throws Exception {
+        final List<String> keys = storeHistory(20);
+        mRoom.connect();
+        mRoom.trimWindow(0, 1, PAGE_SIZE);
+
+        // Newer than the window, so it doesn't go to the store yet
+        final FriendlyMessage received = message("received while trimmed");
+        mTransport.put(received);
+        mFrames.runUntil(new ManualExecutor.Condition() {
+            @Override
+            public boolean isMet() {
+                return mDeliveredKeys.contains(received.getKey());
+            }
+        });
+        assertTrue(mRoom.getStore().indexOf(received.getKey()) < 0);
+
+        // The first page is the rest of the stored history, the second reaches the message
+        // received meanwhile
+        final List<Boolean> hasMore = new ArrayList<>();
+        MessageHistoryPager.Callback addToStore = new MessageHistoryPager.Callback() {
+            @Override
+            public void onPageLoaded(List<FriendlyMessage> messages, boolean more) {
+                for (FriendlyMessage message : messages) {
+                    mRoom.getStore().put(message);
+                }
+                hasMore.add(more);
+            }
+        };
+        mRoom.loadNewer(addToStore);
+        mRoom.loadNewer(addToStore);
+        assertEquals(2, hasMore.size());
+        assertTrue(hasMore.get(0));
+        assertFalse(hasMore.get(1));
+        assertFalse(mRoom.canLoadNewer());
+
+        MessageStore store = mRoom.getStore();
+        assertEquals(21, store.size());
+        assertEquals(keys.get(19), store.getKey(19));
+        assertEquals(received.getKey(), store.getNewestKey());
+
+        // Caught up, so new messages go to the store again
+        FriendlyMessage later = message("later");
+        mTransport.put(later);
+        mFrames.runUntilStored(store, later.getKey());
+        assertEquals(22, store.size());
+    }
+
+    /**
+     * Writes messages to the transport and adds them to the room's store, as if they had been
+     * paged in, and returns their keys, oldest first.
+     */
+    private List<String> storeHistory(int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            FriendlyMessage message = message("message " + i);
+            mTransport.put(message);
+            mRoom.getStore().put(message);
+            keys.add(message.getKey());
+        }
+        mRoom.getHistoryPager().restore(keys.get(0), true);
+        return keys;
+    }
+
+    /**
+     * Returns a message with a new push key, as another client would write it.
+     */
+    private FriendlyMessage message(String text) {
+        return new FriendlyMessage(mTransport.newKey(), text, "author", null, null, 0, 0);
+    }
+}
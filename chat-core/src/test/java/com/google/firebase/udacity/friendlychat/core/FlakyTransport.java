@@ -0,0 +1,81 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link InMemoryChatTransport} whose pages and writes can be made to fail, as if the device
+ * were offline or the database rejected them, and which counts its writes.
+ */
+class FlakyTransport extends InMemoryChatTransport {
+
+    private final Executor mCallbackExecutor;
+
+    boolean failPages;
+    boolean failWrites;
+    int writeCount;
+
+    FlakyTransport(Executor callbackExecutor) {
+        super(callbackExecutor);
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public void loadPage(String endKey, int limit, final PageCallback callback) {
+        if (!failPages) {
+            super.loadPage(endKey, limit, callback);
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPageFailed(new IOException("Offline"));
+            }
+        });
+    }
+
+    @Override
+    public void loadPageAfter(String startKey, int limit, final PageCallback callback) {
+        if (!failPages) {
+            super.loadPageAfter(startKey, limit, callback);
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPageFailed(new IOException("Offline"));
+            }
+        });
+    }
+
+    @Override
+    public void write(List<FriendlyMessage> messages, final WriteCallback callback) {
+        writeCount++;
+        if (!failWrites) {
+            super.write(messages, callback);
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onWriteComplete(new IOException("Permission denied"));
+            }
+        });
+    }
+}
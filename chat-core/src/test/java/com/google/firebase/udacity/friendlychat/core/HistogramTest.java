@@ -0,0 +1,135 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void smallValuesGetABucketEach() {
+        for (long value = 0; value <= 8; value++) {
+            int bucket = Histogram.bucketOf(value);
+            assertEquals(value, bucket);
+            assertEquals(value, Histogram.lowerBoundOf(bucket));
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartABucket() {
+        for (int bit = 3; bit < 63; bit++) {
+            long power = 1L << bit;
+            int bucket = Histogram.bucketOf(power);
+            assertEquals(power, Histogram.lowerBoundOf(bucket));
+            assertEquals(bucket - 1, Histogram.bucketOf(power - 1));
+            assertBucketHolds(power - 1);
+            assertBucketHolds(power);
+            assertBucketHolds(power + 1);
+        }
+    }
+
+    @Test
+    public void maxValueFallsInLastBucket() {
+        int bucket = Histogram.bucketOf(Long.MAX_VALUE);
+        assertEquals((64 - 3) * 8 - 1, bucket);
+        assertEquals(15L << 59, Histogram.lowerBoundOf(bucket));
+
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void bucketsAreWithinAnEighthOfTheirValues() {
+        for (long value = 8; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 / 2 + 1) {
+            assertBucketHolds(value);
+            int bucket = Histogram.bucketOf(value);
+            long width = Histogram.lowerBoundOf(bucket + 1) - Histogram.lowerBoundOf(bucket);
+            assertTrue("Bucket of " + value + " is " + width + " wide", width <= value / 8 + 1);
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesOfSkewedValues() {
+        // 98 fast values and 2 slow ones, like a hot path with the odd pause
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(10);
+        }
+        histogram.record(5000);
+        histogram.record(5000);
+
+        assertEquals(10, histogram.getPercentile(50));
+        assertWithin(5000, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void percentileIsClampedToRecordedRange() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+
+        assertEquals(1000, histogram.getPercentile(0));
+        assertEquals(1000, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void emptyAndResetHistogramsReportZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        histogram.record(42);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    private static void assertBucketHolds(long value) {
+        int bucket = Histogram.bucketOf(value);
+        assertTrue(value + " is below its bucket", Histogram.lowerBoundOf(bucket) <= value);
+        assertTrue(value + " is above its bucket", Histogram.lowerBoundOf(bucket + 1) > value);
+    }
+
+    /**
+     * Asserts that an estimate is within the 1/16 that half a bucket allows.
+     */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16 + 1);
+    }
+}
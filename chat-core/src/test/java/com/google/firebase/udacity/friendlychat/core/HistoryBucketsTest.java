@@ -0,0 +1,96 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HistoryBucketsTest {
+
+    private static final long DAY = HistoryBuckets.BUCKET_MILLIS;
+
+    @Test
+    public void bucketsChangeAtUtcMidnight() {
+        assertEquals("19700101", HistoryBuckets.bucketAt(0));
+        assertEquals("19700101", HistoryBuckets.bucketAt(DAY - 1));
+        assertEquals("19700102", HistoryBuckets.bucketAt(DAY));
+        assertEquals("19691231", HistoryBuckets.bucketAt(-1));
+        assertEquals("19691231", HistoryBuckets.bucketAt(-DAY));
+        assertEquals("19691230", HistoryBuckets.bucketAt(-DAY - 1));
+
+        // 2024-02-29T00:00:00Z, a leap day
+        long leapDay = 1709164800000L;
+        assertEquals("20240228", HistoryBuckets.bucketAt(leapDay - 1));
+        assertEquals("20240229", HistoryBuckets.bucketAt(leapDay));
+        assertEquals("20240229", HistoryBuckets.bucketAt(leapDay + DAY - 1));
+        assertEquals("20240301", HistoryBuckets.bucketAt(leapDay + DAY));
+    }
+
+    @Test
+    public void bucketsMatchTheUtcCalendar() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        // Every midnight from 1900 to 2100, which spans leap years and the century rules
+        for (long midnight = -2208988800000L; midnight < 4102444800000L; midnight += DAY) {
+            String bucketId = format.format(new Date(midnight));
+            assertEquals(bucketId, HistoryBuckets.bucketAt(midnight));
+            assertEquals(bucketId, HistoryBuckets.bucketAt(midnight + DAY - 1));
+            assertEquals(midnight, HistoryBuckets.startOf(bucketId));
+        }
+    }
+
+    @Test
+    public void bucketOfUsesTheKeysTime() {
+        long midnight = 1709164800000L;
+        PushKeyGenerator generator = new PushKeyGenerator(new Random(1));
+
+        assertEquals("20240228", HistoryBuckets.bucketOf(generator.generate(midnight - 1)));
+        assertEquals("20240229", HistoryBuckets.bucketOf(generator.generate(midnight)));
+    }
+
+    @Test
+    public void startOfRejectsOtherIds() {
+        for (String id : new String[]{null, "", "2024022", "202402290", "2024ab29", "general"}) {
+            try {
+                HistoryBuckets.startOf(id);
+                fail("Accepted " + id);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void bucketIsSealedTwoDaysAfterItEnds() {
+        String bucketId = "20240229";
+        long cutoff = HistoryBuckets.startOf(bucketId) + DAY + HistoryBuckets.SEAL_AFTER_MILLIS;
+
+        assertEquals(HistoryBuckets.startOf("20240303"), cutoff);
+        assertFalse(HistoryBuckets.isSealed(bucketId, HistoryBuckets.startOf(bucketId)));
+        assertFalse(HistoryBuckets.isSealed(bucketId, cutoff - 1));
+        assertTrue(HistoryBuckets.isSealed(bucketId, cutoff));
+        assertTrue(HistoryBuckets.isSealed(bucketId, cutoff + DAY));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An Executor whose tasks, given to it from any thread, only run when the test runs them, on the
+ * test's thread. Stands in for the app's FrameExecutor, as if a frame had started, or for the
+ * main thread a transport delivers its callbacks on.
+ */
+final class ManualExecutor implements Executor {
+
+    /** How long a test waits for the background work it expects before it fails. */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Something a test waits for, see {@link #runUntil}.
+     */
+    interface Condition {
+        boolean isMet();
+    }
+
+    private final LinkedBlockingQueue<Runnable> mTasks = new LinkedBlockingQueue<>();
+
+    @Override
+    public void execute(Runnable task) {
+        mTasks.add(task);
+    }
+
+    /**
+     * Runs every task given to the executor so far.
+     */
+    void runPending() {
+        List<Runnable> tasks = new ArrayList<>();
+        mTasks.drainTo(tasks);
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs tasks as they are given to the executor, until the condition is met.
+     */
+    void runUntil(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.isMet()) {
+            long remaining = deadline - System.nanoTime();
+            Runnable task = remaining > 0 ? mTasks.poll(remaining, TimeUnit.NANOSECONDS) : null;
+            if (task == null) {
+                throw new AssertionError("Timed out waiting for the executor's tasks");
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * Runs tasks until the store holds a message with the given key. Since the ingestor handles
+     * messages in order, everything received before that message has been delivered by then.
+     */
+    void runUntilStored(final MessageStore store, final String key) throws InterruptedException {
+        runUntil(new Condition() {
+            @Override
+            public boolean isMet() {
+                return store.indexOf(key) >= 0;
+            }
+        });
+    }
+}
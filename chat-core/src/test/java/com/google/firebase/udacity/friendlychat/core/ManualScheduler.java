@@ -0,0 +1,101 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A Scheduler that only runs its tasks when told to, so a test decides when a delay has passed
+ * instead of waiting for real time to pass. It keeps a clock of its own, starting at 0, which
+ * only moves when advanceBy() is called.
+ */
+final class ManualScheduler implements Scheduler {
+
+    private static final class Task {
+        final Runnable runnable;
+        final long dueMillis;
+
+        Task(Runnable runnable, long dueMillis) {
+            this.runnable = runnable;
+            this.dueMillis = dueMillis;
+        }
+    }
+
+    /** Pending tasks, in the order they were posted. */
+    private final List<Task> mTasks = new ArrayList<>();
+
+    private long mNowMillis;
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(new Task(task, mNowMillis + delayMillis));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (Iterator<Task> it = mTasks.iterator(); it.hasNext(); ) {
+            // Remove every pending copy
+            if (it.next().runnable == task) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Runs every task posted so far, as if all their delays had passed, without moving the clock.
+     */
+    void runPending() {
+        List<Task> tasks = new ArrayList<>(mTasks);
+        mTasks.clear();
+        for (Task task : tasks) {
+            task.runnable.run();
+        }
+    }
+
+    /**
+     * Moves the clock forward, running the tasks that fall due on the way, earliest first, with
+     * the clock set to the time each falls due. Tasks due at the same time run in the order they
+     * were posted.
+     */
+    void advanceBy(long millis) {
+        long target = mNowMillis + millis;
+        while (true) {
+            Task next = null;
+            for (Task task : mTasks) {
+                if (task.dueMillis <= target && (next == null || task.dueMillis < next.dueMillis)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mTasks.remove(next);
+            mNowMillis = Math.max(mNowMillis, next.dueMillis);
+            next.runnable.run();
+        }
+        mNowMillis = target;
+    }
+
+    long getNowMillis() {
+        return mNowMillis;
+    }
+
+    int getPendingCount() {
+        return mTasks.size();
+    }
+}
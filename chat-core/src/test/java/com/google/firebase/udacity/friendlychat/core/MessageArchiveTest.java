@@ -0,0 +1,136 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageArchiveTest {
+
+    @Test
+    public void roundTripKeepsEveryField() throws IOException {
+        FriendlyMessage text = new FriendlyMessage("-a", "hello \u00e9\u4e16\ud83d\ude00", "author",
+                null, null, 0, 0);
+        FriendlyMessage photo = new FriendlyMessage("-b", null, "author",
+                "https://example.com/o/chat_photos%2Fphoto.jpg?alt=media",
+                "https://example.com/o/chat_photos%2Fthumbs%2Fphoto.jpg?alt=media", 640, 480);
+        FriendlyMessage legacyPhoto = new FriendlyMessage("-c", null, null,
+                "https://example.com/o/chat_photos%2Fold.jpg?alt=media", null, 0, 0);
+        FriendlyMessage empty = new FriendlyMessage("-d", "", "", null, null, 0, 0);
+
+        List<FriendlyMessage> decoded = MessageArchive.decode(
+                MessageArchive.encode(Arrays.asList(text, photo, legacyPhoto, empty)));
+
+        assertEquals(4, decoded.size());
+        assertSameMessage(text, decoded.get(0));
+        assertSameMessage(photo, decoded.get(1));
+        assertSameMessage(legacyPhoto, decoded.get(2));
+        assertSameMessage(empty, decoded.get(3));
+        assertNull(decoded.get(1).getText());
+        assertNull(decoded.get(2).getName());
+        assertNull(decoded.get(2).getThumbUrl());
+    }
+
+    @Test
+    public void roundTripKeepsTextLongerThanWriteUtfAllows() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100000) {
+            text.append("long message ");
+        }
+        FriendlyMessage message = new FriendlyMessage("-a", text.toString(), "author",
+                null, null, 0, 0);
+
+        List<FriendlyMessage> decoded = MessageArchive.decode(
+                MessageArchive.encode(Collections.singletonList(message)));
+
+        assertEquals(text.toString(), decoded.get(0).getText());
+    }
+
+    @Test
+    public void emptyBucketRoundTrips() throws IOException {
+        byte[] blob = MessageArchive.encode(Collections.<FriendlyMessage>emptyList());
+
+        assertTrue(MessageArchive.decode(blob).isEmpty());
+    }
+
+    @Test
+    public void decodesOldestFirstAndEncodesDeterministically() throws IOException {
+        List<FriendlyMessage> messages = new ArrayList<>();
+        for (String key : new String[]{"-c", "-a", "-b"}) {
+            messages.add(new FriendlyMessage(key, "text " + key, "author", null, null, 0, 0));
+        }
+        byte[] blob = MessageArchive.encode(messages);
+
+        List<FriendlyMessage> decoded = MessageArchive.decode(blob);
+        assertEquals("-a", decoded.get(0).getKey());
+        assertEquals("-b", decoded.get(1).getKey());
+        assertEquals("-c", decoded.get(2).getKey());
+
+        // Two clients archiving the same bucket write the same blob, whatever order they read it in
+        Collections.reverse(messages);
+        assertArrayEquals(blob, MessageArchive.encode(messages));
+    }
+
+    @Test
+    public void decodeRejectsOtherData() throws IOException {
+        assertRejected("not gzip".getBytes("UTF-8"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write("{\"messages\": []}".getBytes("UTF-8"));
+        out.close();
+        assertRejected(bytes.toByteArray());
+    }
+
+    @Test
+    public void decodeRejectsTruncatedBlob() {
+        FriendlyMessage message = new FriendlyMessage("-a", "hello", "author", null, null, 0, 0);
+        byte[] blob = MessageArchive.encode(Collections.singletonList(message));
+
+        assertRejected(Arrays.copyOf(blob, blob.length - 12));
+    }
+
+    private static void assertRejected(byte[] blob) {
+        try {
+            MessageArchive.decode(blob);
+            fail("Decoded " + blob.length + " bytes that aren't an archive");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertSameMessage(FriendlyMessage expected, FriendlyMessage actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getPhotoUrl(), actual.getPhotoUrl());
+        assertEquals(expected.getThumbUrl(), actual.getThumbUrl());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+    }
+}
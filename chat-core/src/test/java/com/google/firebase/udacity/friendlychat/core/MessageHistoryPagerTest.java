@@ -0,0 +1,185 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageHistoryPagerTest {
+
+    private static final int PAGE_SIZE = 3;
+
+    private ManualExecutor mCallbacks;
+    private FlakyTransport mTransport;
+    private MessageHistoryPager mPager;
+    private final List<String> mKeys = new ArrayList<>();
+
+    /** The last page delivered to the callback, or null. */
+    private List<FriendlyMessage> mPage;
+    private boolean mHasMore;
+
+    private final MessageHistoryPager.Callback mCallback = new MessageHistoryPager.Callback() {
+        @Override
+        public void onPageLoaded(List<FriendlyMessage> messages, boolean hasMore) {
+            mPage = messages;
+            mHasMore = hasMore;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mCallbacks = new ManualExecutor();
+        mTransport = new FlakyTransport(mCallbacks);
+        mPager = new MessageHistoryPager(mTransport, PAGE_SIZE);
+    }
+
+    @Test
+    public void fullPageEndsBeforeOldestLoadedMessage() {
+        addMessages(5);
+        mPager.restore(mKeys.get(4), true);
+
+        mPager.loadOlder(mCallback);
+        mCallbacks.runPending();
+
+        assertEquals(3, mPage.size());
+        assertEquals(mKeys.get(1), mPage.get(0).getKey());
+        assertEquals(mKeys.get(3), mPage.get(2).getKey());
+        assertTrue(mHasMore);
+        assertTrue(mPager.canLoadOlder());
+    }
+
+    @Test
+    public void shortPageReachesStartOfHistory() {
+        addMessages(3);
+        mPager.restore(mKeys.get(2), true);
+
+        mPager.loadOlder(mCallback);
+        mCallbacks.runPending();
+
+        assertEquals(2, mPage.size());
+        assertFalse(mHasMore);
+        assertFalse(mPager.canLoadOlder());
+    }
+
+    @Test
+    public void onlyOnePageLoadsAtATime() {
+        addMessages(10);
+        mPager.restore(mKeys.get(9), true);
+
+        mPager.loadOlder(mCallback);
+        assertFalse(mPager.canLoadOlder());
+        mCallbacks.runPending();
+
+        assertTrue(mPager.canLoadOlder());
+    }
+
+    @Test
+    public void pageRequestedBeforeResetIsDropped() {
+        addMessages(5);
+        mPager.restore(mKeys.get(4), true);
+
+        mPager.loadOlder(mCallback);
+        mPager.reset();
+        mCallbacks.runPending();
+
+        assertNull(mPage);
+        // Nothing is loaded after a reset, so there is nothing to page back from
+        assertFalse(mPager.canLoadOlder());
+    }
+
+    @Test
+    public void pageRequestedBeforeTrimIsDropped() {
+        addMessages(10);
+        mPager.restore(mKeys.get(9), true);
+
+        mPager.loadOlder(mCallback);
+        mPager.trimTo(mKeys.get(5));
+        mCallbacks.runPending();
+        assertNull(mPage);
+
+        mPager.loadOlder(mCallback);
+        mCallbacks.runPending();
+        assertEquals(mKeys.get(4), mPage.get(mPage.size() - 1).getKey());
+    }
+
+    @Test
+    public void failedPageIsOnlyRequestedAgainAfterRetry() {
+        addMessages(5);
+        mPager.restore(mKeys.get(4), true);
+        mTransport.failPages = true;
+
+        mPager.loadOlder(mCallback);
+        mCallbacks.runPending();
+        assertNull(mPage);
+        assertFalse(mPager.canLoadOlder());
+
+        mTransport.failPages = false;
+        mPager.retry();
+        assertTrue(mPager.canLoadOlder());
+        mPager.loadOlder(mCallback);
+        mCallbacks.runPending();
+        assertEquals(3, mPage.size());
+    }
+
+    @Test
+    public void newerPagesReachNewestMessage() {
+        addMessages(5);
+
+        mPager.loadNewer(mKeys.get(0), mCallback);
+        mCallbacks.runPending();
+        assertEquals(3, mPage.size());
+        assertEquals(mKeys.get(1), mPage.get(0).getKey());
+        assertTrue(mHasMore);
+
+        mPager.loadNewer(mKeys.get(3), mCallback);
+        mCallbacks.runPending();
+        assertEquals(1, mPage.size());
+        assertFalse(mHasMore);
+    }
+
+    @Test
+    public void failedNewerPageIsOnlyRequestedAgainAfterRetry() {
+        addMessages(5);
+        mTransport.failPages = true;
+
+        mPager.loadNewer(mKeys.get(0), mCallback);
+        mCallbacks.runPending();
+        assertFalse(mPager.canLoadNewer());
+
+        mPager.retry();
+        assertTrue(mPager.canLoadNewer());
+    }
+
+    /**
+     * Writes messages to the transport, oldest first, and remembers their keys.
+     */
+    private void addMessages(int count) {
+        for (int i = 0; i < count; i++) {
+            String key = mTransport.newKey();
+            mKeys.add(key);
+            mTransport.put(new FriendlyMessage(key, "message " + i, "author", null, null, 0, 0));
+        }
+        mCallbacks.runPending();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSenderTest {
+
+    private ManualExecutor mCallbacks;
+    private ManualScheduler mScheduler;
+    private FlakyTransport mTransport;
+    private MessageStore mStore;
+    private MessageSender mSender;
+
+    /** The keys passed to the listener, one list per call. */
+    private final List<List<String>> mNotified = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mCallbacks = new ManualExecutor();
+        mScheduler = new ManualScheduler();
+        mTransport = new FlakyTransport(mCallbacks);
+        mStore = new MessageStore();
+        mSender = new MessageSender(mTransport, mStore, mScheduler);
+        mSender.setListener(new MessageSender.Listener() {
+            @Override
+            public void onSendStateChanged(List<String> keys) {
+                mNotified.add(keys);
+            }
+        });
+    }
+
+    @Test
+    public void messagesSentWithinWindowAreWrittenTogether() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            keys.add(send("message " + i));
+        }
+        assertEquals(0, mTransport.writeCount);
+        for (String key : keys) {
+            assertEquals(MessageStore.SEND_STATE_PENDING, mStore.getSendState(key));
+        }
+
+        mScheduler.runPending();
+        assertEquals(1, mTransport.writeCount);
+        assertEquals(3, mTransport.size());
+
+        mCallbacks.runPending();
+        for (String key : keys) {
+            assertEquals(MessageStore.SEND_STATE_SENT, mStore.getSendState(key));
+        }
+        assertEquals(1, mNotified.size());
+        assertEquals(keys, mNotified.get(0));
+    }
+
+    @Test
+    public void fullBatchIsWrittenWithoutWaiting() {
+        for (int i = 0; i < 100; i++) {
+            send("message " + i);
+        }
+
+        assertEquals(1, mTransport.writeCount);
+        assertEquals(100, mTransport.size());
+    }
+
+    @Test
+    public void rejectedWriteMarksEveryMessageOfBatchFailed() {
+        mTransport.failWrites = true;
+        String first = send("first");
+        String second = send("second");
+
+        mScheduler.runPending();
+        mCallbacks.runPending();
+
+        assertEquals(MessageStore.SEND_STATE_FAILED, mStore.getSendState(first));
+        assertEquals(MessageStore.SEND_STATE_FAILED, mStore.getSendState(second));
+        assertEquals(1, mNotified.size());
+    }
+
+    @Test
+    public void resendWritesFailedMessageAgainAtSameKey() {
+        mTransport.failWrites = true;
+        String key = send("retried");
+        mScheduler.runPending();
+        mCallbacks.runPending();
+
+        mTransport.failWrites = false;
+        assertTrue(mSender.resend(key));
+        assertEquals(MessageStore.SEND_STATE_PENDING, mStore.getSendState(key));
+        mScheduler.runPending();
+        mCallbacks.runPending();
+
+        assertEquals(MessageStore.SEND_STATE_SENT, mStore.getSendState(key));
+        assertEquals(1, mTransport.size());
+        assertEquals(2, mNotified.size());
+    }
+
+    @Test
+    public void onlyFailedMessagesCanBeResentOrDiscarded() {
+        String key = send("pending");
+
+        assertFalse(mSender.resend(key));
+        assertFalse(mSender.discard(key));
+        assertEquals(MessageStore.SEND_STATE_PENDING, mStore.getSendState(key));
+    }
+
+    @Test
+    public void discardForgetsFailedMessage() {
+        mTransport.failWrites = true;
+        String key = send("discarded");
+        mScheduler.runPending();
+        mCallbacks.runPending();
+
+        assertTrue(mSender.discard(key));
+        assertEquals(MessageStore.SEND_STATE_SENT, mStore.getSendState(key));
+        assertFalse(mSender.resend(key));
+    }
+
+    @Test
+    public void clearDropsQueuedMessagesAndIgnoresWritesInFlight() {
+        String inFlight = send("in flight");
+        mScheduler.runPending();
+        send("queued");
+
+        mSender.clear();
+        mScheduler.runPending();
+        mCallbacks.runPending();
+
+        assertEquals(1, mTransport.writeCount);
+        assertEquals(MessageStore.SEND_STATE_PENDING, mStore.getSendState(inFlight));
+        assertTrue(mNotified.isEmpty());
+    }
+
+    /**
+     * Sends a message and adds it to the store, like the app does, and returns its key.
+     */
+    private String send(String text) {
+        FriendlyMessage message = mSender.send(new FriendlyMessage(text, "author", null));
+        mStore.put(message);
+        return message.getKey();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageStoreTest {
+
+    private final MessageStore mStore = new MessageStore();
+
+    @Test
+    public void putKeepsPushKeyOrder() {
+        mStore.put(message("b", "second"));
+        mStore.put(message("c", "third"));
+        mStore.put(message("a", "first"));
+
+        assertEquals(3, mStore.size());
+        assertEquals("a", mStore.getKey(0));
+        assertEquals("b", mStore.getKey(1));
+        assertEquals("c", mStore.getKey(2));
+        assertEquals("a", mStore.getOldestKey());
+        assertEquals("c", mStore.getNewestKey());
+    }
+
+    @Test
+    public void putReplacesMessageWithSameKey() {
+        mStore.put(message("a", "original"));
+        int position = mStore.put(message("a", "edited"));
+
+        assertEquals(0, position);
+        assertEquals(1, mStore.size());
+        assertEquals("edited", mStore.get(0).getText());
+    }
+
+    @Test
+    public void getRestoresEveryField() {
+        FriendlyMessage photo = new FriendlyMessage("a", null, "author",
+                "https://example.com/o/chat_photos%2Fphoto.jpg?alt=media",
+                "https://example.com/o/chat_photos%2Fthumbs%2Fphoto.jpg?alt=media", 640, 480);
+        mStore.put(photo);
+
+        FriendlyMessage stored = mStore.get(0);
+        assertEquals(photo.getKey(), stored.getKey());
+        assertNull(stored.getText());
+        assertEquals(photo.getName(), stored.getName());
+        assertEquals(photo.getPhotoUrl(), stored.getPhotoUrl());
+        assertEquals(photo.getThumbUrl(), stored.getThumbUrl());
+        assertEquals(640, stored.getWidth());
+        assertEquals(480, stored.getHeight());
+    }
+
+    @Test
+    public void indexOfReturnsInsertionPointOfMissingKey() {
+        mStore.put(message("b", "b"));
+        mStore.put(message("d", "d"));
+
+        assertEquals(0, mStore.indexOf("b"));
+        assertEquals(1, mStore.indexOf("d"));
+        assertEquals(-1, mStore.indexOf("a"));
+        assertEquals(-2, mStore.indexOf("c"));
+        assertEquals(-3, mStore.indexOf("e"));
+    }
+
+    @Test
+    public void removeShiftsLaterMessages() {
+        for (String key : new String[]{"a", "b", "c", "d"}) {
+            mStore.put(message(key, key));
+        }
+
+        mStore.remove(1);
+
+        assertEquals(3, mStore.size());
+        assertEquals("c", mStore.getKey(1));
+        assertEquals("c", mStore.get(1).getText());
+        assertTrue(mStore.indexOf("b") < 0);
+    }
+
+    @Test
+    public void removeRangeRemovesOnlyTheRange() {
+        for (String key : new String[]{"a", "b", "c", "d", "e"}) {
+            mStore.put(message(key, key));
+        }
+
+        mStore.removeRange(1, 4);
+
+        assertEquals(2, mStore.size());
+        assertEquals("a", mStore.getKey(0));
+        assertEquals("e", mStore.getKey(1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutsideStoreThrows() {
+        mStore.put(message("a", "a"));
+        mStore.get(1);
+    }
+
+    @Test
+    public void sendStateDefaultsToSent() {
+        mStore.markPending("a");
+        assertEquals(MessageStore.SEND_STATE_PENDING, mStore.getSendState("a"));
+        assertEquals(MessageStore.SEND_STATE_SENT, mStore.getSendState("b"));
+
+        mStore.setSendState("a", MessageStore.SEND_STATE_SENT);
+        assertEquals(MessageStore.SEND_STATE_SENT, mStore.getSendState("a"));
+    }
+
+    @Test
+    public void removeAllKeepsSendStateButClearDoesNot() {
+        mStore.put(message("a", "a"));
+        mStore.markPending("a");
+
+        mStore.removeAll();
+        assertTrue(mStore.isEmpty());
+        assertEquals(MessageStore.SEND_STATE_PENDING, mStore.getSendState("a"));
+
+        mStore.clear();
+        assertEquals(MessageStore.SEND_STATE_SENT, mStore.getSendState("a"));
+    }
+
+    private static FriendlyMessage message(String key, String text) {
+        return new FriendlyMessage(key, text, "author", null, null, 0, 0);
+    }
+}
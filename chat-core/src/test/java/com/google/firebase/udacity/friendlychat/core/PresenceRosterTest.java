@@ -0,0 +1,131 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PresenceRosterTest {
+
+    private static final long PRESENCE_TTL_MILLIS = 30000;
+    private static final long TYPING_TTL_MILLIS = 10000;
+
+    private ManualScheduler mScheduler;
+    private PresenceRoster mRoster;
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mRoster = new PresenceRoster(PRESENCE_TTL_MILLIS, TYPING_TTL_MILLIS);
+    }
+
+    @Test
+    public void typingExpiresBeforePresence() {
+        mRoster.put("a", "Ada", true, 0);
+
+        assertEquals(Collections.singletonList("Ada"), mRoster.getTypingNames(0));
+        assertEquals(Collections.singletonList("Ada"),
+                mRoster.getTypingNames(TYPING_TTL_MILLIS - 1));
+        assertEquals(Collections.emptyList(), mRoster.getTypingNames(TYPING_TTL_MILLIS));
+
+        assertEquals(1, mRoster.getPresentCount(TYPING_TTL_MILLIS));
+        assertEquals(1, mRoster.getPresentCount(PRESENCE_TTL_MILLIS - 1));
+        assertEquals(0, mRoster.getPresentCount(PRESENCE_TTL_MILLIS));
+    }
+
+    @Test
+    public void nextExpiryIsTheEarliestCutoff() {
+        mRoster.put("a", "Ada", true, 0);
+        mRoster.put("b", "Bob", false, 5000);
+
+        assertEquals(TYPING_TTL_MILLIS, mRoster.getNextExpiryMillis(0));
+        assertEquals(PRESENCE_TTL_MILLIS, mRoster.getNextExpiryMillis(TYPING_TTL_MILLIS));
+        assertEquals(5000 + PRESENCE_TTL_MILLIS,
+                mRoster.getNextExpiryMillis(PRESENCE_TTL_MILLIS));
+        assertEquals(-1, mRoster.getNextExpiryMillis(5000 + PRESENCE_TTL_MILLIS));
+    }
+
+    @Test
+    public void scheduledExpiriesDropMembersInTurn() {
+        // Refreshes the display when the roster says the next state expires, like RoomPresence
+        mRoster.put("a", "Ada", true, 0);
+        mRoster.put("c", "Cy", true, 2000);
+        mRoster.put("b", "Bob", false, 4000);
+        assertEquals(Arrays.asList("Ada", "Cy"), mRoster.getTypingNames(4000));
+        assertEquals(3, mRoster.getPresentCount(4000));
+
+        mScheduler.advanceBy(4000);
+        advanceToNextExpiry();
+        assertEquals(TYPING_TTL_MILLIS, mScheduler.getNowMillis());
+        assertEquals(Collections.singletonList("Cy"), typingNow());
+
+        advanceToNextExpiry();
+        assertEquals(2000 + TYPING_TTL_MILLIS, mScheduler.getNowMillis());
+        assertEquals(Collections.emptyList(), typingNow());
+        assertEquals(3, mRoster.getPresentCount(mScheduler.getNowMillis()));
+
+        advanceToNextExpiry();
+        advanceToNextExpiry();
+        assertEquals(2000 + PRESENCE_TTL_MILLIS, mScheduler.getNowMillis());
+        assertEquals(1, mRoster.getPresentCount(mScheduler.getNowMillis()));
+
+        advanceToNextExpiry();
+        assertEquals(0, mRoster.getPresentCount(mScheduler.getNowMillis()));
+        assertEquals(-1, mRoster.getNextExpiryMillis(mScheduler.getNowMillis()));
+    }
+
+    @Test
+    public void putReplacesAndRemoveForgets() {
+        mRoster.put("a", "Ada", true, 0);
+        mRoster.put("a", "Ada", false, 20000);
+
+        assertEquals(Collections.emptyList(), mRoster.getTypingNames(20000));
+        assertEquals(1, mRoster.getPresentCount(PRESENCE_TTL_MILLIS));
+        assertEquals(20000 + PRESENCE_TTL_MILLIS, mRoster.getNextExpiryMillis(20000));
+
+        mRoster.remove("a");
+        assertEquals(0, mRoster.getPresentCount(20000));
+        assertEquals(-1, mRoster.getNextExpiryMillis(20000));
+
+        mRoster.put("b", "Bob", true, 0);
+        mRoster.clear();
+        assertEquals(Collections.emptyList(), mRoster.getTypingNames(0));
+        assertEquals(0, mRoster.getPresentCount(0));
+    }
+
+    @Test
+    public void statesAlreadyExpiredAreIgnored() {
+        mRoster.put("a", "Ada", true, 0);
+
+        assertEquals(0, mRoster.getPresentCount(60000));
+        assertEquals(-1, mRoster.getNextExpiryMillis(60000));
+    }
+
+    private void advanceToNextExpiry() {
+        long now = mScheduler.getNowMillis();
+        mScheduler.advanceBy(mRoster.getNextExpiryMillis(now) - now);
+    }
+
+    private List<String> typingNow() {
+        return mRoster.getTypingNames(mScheduler.getNowMillis());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PushKeyGeneratorTest {
+
+    @Test
+    public void timestampOfReturnsTheGeneratedTime() {
+        PushKeyGenerator generator = new PushKeyGenerator(new Random(1));
+        for (long time : new long[]{0, 1, 63, 64, 1709164800000L, (1L << 48) - 1}) {
+            String key = generator.generate(time);
+            assertEquals(20, key.length());
+            assertEquals(time, PushKeyGenerator.timestampOf(key));
+        }
+    }
+
+    @Test
+    public void keysSortLikeTheirTimes() {
+        PushKeyGenerator generator = new PushKeyGenerator(new Random(1));
+        String previous = generator.generate(1709164800000L);
+        for (long time = 1709164800001L; time < 1709164900000L; time += 997) {
+            String key = generator.generate(time);
+            assertTrue(previous + " isn't before " + key, previous.compareTo(key) < 0);
+            previous = key;
+        }
+    }
+
+    @Test
+    public void keysGeneratedInTheSameMillisecondIncrease() {
+        // The random part starts at "-----------z", so the second key carries over
+        Random random = new Random() {
+            private int mCalls;
+
+            @Override
+            public int nextInt(int bound) {
+                return ++mCalls % 12 == 0 ? 63 : 0;
+            }
+        };
+        PushKeyGenerator generator = new PushKeyGenerator(random);
+
+        String first = generator.generate(1000);
+        String second = generator.generate(1000);
+        String third = generator.generate(1000);
+
+        assertEquals("-----------z", first.substring(8));
+        assertEquals("----------0-", second.substring(8));
+        assertEquals("----------00", third.substring(8));
+        assertEquals(1000, PushKeyGenerator.timestampOf(third));
+    }
+
+    @Test
+    public void seededGeneratorsGenerateTheSameKeys() {
+        PushKeyGenerator a = new PushKeyGenerator(new Random(42));
+        PushKeyGenerator b = new PushKeyGenerator(new Random(42));
+
+        for (long time = 0; time < 10; time++) {
+            assertEquals(a.generate(time / 2), b.generate(time / 2));
+        }
+    }
+
+    @Test
+    public void timestampOfRejectsNonPushKeys() {
+        for (String key : new String[]{null, "", "-KaJ6t4", "hello world!", "room/-KaJ6t4Q"}) {
+            try {
+                PushKeyGenerator.timestampOf(key);
+                fail("Accepted " + key);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void timestampOfOnlyReadsTheTimePart() {
+        // Keys that only use push key characters decode, whatever their length, so callers that
+        // mix push keys with other IDs must tell them apart themselves
+        assertEquals(PushKeyGenerator.timestampOf("-KaJ6t4Q"),
+                PushKeyGenerator.timestampOf("-KaJ6t4QabcdefghijklMORE"));
+        assertTrue(PushKeyGenerator.timestampOf("20240229") > 0);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.udacity.friendlychat.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TypingThrottleTest {
+
+    private static final long IDLE_MILLIS = 3000;
+    private static final long REFRESH_MILLIS = 5000;
+
+    private ManualScheduler mScheduler;
+    private TypingThrottle mThrottle;
+
+    /** The states written, in order. */
+    private final List<Boolean> mWrites = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mThrottle = new TypingThrottle(mScheduler, IDLE_MILLIS, REFRESH_MILLIS,
+                new TypingThrottle.Writer() {
+                    @Override
+                    public void writeTyping(boolean typing) {
+                        mWrites.add(typing);
+                    }
+                });
+    }
+
+    @Test
+    public void burstWritesTypingRefreshAndStopped() {
+        // Ten keystrokes a second for six seconds: past one refresh, but not two
+        typeFor(6000);
+        assertEquals(Arrays.asList(true, true), mWrites);
+        assertTrue(mThrottle.isTyping());
+
+        mScheduler.advanceBy(IDLE_MILLIS - 1);
+        assertEquals(Arrays.asList(true, true), mWrites);
+
+        mScheduler.advanceBy(1);
+        assertEquals(Arrays.asList(true, true, false), mWrites);
+        assertFalse(mThrottle.isTyping());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void shortBurstWritesTypingAndStopped() {
+        typeFor(1000);
+        mScheduler.advanceBy(60000);
+
+        assertEquals(Arrays.asList(true, false), mWrites);
+    }
+
+    @Test
+    public void refreshIsSkippedWithoutKeystrokesSinceTheLastWrite() {
+        // A keystroke every 2.9 seconds keeps the user typing, but none fall between the first
+        // write and the refresh
+        mThrottle.onKeystroke();
+        mScheduler.advanceBy(2900);
+        mThrottle.onKeystroke();
+        assertEquals(Collections.singletonList(true), mWrites);
+
+        // The refresh at 5 s finds a keystroke since the write; the one at 10 s doesn't
+        mScheduler.advanceBy(2900);
+        mThrottle.onKeystroke();
+        mScheduler.advanceBy(2900);
+        assertEquals(Arrays.asList(true, true), mWrites);
+
+        mScheduler.advanceBy(IDLE_MILLIS);
+        assertEquals(Arrays.asList(true, true, false), mWrites);
+    }
+
+    @Test
+    public void stopWritesStoppedRightAway() {
+        typeFor(1000);
+
+        mThrottle.stop();
+        assertEquals(Arrays.asList(true, false), mWrites);
+        assertFalse(mThrottle.isTyping());
+        assertEquals(0, mScheduler.getPendingCount());
+
+        // Nothing left to write, however long it waits or how often it's stopped
+        mScheduler.advanceBy(60000);
+        mThrottle.stop();
+        assertEquals(Arrays.asList(true, false), mWrites);
+    }
+
+    @Test
+    public void stopWithoutTypingWritesNothing() {
+        mThrottle.stop();
+
+        assertTrue(mWrites.isEmpty());
+    }
+
+    @Test
+    public void resetForgetsTheStateWithoutWriting() {
+        typeFor(1000);
+
+        mThrottle.reset();
+        mScheduler.advanceBy(60000);
+        assertEquals(Collections.singletonList(true), mWrites);
+        assertFalse(mThrottle.isTyping());
+        assertEquals(0, mScheduler.getPendingCount());
+
+        // The next keystroke starts a new burst
+        mThrottle.onKeystroke();
+        assertEquals(Arrays.asList(true, true), mWrites);
+        mScheduler.advanceBy(IDLE_MILLIS);
+        assertEquals(Arrays.asList(true, true, false), mWrites);
+    }
+
+    /**
+     * Presses a key every 100 ms, from now until {@code millis} from now.
+     */
+    private void typeFor(long millis) {
+        for (long typed = 0; typed < millis; typed += 100) {
+            mThrottle.onKeystroke();
+            mScheduler.advanceBy(100);
+        }
+        mThrottle.onKeystroke();
+    }
+}